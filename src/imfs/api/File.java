@@ -3,6 +3,8 @@ package imfs.api;
 import imfs.filesystem.Directory;
 import imfs.filesystem.FileModifyOptions;
 
+import javax.annotation.Nullable;
+
 /**
  * File interface for an in-memory file system.
  * This interface provides APIs for common file operations as move, delete, .etc.
@@ -20,9 +22,9 @@ public interface File {
     Object getFileContent();
 
     /**
-     * Set name of the file
+     * Set name of the file, the file is mapped under the new name in its parent {@link Directory}
      * @param name new name of the file
-     * @return true if setting successfully, otherwise false
+     * @return true if setting successfully, otherwise false, e.g. the new name is taken
      */
     boolean setName(String name);
 
@@ -51,6 +53,13 @@ public interface File {
      */
     boolean move(String des, boolean createOnNonExist, FileModifyOptions modifyOption);
 
+    /**
+     * Copy the file to a new location, a directory is copied with its whole subtree.
+     * @param des destination to copy the file to
+     * @return the copy if copying succeeds, otherwise null.
+     */
+    @Nullable File copy(String des, boolean createOnNonExist, FileModifyOptions modifyOption);
+
     /**
      * Delete this file and corresponding entry in its parent {@link Directory}.
      * @return true if deletion operation succeeds, otherwise false.
@@ -0,0 +1,85 @@
+package imfs.factories;
+
+import imfs.filesystem.Directory;
+import imfs.filesystem.MutationLog;
+import imfs.persistence.SnapshotReader;
+import imfs.persistence.WriteAheadLog;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Factory to provide a root {@link Directory} initialised from a snapshot image,
+ * or an empty root if there's no image yet, e.g. on the very first start.
+ *
+ * Given a log directory, changes made after the image was saved are replayed from the {@link WriteAheadLog}
+ * on top of it, and further changes of the root's tree are logged until the factory is closed.
+ */
+public class SnapshotRootDirectoryFactory implements Closeable {
+    private final Path _snapshotFile;
+    private final @Nullable Path _logDirectory;
+    private final int _batchSize;
+    private final long _maxBatchDelayNanos;
+    private Directory _root;
+    private WriteAheadLog _log;
+
+    public SnapshotRootDirectoryFactory(Path snapshotFile) {
+        this(snapshotFile, null, 1, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param logDirectory directory of the write-ahead log, null to not log changes
+     * @param batchSize number of records a group commit of the log waits for before it fsyncs, 1 to never wait
+     * @param maxBatchDelay longest a group commit waits for its batch to fill up
+     */
+    public SnapshotRootDirectoryFactory(Path snapshotFile, @Nullable Path logDirectory,
+                                        int batchSize, long maxBatchDelay, TimeUnit unit) {
+        _snapshotFile = snapshotFile;
+        _logDirectory = logDirectory;
+        _batchSize = batchSize;
+        _maxBatchDelayNanos = unit.toNanos(maxBatchDelay);
+    }
+
+    /**
+     * Load the root from the snapshot image and the log once, later calls return the same root.
+     */
+    public synchronized Directory getRoot() throws IOException {
+        if (_root == null) {
+            boolean hasImage = Files.exists(_snapshotFile);
+            Directory root = hasImage ? SnapshotReader.read(_snapshotFile) : new Directory();
+            if (_logDirectory != null) {
+                long logGeneration = hasImage ? SnapshotReader.readLogGeneration(_snapshotFile) : 0;
+                _log = WriteAheadLog.recover(_logDirectory, logGeneration, root,
+                        _batchSize, _maxBatchDelayNanos, TimeUnit.NANOSECONDS);
+                MutationLog.getInstance().attach(root, _log);
+            }
+            _root = root;
+        }
+        return _root;
+    }
+
+    public Path getSnapshotFile() {
+        return _snapshotFile;
+    }
+
+    /**
+     * Stop logging the changes of the root's tree and close the log, the root stays usable in memory.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (_log == null) {
+            return;
+        }
+        MutationLog mutationLog = MutationLog.getInstance();
+        if (mutationLog.getLog(_root) == _log) {
+            mutationLog.detach();
+        }
+        _log.close();
+        _log = null;
+    }
+}
@@ -0,0 +1,237 @@
+package imfs.filesystem;
+
+import imfs.api.File;
+import imfs.utils.FileNamePredicate;
+
+import javax.annotation.Nullable;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Applies a batch of {@link BatchOperation}s, see {@link IMFS#applyBatch}.
+ *
+ * The batch has the same outcome as applying its operations one by one in the given order. Creates, writes and
+ * file deletes are grouped by the directory they change, which is resolved from the path, so different paths to
+ * the same directory share a group. Such operations only change an entry of their directory and commute with those
+ * of other groups, each group is applied under one lock of its directory, one change of the {@link TreeVersions}
+ * and one change of the {@link MutationLog}, so a logged group is made durable by a single sync.
+ *
+ * The pending groups are applied before any operation depending on them: moves and directory deletes, which
+ * lock other directories too and run on their own, and operations on directories that don't exist yet and can be
+ * created by a pending operation. Directories are resolved from the longest resolved path prefix.
+ */
+final class BatchApplier {
+    private static final TreeVersions VERSIONS = TreeVersions.getInstance();
+    private static final MutationLog MUTATION_LOG = MutationLog.getInstance();
+
+    private final Directory _root;
+    private final Directory _cwd;
+    // directories resolved so far, by their path up to and including the last delimiter
+    private final Map<String, Directory> _directories = new HashMap<>();
+
+    BatchApplier(Directory root, Directory cwd) {
+        _root = root;
+        _cwd = cwd;
+    }
+
+    List<BatchResult> apply(List<BatchOperation> operations) {
+        BatchResult[] results = new BatchResult[operations.size()];
+        // operations not applied yet by the directory they change, directories don't override equals
+        Map<Directory, List<Integer>> pending = new LinkedHashMap<>();
+        for (int i = 0; i < operations.size(); i++) {
+            BatchOperation operation = operations.get(i);
+            String dirPath = operation._path.substring(0, operation._path.lastIndexOf(File.DELIMITER) + 1);
+            Directory dir = resolveDirectory(dirPath);
+            if (dir == null || needsOwnChange(dir, operation)) {
+                // the directory can be created by a pending operation, or the operation depend on pending ones
+                applyPending(pending, operations, results);
+                dir = resolveDirectory(dirPath);
+            }
+            if (dir == null) {
+                results[i] = BatchResult.failed("Directory " + dirPath + " doesn't exist!");
+            } else if (needsOwnChange(dir, operation)) {
+                results[i] = applyAlone(dir, operation);
+                // moved or deleted directories invalidate resolved paths
+                _directories.clear();
+            } else {
+                pending.computeIfAbsent(dir, key -> new ArrayList<>()).add(i);
+            }
+        }
+        applyPending(pending, operations, results);
+        return Arrays.asList(results);
+    }
+
+    private void applyPending(Map<Directory, List<Integer>> pending, List<BatchOperation> operations, BatchResult[] results) {
+        for (Map.Entry<Directory, List<Integer>> group : pending.entrySet()) {
+            applyGroup(group.getKey(), group.getValue(), operations, results);
+        }
+        pending.clear();
+    }
+
+    private void applyGroup(Directory dir, List<Integer> indexes, List<BatchOperation> operations, BatchResult[] results) {
+        int next = 0;
+        while (next < indexes.size()) {
+            BatchOperation operation = operations.get(indexes.get(next));
+            if (needsOwnChange(dir, operation)) {
+                // a directory created earlier in the group, it only contains files created after it in the group
+                results[indexes.get(next)] = applyAlone(dir, operation);
+                // moved or deleted directories invalidate resolved paths
+                _directories.clear();
+                next++;
+                continue;
+            }
+            int start = next;
+            MUTATION_LOG.begin(dir, false);
+            try {
+                next = applyLocked(dir, indexes, next, operations, results);
+            } finally {
+                try {
+                    MUTATION_LOG.end();
+                } catch (UncheckedIOException e) {
+                    for (int i = start; i < next; i++) {
+                        results[indexes.get(i)] = BatchResult.failed("Change is applied but not durable: " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean needsOwnChange(Directory dir, BatchOperation operation) {
+        return operation._type == BatchOperation.Type.Move ||
+                operation._type == BatchOperation.Type.Delete && isDirectory(dir.getSubFile(nameOf(operation)));
+    }
+
+    private static boolean isDirectory(@Nullable File file) {
+        return file != null && file.isDirectory();
+    }
+
+    private static String nameOf(BatchOperation operation) {
+        return operation._path.substring(operation._path.lastIndexOf(File.DELIMITER) + 1);
+    }
+
+    /**
+     * Apply operations of a group under one lock of its directory, up to the first one needing its own change.
+     * @return index of the first operation not applied
+     */
+    private static int applyLocked(Directory dir, List<Integer> indexes, int from, List<BatchOperation> operations,
+                                   BatchResult[] results) {
+        int next = from;
+        dir.lock();
+        VERSIONS.begin();
+        try {
+            for (; next < indexes.size(); next++) {
+                BatchOperation operation = operations.get(indexes.get(next));
+                if (needsOwnChange(dir, operation)) {
+                    break;
+                }
+                BatchResult result;
+                try {
+                    result = applyLocked(dir, operation);
+                } catch (RuntimeException e) {
+                    result = BatchResult.failed(e.getMessage());
+                }
+                results[indexes.get(next)] = result;
+            }
+            return next;
+        } finally {
+            dir.unlock();
+            VERSIONS.commit();
+        }
+    }
+
+    private static BatchResult applyLocked(Directory dir, BatchOperation operation) {
+        String name = nameOf(operation);
+        switch (operation._type) {
+            case CreateFile:
+            case CreateDirectory:
+                if (!FileNamePredicate.getInstance().test(name)) {
+                    return BatchResult.failed(String.format("sub file or directory name %s provided is invalid", name));
+                }
+                return BatchResult.succeeded(dir.createSubFileLocked(name, operation._type == BatchOperation.Type.CreateDirectory));
+            case Write:
+                File toWrite = dir.getSubFile(name);
+                if (toWrite == null) {
+                    return BatchResult.failed("File " + operation._path + " doesn't exist, please create file first");
+                }
+                if (toWrite.isDirectory()) {
+                    return BatchResult.failed("File " + operation._path + " is a directory and doesn't support content writing");
+                }
+                if (operation._argument == null || operation._argument.isEmpty()) {
+                    return BatchResult.failed("Content passed in is empty!");
+                }
+                ((ConcreteFile) toWrite).appendLocked(dir, operation._argument.getBytes(StandardCharsets.UTF_8));
+                return BatchResult.succeeded(toWrite);
+            case Delete:
+                File toDelete = dir.getSubFile(name);
+                if (toDelete == null) {
+                    return BatchResult.failed("File " + operation._path + " doesn't exist, could not delete!");
+                }
+                ((ConcreteFile) toDelete).deleteLocked(dir);
+                return BatchResult.succeeded(null);
+            default:
+                throw new IllegalStateException("Operation " + operation + " can not be applied under the directory lock");
+        }
+    }
+
+    private static BatchResult applyAlone(Directory dir, BatchOperation operation) {
+        File file = dir.getSubFile(nameOf(operation));
+        if (file == null) {
+            return BatchResult.failed("File " + operation._path + " doesn't exist!");
+        }
+        try {
+            if (operation._type == BatchOperation.Type.Move) {
+                return file.move(operation._argument, false, operation._modifyOption) ?
+                        BatchResult.succeeded(file) :
+                        BatchResult.failed("File " + operation._path + " could not be moved to " + operation._argument);
+            }
+            return file.delete() ?
+                    BatchResult.succeeded(null) :
+                    BatchResult.failed("Directory " + operation._path + " could not be deleted");
+        } catch (RuntimeException e) {
+            return BatchResult.failed(e.getMessage());
+        }
+    }
+
+    /**
+     * Resolve a directory by its path up to and including the last delimiter, an empty path is the current
+     * working directory. Paths are resolved from the longest resolved prefix, directories that don't exist
+     * aren't remembered as they can be created by a pending operation.
+     */
+    private @Nullable Directory resolveDirectory(String dirPath) {
+        if (dirPath.isEmpty()) {
+            return _cwd;
+        }
+        if (dirPath.equals(File.DELIMITER)) {
+            return _root;
+        }
+        Directory resolved = _directories.get(dirPath);
+        if (resolved != null) {
+            return resolved;
+        }
+        String path = dirPath.substring(0, dirPath.length() - 1);
+        Directory base = resolveDirectory(path.substring(0, path.lastIndexOf(File.DELIMITER) + 1));
+        if (base == null) {
+            return null;
+        }
+        String name = path.substring(path.lastIndexOf(File.DELIMITER) + 1);
+        if (name.isEmpty() || name.equals(File.CURRENT_DIR_DOT)) {
+            resolved = base;
+        } else if (name.equals(File.SINGLE_LEVEL_PARENT)) {
+            resolved = base.isRoot() ? base : base.getParent();
+        } else {
+            File sub = base.getSubFile(name);
+            resolved = isDirectory(sub) ? (Directory) sub : null;
+        }
+        if (resolved != null) {
+            _directories.put(dirPath, resolved);
+        }
+        return resolved;
+    }
+}
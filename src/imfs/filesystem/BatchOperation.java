@@ -0,0 +1,69 @@
+package imfs.filesystem;
+
+import javax.annotation.Nullable;
+
+
+/**
+ * A create, write, move or delete of a file, applied together with many others by {@link IMFS#applyBatch}.
+ * Paths are full paths, or partial from the current working directory of the session applying the batch.
+ */
+public final class BatchOperation {
+    enum Type {
+        CreateFile,
+        CreateDirectory,
+        Write,
+        Move,
+        Delete
+    }
+
+    final Type _type;
+    final String _path;
+    // content to write or destination to move to
+    final @Nullable String _argument;
+    final FileModifyOptions _modifyOption;
+
+    private BatchOperation(Type type, String path, @Nullable String argument, FileModifyOptions modifyOption) {
+        _type = type;
+        _path = path;
+        _argument = argument;
+        _modifyOption = modifyOption;
+    }
+
+    public static BatchOperation createFile(String path) {
+        return new BatchOperation(Type.CreateFile, path, null, FileModifyOptions.Abort);
+    }
+
+    public static BatchOperation createDirectory(String path) {
+        return new BatchOperation(Type.CreateDirectory, path, null, FileModifyOptions.Abort);
+    }
+
+    /**
+     * Append content to an existing file.
+     */
+    public static BatchOperation write(String path, String content) {
+        return new BatchOperation(Type.Write, path, content, FileModifyOptions.Abort);
+    }
+
+    /**
+     * Move a file, see {@link ConcreteFile#move}, the destination is resolved from the file's directory.
+     */
+    public static BatchOperation move(String path, String destination, FileModifyOptions modifyOption) {
+        return new BatchOperation(Type.Move, path, destination, modifyOption);
+    }
+
+    /**
+     * Delete a file or a directory with its subtree.
+     */
+    public static BatchOperation delete(String path) {
+        return new BatchOperation(Type.Delete, path, null, FileModifyOptions.Abort);
+    }
+
+    public String getPath() {
+        return _path;
+    }
+
+    @Override
+    public String toString() {
+        return _argument == null ? _type + " " + _path : _type + " " + _path + " " + _argument;
+    }
+}
@@ -0,0 +1,47 @@
+package imfs.filesystem;
+
+import imfs.api.File;
+
+import javax.annotation.Nullable;
+
+
+/**
+ * Outcome of one {@link BatchOperation}, failures carry the reason instead of printing it.
+ */
+public final class BatchResult {
+    private final boolean _success;
+    private final @Nullable File _file;
+    private final @Nullable String _error;
+
+    private BatchResult(boolean success, @Nullable File file, @Nullable String error) {
+        _success = success;
+        _file = file;
+        _error = error;
+    }
+
+    static BatchResult succeeded(@Nullable File file) {
+        return new BatchResult(true, file, null);
+    }
+
+    static BatchResult failed(String error) {
+        return new BatchResult(false, null, error);
+    }
+
+    public boolean isSuccess() {
+        return _success;
+    }
+
+    /**
+     * @return the created, written or moved file, null for deletes and failures
+     */
+    public @Nullable File getFile() {
+        return _file;
+    }
+
+    /**
+     * @return why the operation failed, null if it succeeded
+     */
+    public @Nullable String getError() {
+        return _error;
+    }
+}
@@ -0,0 +1,22 @@
+package imfs.filesystem;
+
+
+/**
+ * A full path memoized by a {@link imfs.api.File}, valid as long as neither the path epoch of
+ * {@link Directory} nor the file's own path stamp has changed since it was built.
+ */
+final class CachedPath {
+    final String _path;
+    final long _epoch;
+    final long _stamp;
+
+    CachedPath(String path, long epoch, long stamp) {
+        _path = path;
+        _epoch = epoch;
+        _stamp = stamp;
+    }
+
+    boolean isValid(long epoch, long stamp) {
+        return _epoch == epoch && _stamp == stamp;
+    }
+}
@@ -3,50 +3,308 @@ package imfs.filesystem;
 import com.google.common.base.Preconditions;
 import imfs.utils.FileNamePredicate;
 import imfs.api.File;
+import imfs.storage.ContentChannel;
+import imfs.storage.SegmentedContent;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 
 /**
  * A concrete {@link File} class representing single file in the in-memory file system.
+ * Files never written share one empty content and allocate their own on the first write.
  */
 public class ConcreteFile implements File {
+    private static final TreeVersions VERSIONS = TreeVersions.getInstance();
+    private static final MutationLog MUTATION_LOG = MutationLog.getInstance();
+    private static final NameTable NAME_TABLE = NameTable.getInstance();
+    // content of all files never written, replaced by a content of their own on the first write
+    private static final SegmentedContent NO_CONTENT = new SegmentedContent();
+    private static final AtomicReferenceFieldUpdater<ConcreteFile, SegmentedContent> CONTENT =
+            AtomicReferenceFieldUpdater.newUpdater(ConcreteFile.class, SegmentedContent.class, "_content");
 
-    private String _name;
-    private StringBuilder _content;
-    private Directory _parent;
+    private volatile String _name;
+    private volatile SegmentedContent _content;
+    // changed only under the lock of the parent directory
+    private volatile Directory _parent;
+    // bumped after the name or parent changed, invalidates the memoized full path
+    private volatile long _pathStamp;
+    private volatile CachedPath _fullPath;
 
     public ConcreteFile(String name, Directory des) {
+        this(name, des, NO_CONTENT);
+    }
+
+    /**
+     * Create a file holding the given content, e.g. content {@link SegmentedContent#mapped} from an image.
+     * Only the creation is logged to an attached {@link MutationLog}, not the content,
+     * trees are loaded before their log is attached.
+     */
+    public ConcreteFile(String name, Directory des, SegmentedContent content) {
         Preconditions.checkState(FileNamePredicate.getInstance().test(name), "file name provided is invalid");
 
-        _name = name;
+        _name = NAME_TABLE.intern(name);
         _parent = des;
-        _parent.getNameToSubFile().put(_name, this);
-        //TODO: replace with thread-safe StringBuffer
-        _content = new StringBuilder();
+        _content = content;
+        MUTATION_LOG.begin(des, false);
+        des.lock();
+        VERSIONS.begin();
+        try {
+            MUTATION_LOG.logCreate(des, name, false);
+            // replacing a same name file invalidates the paths resolved through the directory
+            des.putSubFile(_name, this);
+        } finally {
+            des.unlock();
+            VERSIONS.commit();
+            MUTATION_LOG.end();
+        }
     }
 
     /**
+     * Create a detached file holding the given content, mapped into a directory by
+     * {@link Directory#moveFileToDirectory}, see {@link #copy}.
+     */
+    private ConcreteFile(String name, SegmentedContent content) {
+        _name = NAME_TABLE.intern(name);
+        _content = content;
+    }
+
+    /**
+     * @return a detached copy of this file under the given name sharing its content, null if this file is deleted
+     */
+    @Nullable ConcreteFile copyDetached(String name) {
+        SegmentedContent content = _content;
+        if (content == null) {
+            return null;
+        }
+        return new ConcreteFile(name, content == NO_CONTENT ? NO_CONTENT : content.copy());
+    }
+
+    /**
+     * @return a copy of the content of this file sharing its segments, null if the file was never written or is deleted
+     */
+    @Nullable SegmentedContent copyContent() {
+        SegmentedContent content = _content;
+        return content == null || content == NO_CONTENT ? null : content.copy();
+    }
+
+    /**
+     * @return the content of this file to change, allocated on the first write, null if the file is deleted
+     */
+    private @Nullable SegmentedContent writableContent() {
+        while (true) {
+            SegmentedContent content = _content;
+            if (content != NO_CONTENT) {
+                return content;
+            }
+            SegmentedContent allocated = new SegmentedContent();
+            if (CONTENT.compareAndSet(this, NO_CONTENT, allocated)) {
+                return allocated;
+            }
+        }
+    }
+
+    /**
+     * Append content to this file. Appends from concurrent writers don't block each other
+     * nor {@link #move}/{@link #delete}, and each append is applied atomically.
+     * While the tree is logged, appends are logged under the lock of the parent instead, see {@link MutationLog}.
      * TODO: support serialized content for various file types
      *
      * @param newContent
      */
-    public synchronized void writeFileContent(String newContent) {
+    public void writeFileContent(String newContent) {
         if (StringUtils.isEmpty(newContent)) {
             System.err.println("Content passed in is empty!");
             return;
         }
-        _content.append(newContent);
+        MUTATION_LOG.begin(_parent, false);
+        try {
+            if (!MUTATION_LOG.isLogging()) {
+                SegmentedContent content = writableContent();
+                if (content == null) {
+                    System.err.println("File is deleted, content can not be written!");
+                    return;
+                }
+                content.append(newContent);
+                return;
+            }
+            byte[] bytes = newContent.getBytes(StandardCharsets.UTF_8);
+            Directory parent = lockParent();
+            if (parent == null) {
+                System.err.println("File is deleted, content can not be written!");
+                return;
+            }
+            try {
+                appendLocked(parent, bytes);
+            } finally {
+                parent.unlock();
+            }
+        } finally {
+            MUTATION_LOG.end();
+        }
+    }
+
+    /**
+     * Append content to this file, callers hold the lock of the parent and have begun a change of the {@link MutationLog}.
+     */
+    void appendLocked(Directory parent, byte[] bytes) {
+        MUTATION_LOG.logAppend(parent, _name, bytes);
+        writableContent().append(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Lock the current parent of this file, so that the file can't be moved, renamed or deleted meanwhile.
+     * @return the locked parent, null if the file is deleted
+     */
+    private @Nullable Directory lockParent() {
+        while (true) {
+            Directory parent = _parent;
+            if (parent == null) {
+                return null;
+            }
+            parent.lock();
+            if (parent == _parent) {
+                return parent;
+            }
+            parent.unlock();
+        }
     }
 
     /**
      * {@inheritDoc}
+     * This decodes the whole content into a new string,
+     * prefer {@link #openContentStream()} or {@link #writeContentTo(OutputStream)} for large files.
      */
     @Override
     public Object getFileContent() {
-        return _content == null ? null : _content.toString();
+        // read once, a concurrent delete can clear the content between the check and the read
+        SegmentedContent content = _content;
+        return content == null ? null : content.toString();
+    }
+
+    /**
+     * Open a stream over the UTF-8 content of this file as of now, without copying the content.
+     * @return content stream, null if the file is deleted
+     */
+    public @Nullable InputStream openContentStream() {
+        SegmentedContent content = _content;
+        return content == null ? null : content.openStream();
+    }
+
+    /**
+     * Write the UTF-8 content of this file to the given output segment by segment.
+     */
+    public void writeContentTo(OutputStream out) throws IOException {
+        SegmentedContent content = _content;
+        if (content != null) {
+            content.writeTo(out);
+        }
+    }
+
+    /**
+     * @return size of the file content in bytes, 0 if the file is deleted
+     */
+    public long getContentSize() {
+        SegmentedContent content = _content;
+        return content == null ? 0 : content.size();
+    }
+
+    /**
+     * Open a {@link SeekableByteChannel} over the content of this file, positioned at its start.
+     * The returned channel is a {@link ContentChannel}, transfers between two files' channels share content segments.
+     * Changes through the channel are logged like {@link #write} while the tree is logged.
+     * @return a new channel over the file content
+     */
+    public ContentChannel newByteChannel() {
+        SegmentedContent content = writableContent();
+        Preconditions.checkState(content != null, "File is deleted, content can not be opened!");
+        return new ContentChannel(content, new ChannelWriter());
+    }
+
+    /**
+     * Open a read-only {@link ContentChannel} over the content of this file, positioned at its start.
+     * Unlike {@link #newByteChannel}, content of a file never written isn't allocated, the channel is empty.
+     * @return a new read-only channel over the file content
+     */
+    public ContentChannel newReadChannel() {
+        SegmentedContent content = _content;
+        Preconditions.checkState(content != null, "File is deleted, content can not be opened!");
+        return new ContentChannel(content, true);
+    }
+
+    /**
+     * Read raw content bytes at the given position into the destination buffer.
+     * @param offset position in the file to start reading from
+     * @param dst buffer to fill
+     * @return number of bytes read, or -1 if the position is at or past the end of the file
+     */
+    public int read(long offset, ByteBuffer dst) {
+        SegmentedContent content = _content;
+        Preconditions.checkState(content != null, "File is deleted, content can not be read!");
+        return content.read(offset, dst);
+    }
+
+    /**
+     * Write raw content bytes at the given position, overwriting existing bytes and extending the file
+     * if the write goes past its end.
+     * @param offset position in the file to start writing at
+     * @param src buffer holding the bytes to write
+     * @return number of bytes written
+     */
+    public int write(long offset, ByteBuffer src) {
+        MUTATION_LOG.begin(_parent, false);
+        try {
+            if (!MUTATION_LOG.isLogging()) {
+                SegmentedContent content = writableContent();
+                Preconditions.checkState(content != null, "File is deleted, content can not be written!");
+                return content.write(offset, src);
+            }
+            Directory parent = lockParent();
+            Preconditions.checkState(parent != null, "File is deleted, content can not be written!");
+            try {
+                MUTATION_LOG.logWrite(parent, _name, offset, src);
+                return writableContent().write(offset, src);
+            } finally {
+                parent.unlock();
+            }
+        } finally {
+            MUTATION_LOG.end();
+        }
+    }
+
+    /**
+     * Cut the content of this file to the given size, discarding the bytes past it.
+     * A size at or past the end of the file leaves it unmodified.
+     * @param size size to cut the file to
+     */
+    public void truncate(long size) {
+        MUTATION_LOG.begin(_parent, false);
+        try {
+            if (!MUTATION_LOG.isLogging()) {
+                SegmentedContent content = writableContent();
+                Preconditions.checkState(content != null, "File is deleted, content can not be truncated!");
+                content.truncate(size);
+                return;
+            }
+            Directory parent = lockParent();
+            Preconditions.checkState(parent != null, "File is deleted, content can not be truncated!");
+            try {
+                MUTATION_LOG.logTruncate(parent, _name, size);
+                writableContent().truncate(size);
+            } finally {
+                parent.unlock();
+            }
+        } finally {
+            MUTATION_LOG.end();
+        }
     }
 
     /**
@@ -72,35 +330,14 @@ public class ConcreteFile implements File {
      * @return directory to move the file into
      */
     private @Nullable File getFolderToMoveTo(String targetLocation, boolean createOnNonExist) {
-        PathTraverser traverser = new PathTraverser(findRootFromParent(), _parent);
-        File folderToMoveTo;
-        if (targetLocation.contains(File.DELIMITER)) {
-            if (targetLocation.startsWith(File.DELIMITER)) {
-                traverser.traverseToRoot();
-            }
-            String dirStr = targetLocation.substring(0, targetLocation.lastIndexOf(File.DELIMITER));
-            if (StringUtils.isEmpty(dirStr)) {
-                //moving to root
-                folderToMoveTo = traverser.getCwd();
-            } else {
-                folderToMoveTo = traverser.traverseToAnyLevel(dirStr, createOnNonExist);
-            }
-            Preconditions.checkState(folderToMoveTo != null, String.format("File %s doesn't exist!", dirStr));
-            // if concrete file under same name is found before last level
-            Preconditions.checkState(folderToMoveTo.isDirectory(),
-                    String.format("File %s already exists but it's not a directory!", dirStr));
-        } else {
-            // same directory move
-            folderToMoveTo = _parent;
-        }
-        return folderToMoveTo;
+        return new PathTraverser(findRootFromParent(), _parent).traverseToTargetDirectory(targetLocation, createOnNonExist);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public synchronized boolean move(String location, boolean createOnNonExist, FileModifyOptions modifyOption) {
+    public boolean move(String location, boolean createOnNonExist, FileModifyOptions modifyOption) {
         File folderToMoveTo = getFolderToMoveTo(location, createOnNonExist);
 
         if (folderToMoveTo == null) {
@@ -115,16 +352,104 @@ public class ConcreteFile implements File {
         Preconditions.checkState(FileNamePredicate.getInstance().test(newFileName),
                 String.format("file name \"%s\" provided is invalid", newFileName));
 
-        //reserve name in case move op fails
-        String oldName = _name;
-        Directory oldParent = _parent;
-        _name = newFileName;
-        if (dir.moveFileToDirectory(this, modifyOption)) {
-            oldParent.deleteSubFile(oldName, true);
-            return true;
+        MUTATION_LOG.begin(dir, false);
+        try {
+            return moveToDirectory(dir, newFileName, modifyOption);
+        } finally {
+            MUTATION_LOG.end();
+        }
+    }
+
+    private boolean moveToDirectory(Directory dir, String newFileName, FileModifyOptions modifyOption) {
+        while (true) {
+            Directory oldParent = _parent;
+            if (oldParent == null) {
+                System.err.println("File is deleted, can not be moved!");
+                return false;
+            }
+            Directory.lockInOrder(oldParent, dir);
+            if (oldParent != _parent) {
+                // moved by another thread before the locks were taken, retry from the new parent
+                Directory.unlockBoth(oldParent, dir);
+                continue;
+            }
+            // both directories change under one version, snapshots see the file in exactly one of them
+            VERSIONS.begin();
+            try {
+                MUTATION_LOG.logMove(oldParent, _name, dir, newFileName, modifyOption);
+                //reserve name in case move op fails
+                String oldName = _name;
+                _name = NAME_TABLE.intern(newFileName);
+                _pathStamp++;
+                if (dir.moveFileToDirectory(this, modifyOption)) {
+                    oldParent.deleteSubFile(oldName, true);
+                    return true;
+                }
+                _name = oldName;
+                _pathStamp++;
+                return false;
+            } finally {
+                Directory.unlockBoth(oldParent, dir);
+                VERSIONS.commit();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * The copy shares the content of this file, the bytes are only duplicated once either file is written.
+     */
+    @Override
+    public @Nullable File copy(String location, boolean createOnNonExist, FileModifyOptions modifyOption) {
+        File folderToCopyTo = getFolderToMoveTo(location, createOnNonExist);
+        if (folderToCopyTo == null) {
+            System.err.println("Could not copy to target directory!");
+            return null;
+        }
+        Directory dir = (Directory) folderToCopyTo;
+        String newFileName = location.contains(File.DELIMITER) ?
+                location.substring(location.lastIndexOf(File.DELIMITER) + 1) :
+                location;
+
+        Preconditions.checkState(FileNamePredicate.getInstance().test(newFileName),
+                String.format("file name \"%s\" provided is invalid", newFileName));
+
+        MUTATION_LOG.begin(dir, false);
+        try {
+            return copyToDirectory(dir, newFileName, modifyOption);
+        } finally {
+            MUTATION_LOG.end();
+        }
+    }
+
+    private @Nullable File copyToDirectory(Directory dir, String newFileName, FileModifyOptions modifyOption) {
+        while (true) {
+            Directory parent = _parent;
+            if (parent == null) {
+                System.err.println("File is deleted, can not be copied!");
+                return null;
+            }
+            // the lock of the parent keeps logged appends out, so the copy holds the content as logged
+            Directory.lockInOrder(parent, dir);
+            if (parent != _parent) {
+                Directory.unlockBoth(parent, dir);
+                continue;
+            }
+            // the version is committed after the locks are released, like any other change
+            VERSIONS.begin();
+            try {
+                ConcreteFile copy = copyDetached(newFileName);
+                if (copy == null) {
+                    System.err.println("File is deleted, can not be copied!");
+                    return null;
+                }
+                MUTATION_LOG.logCopy(parent, _name, dir, newFileName, modifyOption);
+                return dir.moveFileToDirectory(copy, modifyOption) && dir.getSubFile(newFileName) == copy ? copy : null;
+            } finally {
+                Directory.unlockBoth(parent, dir);
+                VERSIONS.commit();
+            }
         }
-        _name = oldName;
-        return false;
     }
 
     //TODO: deletion failure cases handling
@@ -132,13 +457,42 @@ public class ConcreteFile implements File {
      * {@inheritDoc}
      */
     @Override
-    public synchronized boolean delete() {
-        _parent.getNameToSubFile().remove(_name);
+    public boolean delete() {
+        MUTATION_LOG.begin(_parent, false);
+        try {
+            return deleteFromParent();
+        } finally {
+            MUTATION_LOG.end();
+        }
+    }
+
+    private boolean deleteFromParent() {
+        Directory parent = lockParent();
+        if (parent == null) {
+            // deleted already
+            return false;
+        }
+        VERSIONS.begin();
+        try {
+            deleteLocked(parent);
+            return false;
+        } finally {
+            parent.unlock();
+            VERSIONS.commit();
+        }
+    }
+
+    /**
+     * Delete this file from its parent, callers hold the lock of the parent, are in a change of {@link TreeVersions}
+     * and have begun a change of the {@link MutationLog}.
+     */
+    void deleteLocked(Directory parent) {
+        MUTATION_LOG.logDelete(parent, _name);
+        parent.removeSubFile(_name, this);
         _name = null;
         _parent = null;
-        _content.setLength(0);
+        _pathStamp++;
         _content = null;
-        return false;
     }
 
     /**
@@ -154,7 +508,21 @@ public class ConcreteFile implements File {
      */
     @Override
     public String getFullPath() {
-        return _name == null ? null : _parent.getFullPath().concat(_name);
+        // the epoch and stamp are read before the names, see Directory#getFullPath
+        long epoch = Directory.pathEpoch();
+        long stamp = _pathStamp;
+        CachedPath cached = _fullPath;
+        if (cached != null && cached.isValid(epoch, stamp)) {
+            return cached._path;
+        }
+        String name = _name;
+        Directory parent = _parent;
+        if (name == null || parent == null) {
+            return null;
+        }
+        String path = parent.getFullPath().concat(name);
+        _fullPath = new CachedPath(path, epoch, stamp);
+        return path;
     }
 
     /**
@@ -164,19 +532,31 @@ public class ConcreteFile implements File {
         if (!FileNamePredicate.getInstance().test(name)) {
             return false;
         }
-        _name = name;
-        return true;
+        for (Directory parent = _parent; parent != null; parent = _parent) {
+            if (parent.renameSubFile(this, name, newName -> {
+                _name = newName;
+                _pathStamp++;
+            })) {
+                return true;
+            }
+            if (parent == _parent) {
+                // name is taken
+                return false;
+            }
+        }
+        return false;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public synchronized boolean setParent(File parent) {
+    public boolean setParent(File parent) {
         if (parent == null || !parent.isDirectory()) {
             return false;
         }
         _parent = (Directory) parent;
+        _pathStamp++;
         return true;
     }
 
@@ -198,4 +578,91 @@ public class ConcreteFile implements File {
     public String genNewName() {
         return _name + RandomStringUtils.random(100);
     }
+
+    /**
+     * Applies the changes made through a channel of this file. While the tree is logged they're logged under the lock
+     * of the parent, like {@link #write}, once the file is deleted the channel changes its unlinked content unlogged.
+     */
+    private final class ChannelWriter implements ContentChannel.ContentWriter {
+
+        @Override
+        public int write(SegmentedContent content, long position, ByteBuffer src) {
+            MUTATION_LOG.begin(_parent, false);
+            try {
+                Directory parent = MUTATION_LOG.isLogging() ? lockParent() : null;
+                if (parent == null) {
+                    return content.write(position, src);
+                }
+                try {
+                    if (_content == content) {
+                        MUTATION_LOG.logWrite(parent, _name, position, src);
+                    }
+                    return content.write(position, src);
+                } finally {
+                    parent.unlock();
+                }
+            } finally {
+                MUTATION_LOG.end();
+            }
+        }
+
+        @Override
+        public long transfer(SegmentedContent source, long sourcePosition, long count,
+                             SegmentedContent content, long position) {
+            MUTATION_LOG.begin(_parent, false);
+            try {
+                Directory parent = MUTATION_LOG.isLogging() ? lockParent() : null;
+                if (parent == null) {
+                    return source.transferTo(sourcePosition, count, content, position);
+                }
+                try {
+                    long transferred = source.transferTo(sourcePosition, count, content, position);
+                    if (_content == content) {
+                        logTransferred(parent, content, position, transferred);
+                    }
+                    return transferred;
+                } finally {
+                    parent.unlock();
+                }
+            } finally {
+                MUTATION_LOG.end();
+            }
+        }
+
+        @Override
+        public void truncate(SegmentedContent content, long size) {
+            MUTATION_LOG.begin(_parent, false);
+            try {
+                Directory parent = MUTATION_LOG.isLogging() ? lockParent() : null;
+                if (parent == null) {
+                    content.truncate(size);
+                    return;
+                }
+                try {
+                    if (_content == content) {
+                        MUTATION_LOG.logTruncate(parent, _name, size);
+                    }
+                    content.truncate(size);
+                } finally {
+                    parent.unlock();
+                }
+            } finally {
+                MUTATION_LOG.end();
+            }
+        }
+
+        /**
+         * Log transferred bytes as positional writes, read back from the content chunk by chunk.
+         */
+        private void logTransferred(Directory parent, SegmentedContent content, long position, long transferred) {
+            ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(transferred, SegmentedContent.SEGMENT_SIZE));
+            for (long logged = 0; logged < transferred; ) {
+                chunk.clear().limit((int) Math.min(chunk.capacity(), transferred - logged));
+                content.read(position + logged, chunk);
+                chunk.flip();
+                MUTATION_LOG.logWrite(parent, _name, position + logged, chunk);
+                logged += chunk.remaining();
+            }
+        }
+    }
 }
@@ -3,21 +3,70 @@ package imfs.filesystem;
 import com.google.common.base.Preconditions;
 import imfs.api.File;
 import imfs.utils.FileNamePredicate;
+import imfs.utils.FilePattern;
 
+import javax.annotation.Nullable;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 
 /**
  * Directory class representing a directory/folder in the in-memory file system.
+ *
+ * Every directory has its own lock guarding its sub files, it's held by any change to the directory
+ * and to the name or parent of a sub file. Lookups read the concurrent sub file map without locking.
+ * An operation touching two directories takes both locks in the order of directory ids, ids only grow
+ * so a parent is always locked before its sub directories.
+ *
+ * While snapshots are open, each change to the sub files also records the replaced entry in an undo log under
+ * the version of the change, a {@link TreeSnapshot} undoes the changes newer than its version to list the sub files
+ * as of the snapshot. Records are trimmed once no snapshot needs them, see {@link TreeVersions}.
+ *
+ * Changes are appended to the {@link MutationLog} under the same locks, right before they are applied.
+ *
+ * Sub files of a small directory are kept in a {@link SmallSubFileMap}, replaced by a concurrent hash map once
+ * the directory grows past it.
+ *
+ * A huge directory can additionally keep its sub files in a sorted index, so {@link #list} pages through them
+ * in name order without sorting, lookups by name still go to the hash map.
  */
 public class Directory implements File {
     public static final String ROOT_PATH = "/";
 
-    private Directory _parent;
-    private String _name;
-    private Map<String, File> _nameToSubFile;
+    private static final AtomicLong ID_GENERATOR = new AtomicLong();
+    private static final TreeVersions VERSIONS = TreeVersions.getInstance();
+    private static final NameIndex NAME_INDEX = NameIndex.getInstance();
+    private static final NameTable NAME_TABLE = NameTable.getInstance();
+    private static final MutationLog MUTATION_LOG = MutationLog.getInstance();
+    // bumped when a directory is renamed, moved or deleted, as the paths of all files below it change
+    private static final AtomicLong PATH_EPOCH = new AtomicLong();
+    private static final AtomicLongFieldUpdater<Directory> RESOLVE_STAMP =
+            AtomicLongFieldUpdater.newUpdater(Directory.class, "_resolveStamp");
+
+    private final long _id = ID_GENERATOR.getAndIncrement();
+    private final ReentrantLock _lock = new ReentrantLock();
+    private volatile Directory _parent;
+    private volatile String _name;
+    private volatile Map<String, File> _nameToSubFile;
+    // same mappings in name order, null unless the sorted index is enabled, changed under the lock
+    private volatile @Nullable NavigableMap<String, File> _sortedSubFiles;
+    private volatile CachedPath _fullPath;
+    private volatile long _resolveStamp;
+    // newest first, trimmed as changes are recorded
+    private volatile UndoRecord _undoLog;
+    // lowest version in the undo log, guarded by the lock
+    private long _undoLogOldest = Long.MAX_VALUE;
     private boolean isRoot = false;
 
     public Directory() {
@@ -28,9 +77,10 @@ public class Directory implements File {
     }
 
     public Directory(String name, Directory des) {
-        _name = name;
+        _name = NAME_TABLE.intern(name);
         _parent = des;
-        _nameToSubFile = new ConcurrentHashMap<>();
+        // most directories stay small, a growing one switches to a concurrent map in putSubFile
+        _nameToSubFile = new SmallSubFileMap();
     }
 
     /**
@@ -39,18 +89,39 @@ public class Directory implements File {
      * @param isDirectory  type of file
      * @return file if created successfully
      */
-    public synchronized File createNewSubFile(String fileToCreate, boolean isDirectory) {
+    public File createNewSubFile(String fileToCreate, boolean isDirectory) {
         Preconditions.checkArgument(FileNamePredicate.getInstance().test(fileToCreate),
                 String.format("sub file or directory name %s provided is invalid", fileToCreate));
+        MUTATION_LOG.begin(this, false);
+        _lock.lock();
+        VERSIONS.begin();
+        try {
+            return createSubFileLocked(fileToCreate, isDirectory);
+        } finally {
+            _lock.unlock();
+            VERSIONS.commit();
+            MUTATION_LOG.end();
+        }
+    }
+
+    /**
+     * Create a new sub file, callers hold the lock of this directory, are in a change of {@link TreeVersions}
+     * and have begun a change of the {@link MutationLog}.
+     */
+    File createSubFileLocked(String fileToCreate, boolean isDirectory) {
+        Preconditions.checkState(_nameToSubFile != null, "Directory is deleted, can not create %s.", fileToCreate);
         Preconditions.checkState(!_nameToSubFile.containsKey(fileToCreate),
                 String.format("A subdirectory or file %s already exists.", fileToCreate));
+        MUTATION_LOG.logCreate(this, fileToCreate, isDirectory);
         File newSub;
         if(isDirectory) {
             newSub = new Directory(fileToCreate, this);
+            putSubFile(newSub.getName(), newSub);
         } else {
+            // registers itself to this directory
             newSub = new ConcreteFile(fileToCreate, this);
         }
-        _nameToSubFile.put(fileToCreate, newSub);
+        // a new name can't make any cached path stale, only successful resolutions are cached
         return newSub;
     }
 
@@ -62,16 +133,27 @@ public class Directory implements File {
      * @return true if a deletion is executed successfully, otherwise false
      */
     public boolean deleteSubFile(String fileToDelete, boolean isDeadFile) {
-        File entry = _nameToSubFile.getOrDefault(fileToDelete, null);
-        if (entry == null) {
-            return false;
-        }
+        // deleting a live sub directory changes the paths below it
+        MUTATION_LOG.begin(this, !isDeadFile);
+        _lock.lock();
+        VERSIONS.begin();
+        try {
+            File entry = getSubFile(fileToDelete);
+            if (entry == null) {
+                return false;
+            }
+            MUTATION_LOG.logDeleteSubFile(this, fileToDelete, isDeadFile);
 
-        if (!isDeadFile) {
-            entry.delete();
+            if (!isDeadFile) {
+                entry.delete();
+            }
+            removeSubFile(fileToDelete, entry);
+            return true;
+        } finally {
+            _lock.unlock();
+            VERSIONS.commit();
+            MUTATION_LOG.end();
         }
-        _nameToSubFile.remove(fileToDelete);
-        return true;
     }
 
     /**
@@ -90,8 +172,24 @@ public class Directory implements File {
         if (!FileNamePredicate.getInstance().test(name)) {
             return false;
         }
-        _name = name;
-        return true;    }
+        if (isRoot) {
+            _name = name;
+            return true;
+        }
+        for (Directory parent = _parent; parent != null; parent = _parent) {
+            if (parent.renameSubFile(this, name, newName -> {
+                _name = newName;
+                invalidateFullPaths();
+            })) {
+                return true;
+            }
+            if (parent == _parent) {
+                // name is taken
+                return false;
+            }
+        }
+        return false;
+    }
 
     /**
      * {@inheritDoc}
@@ -109,7 +207,52 @@ public class Directory implements File {
         if (isRoot) {
             return ROOT_PATH;
         }
-        return _parent.getFullPath().concat(_name).concat(DELIMITER);
+        long epoch = PATH_EPOCH.get();
+        CachedPath cached = _fullPath;
+        if (cached != null && cached.isValid(epoch, 0)) {
+            return cached._path;
+        }
+        String name = _name;
+        Directory parent = _parent;
+        if (name == null || parent == null) {
+            // deleted
+            return null;
+        }
+        // a path built from names changed meanwhile is cached under the old epoch, so it's never served
+        String path = parent.getFullPath().concat(name).concat(DELIMITER);
+        _fullPath = new CachedPath(path, epoch, 0);
+        return path;
+    }
+
+    /**
+     * Current path epoch, read it before reading the names a full path is built from.
+     */
+    static long pathEpoch() {
+        return PATH_EPOCH.get();
+    }
+
+    /**
+     * Invalidate the memoized full paths of all files, to be called after a directory's name or parent changed.
+     * File renames and moves only reset the path of the file itself.
+     */
+    private static void invalidateFullPaths() {
+        PATH_EPOCH.incrementAndGet();
+    }
+
+    /**
+     * Stamp of the paths resolved through this directory, see {@link PathCache}.
+     * It changes after a sub file is unmapped or replaced, or after this directory is moved or deleted,
+     * so it must be read before a sub file or the parent is looked up.
+     */
+    long getResolveStamp() {
+        return _resolveStamp;
+    }
+
+    /**
+     * Invalidate the cached paths resolved through this directory, to be called after the change.
+     */
+    private void invalidateResolvedPaths() {
+        RESOLVE_STAMP.incrementAndGet(this);
     }
 
     /**
@@ -132,23 +275,131 @@ public class Directory implements File {
 
     /**
      * {@inheritDoc}
+     * The copy is built aside in O(number of files) and mapped into the target directory in one step,
+     * file contents are shared and only duplicated once either side is written. The subtree is walked
+     * without its locks, a copy of a logged tree runs under the exclusive path lock of the {@link MutationLog}
+     * to keep other changes out, in other trees it sees changes made meanwhile or not.
      */
     @Override
-    public synchronized boolean delete() {
+    public @Nullable File copy(String des, boolean createOnNonExist, FileModifyOptions modifyOption) {
+        Directory parent = _parent;
+        if (isRoot || parent == null) {
+            System.err.println("Can not copy Root or deleted directory " + _name);
+            return null;
+        }
+        File folderToCopyTo = new PathTraverser(findRoot(parent), parent).traverseToTargetDirectory(des, createOnNonExist);
+        Directory dir = (Directory) folderToCopyTo;
+        String newName = des.contains(File.DELIMITER) ? des.substring(des.lastIndexOf(File.DELIMITER) + 1) : des;
+        Preconditions.checkState(FileNamePredicate.getInstance().test(newName),
+                String.format("directory name \"%s\" provided is invalid", newName));
+
+        MUTATION_LOG.begin(dir, true);
+        try {
+            Directory copy = copyDetached(newName);
+            parent = _parent;
+            if (copy == null || parent == null) {
+                System.err.println("Directory is deleted, can not be copied!");
+                return null;
+            }
+            dir.lock();
+            VERSIONS.begin();
+            try {
+                MUTATION_LOG.logCopy(parent, _name, dir, newName, modifyOption);
+                if (dir.moveFileToDirectory(copy, modifyOption) && dir.getSubFile(newName) == copy) {
+                    return copy;
+                }
+                // the copy was indexed as it was built, it's dropped with its files
+                NAME_INDEX.removeSubTree(copy);
+                return null;
+            } finally {
+                dir.unlock();
+                VERSIONS.commit();
+            }
+        } finally {
+            MUTATION_LOG.end();
+        }
+    }
+
+    /**
+     * @return a detached copy of this directory and its subtree under the given name, null if this directory is deleted
+     */
+    private @Nullable Directory copyDetached(String name) {
+        Map<String, File> nameToSubFile = _nameToSubFile;
+        if (nameToSubFile == null) {
+            return null;
+        }
+        Directory copy = new Directory(name, null);
+        for (Map.Entry<String, File> entry : nameToSubFile.entrySet()) {
+            File sub = entry.getValue();
+            File subCopy = sub.isDirectory() ?
+                    ((Directory) sub).copyDetached(entry.getKey()) :
+                    ((ConcreteFile) sub).copyDetached(entry.getKey());
+            // sub files deleted meanwhile are left out
+            if (subCopy != null) {
+                copy.moveFileToDirectory(subCopy, FileModifyOptions.Replace);
+            }
+        }
+        return copy;
+    }
+
+    private static Directory findRoot(Directory dir) {
+        while (!dir.isRoot()) {
+            dir = dir.getParent();
+        }
+        return dir;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean delete() {
         if (isRoot) {
             System.err.println("Can not delete Root directory " + getFullPath());
             return false;
         }
-        for (Map.Entry<String, File> entry : _nameToSubFile.entrySet()) {
-            File sub = entry.getValue();
-            sub.delete();
+        MUTATION_LOG.begin(this, true);
+        try {
+            return deleteFromParent();
+        } finally {
+            MUTATION_LOG.end();
+        }
+    }
+
+    private boolean deleteFromParent() {
+        while (true) {
+            Directory parent = _parent;
+            if (parent == null) {
+                // deleted already
+                return false;
+            }
+            lockInOrder(parent, this);
+            if (parent != _parent) {
+                // moved before the locks were taken, retry with the new parent
+                unlockBoth(parent, this);
+                continue;
+            }
+            VERSIONS.begin();
+            try {
+                MUTATION_LOG.logDelete(parent, _name);
+                for (Map.Entry<String, File> entry : _nameToSubFile.entrySet()) {
+                    File sub = entry.getValue();
+                    sub.delete();
+                }
+                _nameToSubFile.clear();
+                _nameToSubFile = null;
+                _sortedSubFiles = null;
+                parent.removeSubFile(_name, this);
+                _name = null;
+                _parent = null;
+                invalidateFullPaths();
+                invalidateResolvedPaths();
+                return true;
+            } finally {
+                unlockBoth(parent, this);
+                VERSIONS.commit();
+            }
         }
-        _nameToSubFile.clear();
-        _nameToSubFile = null;
-        _parent.getNameToSubFile().remove(_name);
-        _name = null;
-        _parent = null;
-        return true;
     }
 
     /**
@@ -158,32 +409,232 @@ public class Directory implements File {
      * @param modifyOption resolve option of a file name collision
      * @return true if file is created successfully, otherwise false
      */
-    public synchronized boolean moveFileToDirectory(File file, FileModifyOptions modifyOption) {
-        if (_nameToSubFile.containsKey(file.getName())) {
-            //TODO: add test cases for various modify options
-            switch (modifyOption) {
-                case Replace:
-                    File existing = _nameToSubFile.get(file.getName());
-                    if (existing.isDirectory() && !file.isDirectory()) {
-                        System.err.println("Directory " + existing.getFullPath() + " already exists as a folder, can not be replaced by a file!");
+    public boolean moveFileToDirectory(File file, FileModifyOptions modifyOption) {
+        _lock.lock();
+        VERSIONS.begin();
+        try {
+            if (_nameToSubFile == null) {
+                System.err.println("Directory is deleted, can not move " + file.getName() + " into it!");
+                return false;
+            }
+            if (_nameToSubFile.containsKey(file.getName())) {
+                //TODO: add test cases for various modify options
+                switch (modifyOption) {
+                    case Replace:
+                        File existing = _nameToSubFile.get(file.getName());
+                        if (existing.isDirectory() && !file.isDirectory()) {
+                            System.err.println("Directory " + existing.getFullPath() + " already exists as a folder, can not be replaced by a file!");
+                            return false;
+                        }
+                        System.out.println("File " + file.getName() + " already exists, replacing it now!");
+                        break;
+                    case Abort:
+                        System.out.println("File " + file.getName() + " already exists, aborting action!");
                         return false;
-                    }
-                    System.out.println("File " + file.getName() + " already exists, replacing it now!");
-                    break;
-                case Abort:
-                    System.out.println("File " + file.getName() + " already exists, aborting action!");
-                    return false;
-                case KeepPrevious:
-                    //TODO: this would make the file inaccessible but leave a lingering file pointer
-                    System.out.println("File " + file.getName() + " already exists, keeping existing version!");
-                    return true;
-                default:
-                    System.err.println("File " + file.getName() + " already exists, please use replace/rename/keepPrevious options!");
-            }
-        }
-        file.setParent(this);
-        _nameToSubFile.put(file.getName(), file);
-        return true;
+                    case KeepPrevious:
+                        //TODO: this would make the file inaccessible but leave a lingering file pointer
+                        System.out.println("File " + file.getName() + " already exists, keeping existing version!");
+                        return true;
+                    default:
+                        System.err.println("File " + file.getName() + " already exists, please use replace/rename/keepPrevious options!");
+                }
+            }
+            file.setParent(this);
+            putSubFile(file.getName(), file);
+            return true;
+        } finally {
+            _lock.unlock();
+            VERSIONS.commit();
+        }
+    }
+
+    /**
+     * Map a name to the given sub file, recording the replaced entry. The name is the one the file holds,
+     * so an interned name, see {@link NameTable}, is shared by the map too.
+     * Callers hold the lock of this directory and are in a change of {@link TreeVersions}.
+     */
+    void putSubFile(String name, File file) {
+        Map<String, File> nameToSubFile = _nameToSubFile;
+        File previous = nameToSubFile.get(name);
+        if (previous == null && nameToSubFile instanceof SmallSubFileMap && ((SmallSubFileMap) nameToSubFile).isFull()) {
+            // readers still holding the small map see the sub files as of before this change
+            nameToSubFile = new ConcurrentHashMap<>(nameToSubFile);
+            _nameToSubFile = nameToSubFile;
+        }
+        recordUndo(name, previous);
+        nameToSubFile.put(name, file);
+        NavigableMap<String, File> sortedSubFiles = _sortedSubFiles;
+        if (sortedSubFiles != null) {
+            sortedSubFiles.put(name, file);
+        }
+        if (previous != null) {
+            NAME_INDEX.remove(name, previous);
+            if (previous != file && previous.isDirectory()) {
+                // a replaced directory is dropped with its files
+                NAME_INDEX.removeSubTree((Directory) previous);
+            }
+            invalidateResolvedPaths();
+        }
+        NAME_INDEX.add(name, file);
+    }
+
+    /**
+     * Unmap a name if it's still mapped to the given sub file, recording the removed entry.
+     * Callers hold the lock of this directory and are in a change of {@link TreeVersions}.
+     */
+    void removeSubFile(String name, File file) {
+        Map<String, File> nameToSubFile = _nameToSubFile;
+        if (nameToSubFile != null && nameToSubFile.get(name) == file) {
+            // the undo record must be visible before the change, snapshots read the map first
+            recordUndo(name, file);
+            nameToSubFile.remove(name);
+            NavigableMap<String, File> sortedSubFiles = _sortedSubFiles;
+            if (sortedSubFiles != null) {
+                sortedSubFiles.remove(name);
+            }
+            NAME_INDEX.remove(name, file);
+            invalidateResolvedPaths();
+        }
+    }
+
+    /**
+     * Rename a sub file of this directory, re-mapping it under the new name.
+     * @param file sub file to rename
+     * @param newName new name
+     * @param nameSetter sets the name field of the sub file, called under the lock of this directory
+     * @return false if the file isn't a sub file of this directory anymore or the new name is taken
+     */
+    boolean renameSubFile(File file, String name, Consumer<String> nameSetter) {
+        String newName = NAME_TABLE.intern(name);
+        MUTATION_LOG.begin(this, file.isDirectory());
+        _lock.lock();
+        VERSIONS.begin();
+        try {
+            if (file.getParent() != this) {
+                return false;
+            }
+            String oldName = file.getName();
+            if (getSubFile(oldName) != file) {
+                // not mapped here, e.g. built directly with a parent, only the name changes
+                nameSetter.accept(newName);
+                return true;
+            }
+            if (getSubFile(newName) != null) {
+                System.err.println("File " + newName + " already exists, can not rename " + oldName + "!");
+                return false;
+            }
+            MUTATION_LOG.logRename(this, oldName, newName);
+            removeSubFile(oldName, file);
+            nameSetter.accept(newName);
+            putSubFile(newName, file);
+            return true;
+        } finally {
+            _lock.unlock();
+            VERSIONS.commit();
+            MUTATION_LOG.end();
+        }
+    }
+
+    private void recordUndo(String name, @Nullable File previous) {
+        if (!VERSIONS.isRecording()) {
+            // no snapshot is open or being opened
+            return;
+        }
+        UndoRecord log = _undoLog;
+        long watermark = VERSIONS.watermark();
+        if (_undoLogOldest <= watermark) {
+            log = trimUndoLog(log, watermark);
+        }
+        if (log == null) {
+            VERSIONS.undoLogged(this);
+        }
+        long version = VERSIONS.currentVersion();
+        _undoLogOldest = Math.min(_undoLogOldest, version);
+        _undoLog = new UndoRecord(version, name, previous, log);
+    }
+
+    /**
+     * Drop the undo records no snapshot needs anymore, called under the lock of this directory.
+     * @return true if no record is left
+     */
+    boolean trimUndoLog() {
+        long watermark = VERSIONS.watermark();
+        if (_undoLogOldest <= watermark) {
+            _undoLog = trimUndoLog(_undoLog, watermark);
+        }
+        return _undoLog == null;
+    }
+
+    /**
+     * Drop undo records no snapshot needs anymore, records are immutable so the kept ones are copied.
+     */
+    private @Nullable UndoRecord trimUndoLog(@Nullable UndoRecord log, long watermark) {
+        List<UndoRecord> kept = new ArrayList<>();
+        for (UndoRecord record = log; record != null; record = record._next) {
+            if (record._version > watermark) {
+                kept.add(record);
+            }
+        }
+        UndoRecord trimmed = null;
+        _undoLogOldest = Long.MAX_VALUE;
+        for (int i = kept.size() - 1; i >= 0; i--) {
+            UndoRecord record = kept.get(i);
+            trimmed = new UndoRecord(record._version, record._name, record._previous, trimmed);
+            _undoLogOldest = Math.min(_undoLogOldest, record._version);
+        }
+        return trimmed;
+    }
+
+    @Nullable UndoRecord getUndoLog() {
+        return _undoLog;
+    }
+
+    /**
+     * Lock the given directories, in the order of their ids so that two operations locking the same
+     * directories can't deadlock. The same directory can be passed twice, it's only locked once.
+     */
+    static void lockInOrder(Directory first, Directory second) {
+        if (first == second) {
+            first._lock.lock();
+            return;
+        }
+        if (first._id > second._id) {
+            Directory tmp = first;
+            first = second;
+            second = tmp;
+        }
+        first._lock.lock();
+        second._lock.lock();
+    }
+
+    /**
+     * Unlock directories locked by {@link #lockInOrder(Directory, Directory)}.
+     */
+    static void unlockBoth(Directory first, Directory second) {
+        second._lock.unlock();
+        if (first != second) {
+            first._lock.unlock();
+        }
+    }
+
+    /**
+     * Lock this directory alone, for changes to a single sub file.
+     */
+    void lock() {
+        _lock.lock();
+    }
+
+    void unlock() {
+        _lock.unlock();
+    }
+
+    /**
+     * Look up a direct sub file without locking.
+     * @return the sub file, null if it doesn't exist or this directory is deleted
+     */
+    public @Nullable File getSubFile(String name) {
+        Map<String, File> nameToSubFile = _nameToSubFile;
+        return nameToSubFile == null ? null : nameToSubFile.get(name);
     }
 
     /**
@@ -213,6 +664,124 @@ public class Directory implements File {
         }
     }
 
+    /**
+     * Find sub {@link File}s in this {@link Directory} matching the given {@link FilePattern}, descending only into
+     * sub directories the pattern can still match below. Names the pattern spells out are looked up directly.
+     * @param pattern compiled pattern, matched relative to this directory
+     * @param consumer consumer of matching files
+     */
+    public void find(FilePattern pattern, Consumer<File> consumer) {
+        find(pattern, pattern.initialState(), consumer);
+    }
+
+    private void find(FilePattern pattern, long state, Consumer<File> consumer) {
+        List<String> literalNames = pattern.literalNames(state);
+        if (literalNames != null) {
+            for (String name : literalNames) {
+                File sub = getSubFile(name);
+                if (sub != null) {
+                    visit(pattern, state, name, sub, consumer);
+                }
+            }
+            return;
+        }
+        Map<String, File> nameToSubFile = _nameToSubFile;
+        if (nameToSubFile == null) {
+            return;
+        }
+        for (Map.Entry<String, File> sub : nameToSubFile.entrySet()) {
+            visit(pattern, state, sub.getKey(), sub.getValue(), consumer);
+        }
+    }
+
+    private static void visit(FilePattern pattern, long state, String name, File file, Consumer<File> consumer) {
+        long next = pattern.next(state, name);
+        if (pattern.isMatch(next)) {
+            consumer.accept(file);
+        }
+        if (file.isDirectory() && pattern.canMatchBelow(next)) {
+            ((Directory) file).find(pattern, next, consumer);
+        }
+    }
+
+    /**
+     * Start keeping the sub files of this directory in a sorted index, worth it for directories listed page by page.
+     */
+    public void enableSortedIndex() {
+        _lock.lock();
+        try {
+            Map<String, File> nameToSubFile = _nameToSubFile;
+            if (nameToSubFile != null && _sortedSubFiles == null) {
+                _sortedSubFiles = new ConcurrentSkipListMap<>(nameToSubFile);
+            }
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public void disableSortedIndex() {
+        _lock.lock();
+        try {
+            _sortedSubFiles = null;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public boolean hasSortedIndex() {
+        return _sortedSubFiles != null;
+    }
+
+    /**
+     * List a page of sub files in name order, without locking. Paging by the last key of a page resumes
+     * the listing where it stopped, files added or removed meanwhile may show up or not.
+     * The keys are the names the files were listed under, a file renamed meanwhile keeps its old key,
+     * so the keys rather than the names of the files must be used to resume.
+     * With the sorted index a page costs O(log n + limit), otherwise a scan of all sub files keeping
+     * the smallest names in a heap of the page size.
+     * @param startAfter name to list the sub files after, null to start with the first one
+     * @param limit maximum number of sub files to list
+     * @return sub files named after the given name by the names they're listed under, empty once all are listed
+     */
+    public SortedMap<String, File> list(@Nullable String startAfter, int limit) {
+        Preconditions.checkArgument(limit > 0, "limit %s must be positive", limit);
+        SortedMap<String, File> page = new TreeMap<>();
+        NavigableMap<String, File> sortedSubFiles = _sortedSubFiles;
+        if (sortedSubFiles != null) {
+            NavigableMap<String, File> tail = startAfter == null ? sortedSubFiles : sortedSubFiles.tailMap(startAfter, false);
+            for (Map.Entry<String, File> entry : tail.entrySet()) {
+                if (page.size() == limit) {
+                    break;
+                }
+                page.put(entry.getKey(), entry.getValue());
+            }
+            return page;
+        }
+        Map<String, File> nameToSubFile = _nameToSubFile;
+        if (nameToSubFile == null) {
+            return page;
+        }
+        // largest kept name on top, replaced by any smaller one once the page is full
+        PriorityQueue<Map.Entry<String, File>> smallest =
+                new PriorityQueue<>(Map.Entry.<String, File>comparingByKey().reversed());
+        for (Map.Entry<String, File> entry : nameToSubFile.entrySet()) {
+            String name = entry.getKey();
+            if (startAfter != null && name.compareTo(startAfter) <= 0) {
+                continue;
+            }
+            if (smallest.size() < limit) {
+                smallest.offer(entry);
+            } else if (name.compareTo(smallest.peek().getKey()) < 0) {
+                smallest.poll();
+                smallest.offer(entry);
+            }
+        }
+        for (Map.Entry<String, File> entry : smallest) {
+            page.put(entry.getKey(), entry.getValue());
+        }
+        return page;
+    }
+
     public Map<String, File> getNameToSubFile() {
         return _nameToSubFile;
     }
@@ -227,6 +796,8 @@ public class Directory implements File {
             return false;
         }
         _parent = (Directory) parent;
+        invalidateFullPaths();
+        invalidateResolvedPaths();
         return true;
     }
 
@@ -236,4 +807,21 @@ public class Directory implements File {
     public boolean hasFile(String subFileName) {
         return _nameToSubFile.containsKey(subFileName);
     }
+
+    /**
+     * Sub file mapped to a name before the change of a version, null if the name wasn't mapped.
+     */
+    static final class UndoRecord {
+        final long _version;
+        final String _name;
+        final @Nullable File _previous;
+        final @Nullable UndoRecord _next;
+
+        UndoRecord(long version, String name, @Nullable File previous, @Nullable UndoRecord next) {
+            _version = version;
+            _name = name;
+            _previous = previous;
+            _next = next;
+        }
+    }
 }
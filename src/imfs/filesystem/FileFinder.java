@@ -0,0 +1,143 @@
+package imfs.filesystem;
+
+import com.google.common.base.Preconditions;
+import imfs.api.File;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+
+
+/**
+ * Finds {@link File}s by exact name in parallel on a {@link ForkJoinPool}, as a parallel
+ * counterpart of {@link Directory#findExactMath(String, List, boolean)}.
+ *
+ * A task walks its directories depth first and keeps the sub directories it finds as pending work,
+ * once it has more pending directories than the split threshold it forks half of them as a new task,
+ * so idle workers steal subtrees of wide and deep trees alike. Every task collects its hits in its own
+ * buffer, buffers are either merged when tasks are joined or handed over to a consumer as they fill up.
+ */
+public class FileFinder {
+    public static final int DEFAULT_SPLIT_THRESHOLD = 8;
+    // hits buffered by a task before they are handed over to a streaming consumer
+    private static final int STREAM_BATCH_SIZE = 256;
+
+    private static final FileFinder DEFAULT_FINDER = new FileFinder(ForkJoinPool.commonPool(), DEFAULT_SPLIT_THRESHOLD);
+
+    private final ForkJoinPool _pool;
+    private final int _splitThreshold;
+
+    /**
+     * @param pool pool to run find tasks on
+     * @param splitThreshold number of pending directories a task keeps before forking part of them
+     */
+    public FileFinder(ForkJoinPool pool, int splitThreshold) {
+        Preconditions.checkArgument(splitThreshold > 0, "split threshold %s must be positive", splitThreshold);
+        _pool = pool;
+        _splitThreshold = splitThreshold;
+    }
+
+    public static FileFinder getInstance() {
+        return DEFAULT_FINDER;
+    }
+
+    /**
+     * Find sub {@link File}s of the given {@link Directory} which exactly match the given name.
+     * @param dir directory to search in
+     * @param name file name
+     * @param recursive flag for recursive find
+     * @return matching files, in no particular order
+     */
+    public List<File> findExactMatch(Directory dir, String name, boolean recursive) {
+        return find(dir, name, recursive, null);
+    }
+
+    /**
+     * Find sub {@link File}s of the given {@link Directory} which exactly match the given name,
+     * handing hits over to the consumer in batches while the search goes on.
+     * The consumer is called from pool threads, possibly concurrently, and must be thread-safe.
+     * Returns once all hits have been consumed.
+     */
+    public void findExactMatch(Directory dir, String name, boolean recursive, Consumer<File> consumer) {
+        find(dir, name, recursive, consumer);
+    }
+
+    private List<File> find(Directory dir, String name, boolean recursive, @Nullable Consumer<File> consumer) {
+        FindTask task = new FindTask(List.of(dir), name, recursive, consumer);
+        if (!recursive) {
+            // a single directory, nothing to split
+            return task.compute();
+        }
+        return _pool.invoke(task);
+    }
+
+    // tasks only live in the pool, they're never serialized
+    @SuppressWarnings("serial")
+    private final class FindTask extends RecursiveTask<List<File>> {
+        private final List<Directory> _dirs;
+        private final String _name;
+        private final boolean _recursive;
+        private final @Nullable Consumer<File> _consumer;
+
+        FindTask(List<Directory> dirs, String name, boolean recursive, @Nullable Consumer<File> consumer) {
+            _dirs = dirs;
+            _name = name;
+            _recursive = recursive;
+            _consumer = consumer;
+        }
+
+        @Override
+        protected List<File> compute() {
+            Deque<Directory> pending = new ArrayDeque<>(_dirs);
+            List<FindTask> forked = new ArrayList<>();
+            List<File> hits = new ArrayList<>();
+            while (!pending.isEmpty()) {
+                Map<String, File> subFiles = pending.pop().getNameToSubFile();
+                if (subFiles == null) {
+                    // deleted while searching
+                    continue;
+                }
+                for (Map.Entry<String, File> sub : subFiles.entrySet()) {
+                    File file = sub.getValue();
+                    if (_name.equals(sub.getKey())) {
+                        hits.add(file);
+                        if (_consumer != null && hits.size() >= STREAM_BATCH_SIZE) {
+                            flush(hits);
+                        }
+                    }
+                    if (_recursive && file.isDirectory()) {
+                        pending.push((Directory) file);
+                    }
+                }
+                if (pending.size() > _splitThreshold) {
+                    // hand the oldest, likely shallowest, half over to other workers
+                    List<Directory> split = new ArrayList<>(pending.size() / 2);
+                    while (split.size() < pending.size()) {
+                        split.add(pending.removeLast());
+                    }
+                    FindTask task = new FindTask(split, _name, _recursive, _consumer);
+                    task.fork();
+                    forked.add(task);
+                }
+            }
+            if (_consumer != null) {
+                flush(hits);
+            }
+            for (FindTask task : forked) {
+                hits.addAll(task.join());
+            }
+            return hits;
+        }
+
+        private void flush(List<File> hits) {
+            hits.forEach(_consumer);
+            hits.clear();
+        }
+    }
+}
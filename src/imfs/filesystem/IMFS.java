@@ -3,30 +3,59 @@ package imfs.filesystem;
 import com.google.common.annotations.VisibleForTesting;
 import imfs.api.File;
 import imfs.factories.SingletonRootDirectoryFactory;
+import imfs.persistence.SnapshotWriter;
+import imfs.utils.FilePattern;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.SortedMap;
 
 
 /**
  * Class of In-Memory File System, it instantiates a default root {@link Directory}
  * and provides a set of file system operations similar to a Linux console commands.
- * TODO: build a factory initialising from a backup IMFS file
+ *
+ * Each {@link IMFS} instance is a session over a shared file tree: the current working directory is
+ * the only state it owns. Every operation reads the cwd once and resolves paths with its own
+ * {@link PathTraverser}, so any number of sessions, or threads sharing a session, can work on the tree in parallel.
+ * Use {@link #newSession()} to serve another client from the same tree.
+ * A tree can be saved with {@link #saveSnapshot(Path)} and booted from with
+ * {@link imfs.factories.SnapshotRootDirectoryFactory}.
  */
 public class IMFS {
-    private Directory _root;
+    private final Directory _root;
 
-    private Directory _cwd;
+    private volatile Directory _cwd;
 
-    private PathTraverser _pathTraverser;
+    // serves lookups and finds instead of the tree while set
+    private volatile @Nullable NodeArena _arena;
 
     public IMFS() {
         // universal root
-        _root = SingletonRootDirectoryFactory.getInstance().getRoot();
-        _cwd = _root;
-        _pathTraverser = new PathTraverser(_root, _cwd);
+        this(SingletonRootDirectoryFactory.getInstance().getRoot());
+    }
+
+    /**
+     * Create a session over the file tree of the given root, starting from the root.
+     */
+    public IMFS(Directory root) {
+        _root = root;
+        _cwd = root;
+    }
+
+    /**
+     * Open a new session over the same file tree, starting from this session's current working directory.
+     * The new session changes its working directory independently of this one.
+     */
+    public IMFS newSession() {
+        IMFS session = new IMFS(_root);
+        session._cwd = _cwd;
+        session._arena = _arena;
+        return session;
     }
 
     /**
@@ -53,8 +82,7 @@ public class IMFS {
             return null;
         }
         _cwd = (Directory) found;
-        _pathTraverser.setCwd(_cwd);
-        return _cwd;
+        return (Directory) found;
     }
 
     /**
@@ -72,19 +100,43 @@ public class IMFS {
      * @param displayOption listing info options like nameOnly/fullPath/
      */
     public void ls(FilePrintOptions displayOption) {
-        Collection<File> allFiles = (Collection<File>) _cwd.getFileContent();
+        ls(_cwd, displayOption);
+    }
+
+    /**
+     * List a page of {@link File}s under current working directory in name order, see {@link Directory#list}.
+     * @param displayOption listing info options like nameOnly/fullPath/
+     * @param startAfter cursor returned for the previous page, null to list the first page
+     * @param limit maximum number of files to list
+     * @return cursor to list the next page with, null once all files are listed
+     */
+    public @Nullable String ls(FilePrintOptions displayOption, @Nullable String startAfter, int limit) {
+        SortedMap<String, File> page = _cwd.list(startAfter, limit);
+        for (File file : page.values()) {
+            print(file, displayOption);
+        }
+        // the key the last file was listed under, its name can have changed meanwhile
+        return page.size() < limit ? null : page.lastKey();
+    }
+
+    private static void ls(Directory dir, FilePrintOptions displayOption) {
+        Collection<File> allFiles = (Collection<File>) dir.getFileContent();
         for(File file : allFiles) {
-            switch (displayOption) {
-                case FilePrintOptions.NameOnly:
-                    file.printName();
-                    break;
-                case FilePrintOptions.FullPath:
-                    file.printFullPath();
-                    break;
-                case FilePrintOptions.FullMetaData:
-                    // TODO: change to full metadata print
-                    file.printFullPath();
-            }
+            print(file, displayOption);
+        }
+    }
+
+    private static void print(File file, FilePrintOptions displayOption) {
+        switch (displayOption) {
+            case FilePrintOptions.NameOnly:
+                file.printName();
+                break;
+            case FilePrintOptions.FullPath:
+                file.printFullPath();
+                break;
+            case FilePrintOptions.FullMetaData:
+                // TODO: change to full metadata print
+                file.printFullPath();
         }
     }
 
@@ -142,19 +194,144 @@ public class IMFS {
         return true;
     }
 
+    /**
+     * Copy a {@link File} to new destination, a directory is copied with its whole subtree.
+     * File contents are shared copy-on-write, see {@link File#copy}.
+     * @param ori original file to copy
+     * @param des destination file to copy to
+     * @return true if file is copied successfully, otherwise false
+     */
+    public boolean copyFile(String ori, String des, boolean createOnNotExist, FileModifyOptions modifyOption) {
+        File oriFile = traverseTo(ori, false);
+        if (oriFile == null) {
+            System.err.println("File " + ori + " doesn't exist, could not copy!");
+            return false;
+        }
+        return oriFile.copy(des, createOnNotExist, modifyOption) != null;
+    }
+
+    /**
+     * Apply many creates, writes, moves and deletes in one call, e.g. for bulk ingestion, with the outcome of
+     * applying them one by one in order. Operations are grouped by the directory they change and each group
+     * is applied under one lock of its directory, see {@link BatchApplier}.
+     * @param operations operations to apply
+     * @return result of each operation, in the order of the operations
+     */
+    public List<BatchResult> applyBatch(List<BatchOperation> operations) {
+        return new BatchApplier(_root, _cwd).apply(operations);
+    }
+
     /**
      * Find all {@link File}s matching the given name exactly, can be recursively.
+     * Answered by the {@link NameIndex} when it's enabled, otherwise recursive finds search subtrees
+     * in parallel with the {@link FileFinder}.
      * @param name file name to match
      * @param recursive recursive flag
      * @return list of matching files
      */
     public List<File> findExactMatch(String name, boolean recursive) {
+        Directory cwd = _cwd;
+        NameIndex nameIndex = NameIndex.getInstance();
+        List<File> res = nameIndex.isEnabled() ?
+                nameIndex.findExactMatch(name, cwd, recursive) :
+                FileFinder.getInstance().findExactMatch(cwd, name, recursive);
+        res.stream().forEach(e -> e.printFullPath());
+        return res;
+    }
+
+    /**
+     * Find all {@link File}s matching the given glob, regex or path pattern, see {@link FilePattern}.
+     * Absolute path patterns are matched from root, others from current working directory.
+     * @param pattern pattern to match
+     * @param recursive whether a name pattern is matched at any depth, path patterns use "**" instead
+     * @return list of matching files
+     */
+    public List<File> find(String pattern, boolean recursive) {
+        FilePattern filePattern = FilePattern.compile(pattern, recursive);
         List<File> res = new ArrayList<>();
-        _cwd.findExactMath(name, res, recursive);
+        (filePattern.isAbsolute() ? _root : _cwd).find(filePattern, res::add);
         res.stream().forEach(e -> e.printFullPath());
         return res;
     }
 
+    /**
+     * Save the whole file tree to a snapshot image, other sessions can keep changing the tree meanwhile.
+     * @param target image file, replaced if it exists
+     */
+    public void saveSnapshot(Path target) throws IOException {
+        SnapshotWriter.write(_root, target);
+    }
+
+    /**
+     * Open a consistent snapshot of the file tree, for scans that shouldn't see changes made while they run.
+     * The snapshot must be closed after use.
+     */
+    public TreeSnapshot openSnapshot() {
+        return TreeVersions.getInstance().openSnapshot();
+    }
+
+    /**
+     * Copy the file tree as of one version into a {@link NodeArena}, for bulk lookups and finds over
+     * very large trees without walking the object graph, see {@link #useNodeArena}.
+     * The arena is not kept in sync with later changes.
+     */
+    public NodeArena loadNodeArena() {
+        try (TreeSnapshot snapshot = openSnapshot()) {
+            return NodeArena.load(_root, snapshot);
+        }
+    }
+
+    /**
+     * Serve {@link #lookup} and {@link #findExactMatchPaths} of this session from the given arena, e.g. one loaded
+     * by {@link #loadNodeArena()}, instead of walking the tree. They answer as of the version the arena was loaded at.
+     * @param arena arena to serve from, null to serve from the tree again
+     */
+    public void useNodeArena(@Nullable NodeArena arena) {
+        _arena = arena;
+    }
+
+    /**
+     * Resolve a path, from root if it's absolute and from current working directory otherwise.
+     * Served by the arena in use, see {@link #useNodeArena}.
+     * @param path path to resolve
+     * @return full path of the file, null if it doesn't exist
+     */
+    public @Nullable String lookup(String path) {
+        NodeArena arena = _arena;
+        if (arena == null) {
+            File found = traverseTo(path, false);
+            return found == null ? null : found.getFullPath();
+        }
+        int id = arena.resolve(path.startsWith(File.DELIMITER) ? path : _cwd.getFullPath() + path);
+        return id == NodeArena.NO_NODE ? null : arena.getFullPath(id);
+    }
+
+    /**
+     * Find the full paths of all {@link File}s matching the given name exactly, can be recursively.
+     * Served by the arena in use, see {@link #useNodeArena}, otherwise the same as {@link #findExactMatch}.
+     * @param name file name to match
+     * @param recursive recursive flag
+     * @return full paths of the matching files
+     */
+    public List<String> findExactMatchPaths(String name, boolean recursive) {
+        NodeArena arena = _arena;
+        List<String> res = new ArrayList<>();
+        if (arena == null) {
+            for (File file : findExactMatch(name, recursive)) {
+                res.add(file.getFullPath());
+            }
+            return res;
+        }
+        int dir = arena.resolve(_cwd.getFullPath());
+        if (dir != NodeArena.NO_NODE && arena.isDirectory(dir)) {
+            for (int id : arena.findExactMatch(name, dir, recursive)) {
+                res.add(arena.getFullPath(id));
+            }
+        }
+        res.forEach(System.out::println);
+        return res;
+    }
+
     /**
      * Get current working directory
      */
@@ -173,33 +350,35 @@ public class IMFS {
             return;
         }
         if (found.isDirectory()) {
-            Directory previousCwd = _cwd;
-            changeCwd(file, false);
-            ls(FilePrintOptions.FullPath);
-            _cwd = previousCwd;
+            ls((Directory) found, FilePrintOptions.FullPath);
+            System.out.println();
+            System.out.println(found.getFileContent());
+            return;
+        }
+        System.out.println();
+        // stream content segments straight to console instead of building the whole string
+        try {
+            ((ConcreteFile) found).writeContentTo(System.out);
+        } catch (IOException e) {
+            System.err.println("Could not print content of file " + file + ": " + e.getMessage());
         }
         System.out.println();
-        System.out.println(found.getFileContent());
     }
 
     /**
      * Helper to traverse to a target {@link File}.
      * it doesn't change current working directory and doesn't perform error/null check on result.
+     * The traversal runs on its own {@link PathTraverser}, so it is safe to call from many threads at once.
      * @param des file to traverse to
      * @param createOnNonExisting creation enforcing flag
      * @return file being traversed to, null if no such file is found when creation is not enforced
      */
     @VisibleForTesting
     public @Nullable File traverseTo(String des, boolean createOnNonExisting) {
-        Directory cwdCurrent = _cwd;
-        File found;
+        PathTraverser pathTraverser = new PathTraverser(_root, _cwd);
         if (!des.contains(File.DELIMITER)) {
-            found = _pathTraverser.traverseOneLevel(des, createOnNonExisting);
-        } else {
-            found = _pathTraverser.traverseToAnyLevel(des, createOnNonExisting);
+            return pathTraverser.traverseOneLevel(des, createOnNonExisting);
         }
-        _cwd = cwdCurrent;
-        _pathTraverser.setCwd(_cwd);
-        return found;
+        return pathTraverser.traverseToAnyLevel(des, createOnNonExisting);
     }
 }
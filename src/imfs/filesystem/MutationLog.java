@@ -0,0 +1,258 @@
+package imfs.filesystem;
+
+import com.google.common.base.Preconditions;
+import imfs.persistence.WriteAheadLog;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * Hooks the changes of one file tree into a {@link WriteAheadLog}, so they survive a restart,
+ * see {@link imfs.factories.SnapshotRootDirectoryFactory}.
+ *
+ * Once a log is attached, every change is appended to it as a record naming the changed files by their full paths,
+ * while the locks of the changed directories are held, so changes depending on each other are logged in the order
+ * they happened. A change returns once its record is durable, waiting for it after releasing the locks,
+ * so writers waiting for the disk share fsyncs instead of blocking each other.
+ *
+ * A path must not change between being read and its record being appended. Changes to a file only change the path
+ * of the file itself, under the lock of its parent, but renaming or deleting a directory changes the paths of its
+ * whole subtree. Changes therefore run under a shared path lock, and directory renames and deletes under the
+ * exclusive one. Appends to a file of the logged tree take the lock of its parent, instead of being lock-free.
+ * Writes, transfers and truncations through a {@link imfs.storage.ContentChannel} of a file are logged the same way.
+ *
+ * The path lock is taken before any directory lock, by the outermost change of a thread in the logged tree only.
+ * Nested changes, e.g. the deletion of the sub files of a deleted directory, are not logged,
+ * replaying the outer change redoes them.
+ */
+public class MutationLog {
+    private static final MutationLog INSTANCE = new MutationLog();
+
+    private static final int NOT_LOCKED = 0;
+    private static final int SHARED = 1;
+    private static final int EXCLUSIVE = 2;
+
+    private final ReentrantReadWriteLock _pathLock = new ReentrantReadWriteLock();
+    // nesting depth, path lock mode and last sequence number logged by the change the current thread is in
+    private final ThreadLocal<long[]> _currentChange = ThreadLocal.withInitial(() -> new long[3]);
+    private volatile @Nullable WriteAheadLog _log;
+    private volatile @Nullable Directory _root;
+
+    public static MutationLog getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Start logging the changes of the tree of the given root, the tree must be in the state the log was replayed to.
+     */
+    public void attach(Directory root, WriteAheadLog log) {
+        _pathLock.writeLock().lock();
+        try {
+            Preconditions.checkState(_log == null, "A log is attached already!");
+            _root = root;
+            _log = log;
+        } finally {
+            _pathLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stop logging, changes in progress are logged before this returns.
+     * @return the detached log, null if none was attached
+     */
+    public @Nullable WriteAheadLog detach() {
+        _pathLock.writeLock().lock();
+        try {
+            WriteAheadLog log = _log;
+            _log = null;
+            _root = null;
+            return log;
+        } finally {
+            _pathLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the log the changes of the given tree go to, null if the tree isn't logged
+     */
+    public @Nullable WriteAheadLog getLog(Directory root) {
+        return _root == root ? _log : null;
+    }
+
+    /**
+     * Block the changes of the logged tree and start a new log generation if the given tree is logged, changes made
+     * after {@link #endCheckpoint()} go to the new generation. A snapshot taken in between covers
+     * the previous generations, so recovery replays the log from the new one.
+     * @return first log generation not covered by a snapshot taken now, 0 if the tree isn't logged
+     */
+    public long beginCheckpoint(Directory root) throws IOException {
+        _pathLock.writeLock().lock();
+        WriteAheadLog log = getLog(root);
+        if (log == null) {
+            return 0;
+        }
+        try {
+            return log.rotate();
+        } catch (IOException | RuntimeException e) {
+            _pathLock.writeLock().unlock();
+            throw e;
+        }
+    }
+
+    public void endCheckpoint() {
+        _pathLock.writeLock().unlock();
+    }
+
+    /**
+     * Start a change, or join the change the current thread is already in. Must be called before taking any
+     * directory lock, and followed by {@link #end()}. Changes of trees other than the logged one, e.g. copies or
+     * trees opened from other images, aren't logged and don't take the path lock.
+     * @param dir a directory the change is made in, null if the changed file is deleted
+     * @param changesSubtreePaths whether the change renames or deletes a directory
+     */
+    void begin(@Nullable Directory dir, boolean changesSubtreePaths) {
+        long[] change = _currentChange.get();
+        if (change[0]++ > 0 || _log == null || !isInTree(dir)) {
+            return;
+        }
+        if (changesSubtreePaths) {
+            _pathLock.writeLock().lock();
+            change[1] = EXCLUSIVE;
+        } else {
+            _pathLock.readLock().lock();
+            change[1] = SHARED;
+        }
+    }
+
+    /**
+     * Finish a change started by {@link #begin(boolean)}, the outermost call releases the path lock and
+     * waits for the records of the change to be durable. Must be called after releasing the directory locks.
+     * @throws UncheckedIOException if the records could not be made durable, the change is applied in memory regardless
+     */
+    void end() {
+        long[] change = _currentChange.get();
+        if (--change[0] > 0 || change[1] == NOT_LOCKED) {
+            return;
+        }
+        WriteAheadLog log = _log;
+        if (change[1] == EXCLUSIVE) {
+            _pathLock.writeLock().unlock();
+        } else {
+            _pathLock.readLock().unlock();
+        }
+        change[1] = NOT_LOCKED;
+        long sequence = change[2];
+        change[2] = 0;
+        if (sequence > 0 && log != null) {
+            try {
+                log.sync(sequence);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * @return true if the change the current thread is in is logged, so file appends must lock the parent
+     */
+    boolean isLogging() {
+        return _currentChange.get()[1] != NOT_LOCKED;
+    }
+
+    void logCreate(Directory parent, String name, boolean isDirectory) {
+        WriteAheadLog log = logFor(parent);
+        if (log != null) {
+            logged(log.appendCreate(pathOf(parent, name), isDirectory));
+        }
+    }
+
+    void logAppend(Directory parent, String name, byte[] content) {
+        WriteAheadLog log = logFor(parent);
+        if (log != null) {
+            logged(log.appendContent(pathOf(parent, name), content));
+        }
+    }
+
+    void logWrite(Directory parent, String name, long offset, ByteBuffer src) {
+        WriteAheadLog log = logFor(parent);
+        if (log != null) {
+            logged(log.appendWrite(pathOf(parent, name), offset, src));
+        }
+    }
+
+    void logTruncate(Directory parent, String name, long size) {
+        WriteAheadLog log = logFor(parent);
+        if (log != null) {
+            logged(log.appendTruncate(pathOf(parent, name), size));
+        }
+    }
+
+    void logMove(Directory parent, String name, Directory target, String newName, FileModifyOptions modifyOption) {
+        WriteAheadLog log = logFor(parent);
+        if (log != null && isInTree(target)) {
+            logged(log.appendMove(pathOf(parent, name), pathOf(target, newName), modifyOption));
+        }
+    }
+
+    void logCopy(Directory parent, String name, Directory target, String newName, FileModifyOptions modifyOption) {
+        WriteAheadLog log = logFor(parent);
+        if (log != null && isInTree(target)) {
+            logged(log.appendCopy(pathOf(parent, name), pathOf(target, newName), modifyOption));
+        }
+    }
+
+    void logRename(Directory parent, String name, String newName) {
+        WriteAheadLog log = logFor(parent);
+        if (log != null) {
+            logged(log.appendRename(pathOf(parent, name), newName));
+        }
+    }
+
+    void logDelete(Directory parent, String name) {
+        WriteAheadLog log = logFor(parent);
+        if (log != null) {
+            logged(log.appendDelete(pathOf(parent, name)));
+        }
+    }
+
+    void logDeleteSubFile(Directory dir, String name, boolean isDeadFile) {
+        WriteAheadLog log = logFor(dir);
+        if (log != null) {
+            logged(log.appendDeleteSubFile(dir.getFullPath(), name, isDeadFile));
+        }
+    }
+
+    /**
+     * @return the log to append a change of the given directory to, null if the change isn't logged
+     */
+    private @Nullable WriteAheadLog logFor(Directory dir) {
+        long[] change = _currentChange.get();
+        if (change[0] != 1 || change[1] == NOT_LOCKED || !isInTree(dir)) {
+            return null;
+        }
+        return _log;
+    }
+
+    private void logged(long sequence) {
+        _currentChange.get()[2] = sequence;
+    }
+
+    /**
+     * Returns true if the given directory is in the logged tree, a deleted directory isn't in any tree.
+     */
+    private boolean isInTree(@Nullable Directory dir) {
+        Directory root = _root;
+        while (dir != null && !dir.isRoot()) {
+            dir = dir.getParent();
+        }
+        return dir != null && dir == root;
+    }
+
+    private static String pathOf(Directory parent, String name) {
+        return parent.getFullPath().concat(name);
+    }
+}
@@ -0,0 +1,145 @@
+package imfs.filesystem;
+
+import imfs.api.File;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * An optional global inverted index from file names to the {@link File}s mapped under them,
+ * so an exact name find costs O(hits) instead of a walk of the whole tree.
+ *
+ * Once enabled, every directory reports the names it maps and unmaps, so creates, moves, renames and
+ * deletes keep the index up to date. The index spans all trees, lookups keep only the hits that
+ * are still mapped under the name and live below the directory searched in.
+ */
+public class NameIndex {
+    private static final NameIndex INSTANCE = new NameIndex();
+
+    private final Map<String, Set<File>> _nameToFiles = new ConcurrentHashMap<>();
+    private volatile boolean _enabled;
+
+    public static NameIndex getInstance() {
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return _enabled;
+    }
+
+    /**
+     * Start maintaining the index and index the existing files of the given tree.
+     * Files changed while the existing ones are indexed are indexed by their change.
+     * @param root root of a tree to index, enabling again with other roots adds their trees
+     */
+    public synchronized void enable(Directory root) {
+        _enabled = true;
+        indexSubTree(root);
+    }
+
+    /**
+     * Stop maintaining the index and drop it.
+     */
+    public synchronized void disable() {
+        _enabled = false;
+        _nameToFiles.clear();
+    }
+
+    private void indexSubTree(Directory dir) {
+        Map<String, File> nameToSubFile = dir.getNameToSubFile();
+        if (nameToSubFile == null) {
+            return;
+        }
+        for (Map.Entry<String, File> sub : nameToSubFile.entrySet()) {
+            add(sub.getKey(), sub.getValue());
+            if (sub.getValue().isDirectory()) {
+                indexSubTree((Directory) sub.getValue());
+            }
+        }
+    }
+
+    void add(String name, File file) {
+        if (_enabled) {
+            _nameToFiles.compute(name, (key, files) -> {
+                if (files == null) {
+                    files = ConcurrentHashMap.newKeySet();
+                }
+                files.add(file);
+                return files;
+            });
+        }
+    }
+
+    void remove(String name, File file) {
+        if (_enabled) {
+            _nameToFiles.computeIfPresent(name, (key, files) -> {
+                files.remove(file);
+                return files.isEmpty() ? null : files;
+            });
+        }
+    }
+
+    /**
+     * Drop the files of a subtree that isn't part of a tree anymore, e.g. a copy that couldn't be attached,
+     * the directory itself is dropped by its parent.
+     */
+    void removeSubTree(Directory dir) {
+        if (!_enabled) {
+            return;
+        }
+        Map<String, File> nameToSubFile = dir.getNameToSubFile();
+        if (nameToSubFile == null) {
+            return;
+        }
+        for (Map.Entry<String, File> sub : nameToSubFile.entrySet()) {
+            remove(sub.getKey(), sub.getValue());
+            if (sub.getValue().isDirectory()) {
+                removeSubTree((Directory) sub.getValue());
+            }
+        }
+    }
+
+    /**
+     * Find {@link File}s mapped under the given name in the given {@link Directory}.
+     * @param name file name
+     * @param dir directory to search in
+     * @param recursive whether files in sub directories at any depth are included
+     * @return matching files
+     */
+    public List<File> findExactMatch(String name, Directory dir, boolean recursive) {
+        Set<File> files = _nameToFiles.getOrDefault(name, Collections.emptySet());
+        List<File> res = new ArrayList<>();
+        for (File file : files) {
+            Directory parent = file.getParent();
+            // drop hits of concurrent changes the index hasn't caught up with
+            if (parent == null || parent.getSubFile(name) != file) {
+                continue;
+            }
+            if (recursive ? isBelow(parent, dir) : parent == dir) {
+                res.add(file);
+            }
+        }
+        return res;
+    }
+
+    private static boolean isBelow(Directory parent, Directory dir) {
+        for (Directory ancestor = parent; ancestor != null; ancestor = ancestor.isRoot() ? null : ancestor.getParent()) {
+            if (ancestor == dir) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return number of distinct names indexed
+     */
+    public int size() {
+        return _nameToFiles.size();
+    }
+}
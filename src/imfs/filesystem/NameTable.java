@@ -0,0 +1,49 @@
+package imfs.filesystem;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+
+/**
+ * An optional table of shared file names, so that a name repeated across many directories,
+ * e.g. README or index.html, is held by one string instead of one per file.
+ *
+ * Once enabled, files and directories intern the names they're created or renamed with, and their parents
+ * map them under the interned name. Names are held weakly and dropped once no file uses them anymore.
+ * Interning costs an entry in the table per distinct name, so it only pays off for trees repeating names.
+ */
+public class NameTable {
+    private static final NameTable INSTANCE = new NameTable();
+
+    private final Interner<String> _names = Interners.newWeakInterner();
+    private volatile boolean _enabled;
+
+    public static NameTable getInstance() {
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return _enabled;
+    }
+
+    /**
+     * Start interning names, names of existing files are kept as they are.
+     */
+    public void enable() {
+        _enabled = true;
+    }
+
+    /**
+     * Stop interning names, interned names stay shared by the files using them.
+     */
+    public void disable() {
+        _enabled = false;
+    }
+
+    /**
+     * @return the shared instance of the given name if the table is enabled, otherwise the name itself
+     */
+    public String intern(String name) {
+        return _enabled && name != null ? _names.intern(name) : name;
+    }
+}
@@ -1,5 +1,7 @@
 package imfs.filesystem;
 
+import imfs.api.File;
+
 /**
  * A no-op {@link Directory} working as a singleton instance.
  * Currently, the root {@link Directory} uses this {@link NoOpDirectory} as its virtual parent.
@@ -49,6 +51,11 @@ public class NoOpDirectory extends Directory {
         return false;
     }
 
+    @Override
+    public File copy(String des, boolean createOnNonExist, FileModifyOptions option) {
+        return null;
+    }
+
     @Override
     public boolean delete() {
         return false;
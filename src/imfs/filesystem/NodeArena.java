@@ -0,0 +1,850 @@
+package imfs.filesystem;
+
+import com.google.common.base.Preconditions;
+import imfs.api.File;
+import imfs.storage.SegmentedContent;
+import imfs.utils.FileNamePredicate;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+
+/**
+ * A tree engine keeping its nodes in flat off-heap arenas instead of a {@link Directory}/{@link ConcreteFile}
+ * object per node, for trees with tens of millions of files where the object graph makes GC pauses dominate.
+ *
+ * Nodes are addressed by int ids, the root is {@link #ROOT}. Each node is a fixed size record in a direct buffer:
+ * parent id, offset, length and hash of its UTF-8 name in the name heap, first child, next and previous sibling,
+ * and node type. Sub files are found through one open-addressing table of child ids hashed by parent id and name,
+ * and each directory chains its sub files through their sibling fields, so a lookup, a path resolution
+ * or a recursive find reads flat memory without allocating per node.
+ * Ids of deleted nodes are reused, names of deleted or renamed nodes stay in the name heap.
+ *
+ * Nodes, names and the child table are split in fixed size chunks, a direct buffer holds at most 2GB and
+ * a growing arena adds chunks instead of copying. An arena holds up to 2^29 live nodes and 2GB of names,
+ * a name can't be longer than a name chunk.
+ * The content handle of a file is its id, contents are {@link SegmentedContent}s, allocated on the first write,
+ * whose segments live off heap already.
+ *
+ * Lookups run in parallel, changes take the arena's write lock one at a time.
+ */
+public class NodeArena {
+    public static final int ROOT = 0;
+    public static final int NO_NODE = -1;
+
+    private static final char DELIMITER_CHAR = File.DELIMITER.charAt(0);
+
+    private static final int PARENT = 0;
+    private static final int NAME_OFFSET = 4;
+    private static final int NAME_LENGTH = 8;
+    private static final int NAME_HASH = 12;
+    private static final int FIRST_CHILD = 16;
+    private static final int NEXT_SIBLING = 20;
+    private static final int PREV_SIBLING = 24;
+    private static final int TYPE = 28;
+    private static final int NODE_SIZE = 32;
+
+    private static final int FREE_NODE = 0;
+    private static final int DIRECTORY_NODE = 1;
+    private static final int FILE_NODE = 2;
+
+    private static final int EMPTY_SLOT = -1;
+    private static final int DELETED_SLOT = -2;
+
+    private static final int NODE_CHUNK_SHIFT = 12;
+    private static final int NODE_CHUNK_MASK = (1 << NODE_CHUNK_SHIFT) - 1;
+    private static final int NAME_CHUNK_SHIFT = 16;
+    private static final int NAME_CHUNK_SIZE = 1 << NAME_CHUNK_SHIFT;
+    private static final int NAME_CHUNK_MASK = NAME_CHUNK_SIZE - 1;
+    private static final int SLOT_CHUNK_SHIFT = 14;
+    private static final int SLOT_CHUNK_MASK = (1 << SLOT_CHUNK_SHIFT) - 1;
+    // the child table is kept at most half full, which caps the live nodes at half of this
+    private static final int MAX_SLOTS = 1 << 30;
+
+    private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+    // everything below is changed under the write lock
+    // node records and file contents, by id
+    private ByteBuffer[] _nodes;
+    private SegmentedContent[][] _contents;
+    private int _nodeChunks;
+    // ids below this were handed out, free ones are chained through their next sibling
+    private int _highWater;
+    private int _freeHead = NO_NODE;
+    private int _liveNodes;
+    private ByteBuffer[] _names;
+    private int _namesSize;
+    // child ids, hashed by parent id and name
+    private ByteBuffer[] _slots;
+    private int _slotMask;
+    private int _usedSlots;
+
+    public NodeArena() {
+        this(1024);
+    }
+
+    /**
+     * @param expectedNodes number of nodes to size the arenas for, they grow beyond it
+     */
+    public NodeArena(int expectedNodes) {
+        Preconditions.checkArgument(expectedNodes > 0, "expected nodes %s must be positive", expectedNodes);
+        int nodeChunks = (int) (((long) expectedNodes + NODE_CHUNK_MASK) >>> NODE_CHUNK_SHIFT);
+        _nodes = new ByteBuffer[nodeChunks];
+        _contents = new SegmentedContent[nodeChunks][];
+        _names = new ByteBuffer[1];
+        int slots = (int) Math.min(MAX_SLOTS, Long.highestOneBit(expectedNodes * 2L - 1) << 1);
+        _slots = emptySlots(slots);
+        _slotMask = slots - 1;
+        int root = allocateNode();
+        setNode(root, NO_NODE, 0, 0, 0, DIRECTORY_NODE);
+    }
+
+    /**
+     * Copy a tree into a new arena, file contents are shared copy-on-write with the tree, see {@link SegmentedContent#copy}.
+     * Changes made to the tree meanwhile are copied or not.
+     */
+    public static NodeArena load(Directory root) {
+        NodeArena arena = new NodeArena();
+        arena.loadSubTree(root, ROOT, Directory::getNameToSubFile);
+        return arena;
+    }
+
+    /**
+     * Copy the structure of a tree as of a {@link TreeSnapshot} into a new arena, file contents are shared
+     * copy-on-write with the tree as of now.
+     */
+    public static NodeArena load(Directory root, TreeSnapshot snapshot) {
+        NodeArena arena = new NodeArena();
+        arena.loadSubTree(root, ROOT, snapshot::listSubFiles);
+        return arena;
+    }
+
+    private void loadSubTree(Directory dir, int dirId, Function<Directory, Map<String, File>> subFiles) {
+        Map<String, File> nameToSubFile = subFiles.apply(dir);
+        if (nameToSubFile == null) {
+            return;
+        }
+        for (Map.Entry<String, File> sub : nameToSubFile.entrySet()) {
+            File file = sub.getValue();
+            int id = create(dirId, sub.getKey(), file.isDirectory());
+            if (file.isDirectory()) {
+                loadSubTree((Directory) file, id, subFiles);
+            } else {
+                setContent(id, ((ConcreteFile) file).copyContent());
+            }
+        }
+    }
+
+    /**
+     * Create a new sub file or directory.
+     * @return id of the new node
+     */
+    public int create(int parent, String name, boolean isDirectory) {
+        Preconditions.checkArgument(FileNamePredicate.getInstance().test(name),
+                String.format("sub file or directory name %s provided is invalid", name));
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        _lock.writeLock().lock();
+        try {
+            checkDirectory(parent);
+            int hash = hash(nameBytes);
+            Preconditions.checkState(findSlot(parent, nameBytes, hash) < 0,
+                    String.format("A subdirectory or file %s already exists.", name));
+            int id = allocateNode();
+            setNode(id, parent, appendName(nameBytes), nameBytes.length, hash, isDirectory ? DIRECTORY_NODE : FILE_NODE);
+            link(id);
+            return id;
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Look up a direct sub file.
+     * @return id of the sub file, {@link #NO_NODE} if it doesn't exist
+     */
+    public int lookup(int parent, String name) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        _lock.readLock().lock();
+        try {
+            int slot = findSlot(parent, nameBytes, hash(nameBytes));
+            return slot < 0 ? NO_NODE : slot(slot);
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Resolve a full path from the root, "." and ".." are resolved like the {@link PathTraverser} does.
+     * The path is walked in place with a cursor, each element is hashed and compared as UTF-8 without being extracted.
+     * @return id of the file, {@link #NO_NODE} if it doesn't exist
+     */
+    public int resolve(String path) {
+        _lock.readLock().lock();
+        try {
+            int id = ROOT;
+            int length = path.length();
+            int start = skipDelimiters(path, 0);
+            while (start < length) {
+                int end = path.indexOf(DELIMITER_CHAR, start);
+                if (end < 0) {
+                    end = length;
+                }
+                if (isElement(path, start, end, File.SINGLE_LEVEL_PARENT)) {
+                    id = id == ROOT ? ROOT : parentOf(id);
+                } else if (!isElement(path, start, end, File.CURRENT_DIR_DOT)) {
+                    if (type(id) != DIRECTORY_NODE) {
+                        return NO_NODE;
+                    }
+                    int slot = findSlot(id, path, start, end, hash(path, start, end));
+                    if (slot < 0) {
+                        return NO_NODE;
+                    }
+                    id = slot(slot);
+                }
+                start = skipDelimiters(path, end);
+            }
+            return id;
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    private static int skipDelimiters(String path, int pos) {
+        while (pos < path.length() && path.charAt(pos) == DELIMITER_CHAR) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean isElement(String path, int start, int end, String name) {
+        return end - start == name.length() && path.startsWith(name, start);
+    }
+
+    public boolean isDirectory(int id) {
+        _lock.readLock().lock();
+        try {
+            return type(id) == DIRECTORY_NODE;
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    public boolean exists(int id) {
+        _lock.readLock().lock();
+        try {
+            return id >= 0 && id < _highWater && type(id) != FREE_NODE;
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return id of the parent, {@link #NO_NODE} for the root
+     */
+    public int getParent(int id) {
+        _lock.readLock().lock();
+        try {
+            checkLive(id);
+            return parentOf(id);
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    public String getName(int id) {
+        _lock.readLock().lock();
+        try {
+            checkLive(id);
+            return nameOf(id);
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return full path of the file, directory paths end with the delimiter like {@link Directory#getFullPath()}
+     */
+    public String getFullPath(int id) {
+        _lock.readLock().lock();
+        try {
+            checkLive(id);
+            if (id == ROOT) {
+                return Directory.ROOT_PATH;
+            }
+            int depth = 0;
+            for (int node = id; node != ROOT; node = parentOf(node)) {
+                depth++;
+            }
+            int[] ancestors = new int[depth];
+            for (int node = id, i = depth - 1; node != ROOT; node = parentOf(node), i--) {
+                ancestors[i] = node;
+            }
+            StringBuilder path = new StringBuilder();
+            for (int node : ancestors) {
+                path.append(File.DELIMITER).append(nameOf(node));
+            }
+            return type(id) == DIRECTORY_NODE ? path.append(File.DELIMITER).toString() : path.toString();
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return ids of the sub files of a directory
+     */
+    public int[] list(int dir) {
+        _lock.readLock().lock();
+        try {
+            checkDirectory(dir);
+            int[] children = new int[8];
+            int count = 0;
+            for (int child = field(dir, FIRST_CHILD); child != NO_NODE; child = field(child, NEXT_SIBLING)) {
+                if (count == children.length) {
+                    children = Arrays.copyOf(children, count * 2);
+                }
+                children[count++] = child;
+            }
+            return Arrays.copyOf(children, count);
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find the files named exactly as given in a directory. A recursive find walks the sibling lists below
+     * the directory, comparing name hashes before names.
+     * @return ids of the matching files
+     */
+    public int[] findExactMatch(String name, int dir, boolean recursive) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(nameBytes);
+        _lock.readLock().lock();
+        try {
+            checkDirectory(dir);
+            if (!recursive) {
+                int slot = findSlot(dir, nameBytes, hash);
+                return slot < 0 ? new int[0] : new int[] {slot(slot)};
+            }
+            int[] found = new int[8];
+            int count = 0;
+            int[] pending = new int[16];
+            int size = 0;
+            pending[size++] = dir;
+            while (size > 0) {
+                int node = pending[--size];
+                for (int child = field(node, FIRST_CHILD); child != NO_NODE; child = field(child, NEXT_SIBLING)) {
+                    if (field(child, NAME_HASH) == hash && nameEquals(child, nameBytes)) {
+                        if (count == found.length) {
+                            found = Arrays.copyOf(found, count * 2);
+                        }
+                        found[count++] = child;
+                    }
+                    if (type(child) == DIRECTORY_NODE) {
+                        if (size == pending.length) {
+                            pending = Arrays.copyOf(pending, size * 2);
+                        }
+                        pending[size++] = child;
+                    }
+                }
+            }
+            return Arrays.copyOf(found, count);
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rename a file, keeping it in its directory.
+     * @return false if the new name is taken
+     */
+    public boolean rename(int id, String newName) {
+        _lock.writeLock().lock();
+        try {
+            checkLive(id);
+            Preconditions.checkArgument(id != ROOT, "Root can not be renamed");
+            return moveLocked(id, parentOf(id), newName);
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Move a file or directory with its subtree into another directory.
+     * @return false if the new name is taken in the target directory or the target is below the moved directory
+     */
+    public boolean move(int id, int newParent, String newName) {
+        _lock.writeLock().lock();
+        try {
+            checkLive(id);
+            checkDirectory(newParent);
+            Preconditions.checkArgument(id != ROOT, "Root can not be moved");
+            if (isBelow(newParent, id)) {
+                System.err.println("Directory " + nameOf(id) + " can not be moved below itself!");
+                return false;
+            }
+            return moveLocked(id, newParent, newName);
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    private boolean moveLocked(int id, int newParent, String newName) {
+        Preconditions.checkArgument(FileNamePredicate.getInstance().test(newName),
+                String.format("file name \"%s\" provided is invalid", newName));
+        byte[] nameBytes = newName.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(nameBytes);
+        int existing = findSlot(newParent, nameBytes, hash);
+        if (existing >= 0) {
+            return slot(existing) == id;
+        }
+        unlink(id);
+        if (!nameEquals(id, nameBytes)) {
+            setField(id, NAME_OFFSET, appendName(nameBytes));
+            setField(id, NAME_LENGTH, nameBytes.length);
+            setField(id, NAME_HASH, hash);
+        }
+        setField(id, PARENT, newParent);
+        link(id);
+        return true;
+    }
+
+    /**
+     * Delete a file or directory with its whole subtree, their ids are reused.
+     * @return false if the file doesn't exist
+     */
+    public boolean delete(int id) {
+        _lock.writeLock().lock();
+        try {
+            if (id <= ROOT || id >= _highWater || type(id) == FREE_NODE) {
+                return false;
+            }
+            unlink(id);
+            // free the subtree depth first, children are unlinked from the hash table one by one
+            int[] pending = new int[16];
+            int size = 0;
+            pending[size++] = id;
+            while (size > 0) {
+                int node = pending[--size];
+                for (int child = field(node, FIRST_CHILD); child != NO_NODE; ) {
+                    int next = field(child, NEXT_SIBLING);
+                    removeSlot(child);
+                    if (size == pending.length) {
+                        pending = Arrays.copyOf(pending, size * 2);
+                    }
+                    pending[size++] = child;
+                    child = next;
+                }
+                freeNode(node);
+            }
+            return true;
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return content of a file, allocated on the first call, see {@link ConcreteFile}
+     */
+    public SegmentedContent getContent(int id) {
+        _lock.readLock().lock();
+        try {
+            checkLive(id);
+            Preconditions.checkState(type(id) == FILE_NODE, "%s is a directory and doesn't have content", nameOf(id));
+            SegmentedContent content = contentOf(id);
+            if (content != null) {
+                return content;
+            }
+        } finally {
+            _lock.readLock().unlock();
+        }
+        _lock.writeLock().lock();
+        try {
+            checkLive(id);
+            if (contentOf(id) == null) {
+                setContent(id, new SegmentedContent());
+            }
+            return contentOf(id);
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of live nodes, including the root
+     */
+    public int size() {
+        _lock.readLock().lock();
+        try {
+            return _liveNodes;
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return bytes allocated off heap for nodes, names and the child table
+     */
+    public long getOffHeapBytes() {
+        _lock.readLock().lock();
+        try {
+            return capacityOf(_nodes) + capacityOf(_names) + capacityOf(_slots);
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    private static long capacityOf(ByteBuffer[] chunks) {
+        long capacity = 0;
+        for (ByteBuffer chunk : chunks) {
+            capacity += chunk == null ? 0 : chunk.capacity();
+        }
+        return capacity;
+    }
+
+    private int field(int id, int field) {
+        return _nodes[id >>> NODE_CHUNK_SHIFT].getInt((id & NODE_CHUNK_MASK) * NODE_SIZE + field);
+    }
+
+    private void setField(int id, int field, int value) {
+        _nodes[id >>> NODE_CHUNK_SHIFT].putInt((id & NODE_CHUNK_MASK) * NODE_SIZE + field, value);
+    }
+
+    private SegmentedContent contentOf(int id) {
+        return _contents[id >>> NODE_CHUNK_SHIFT][id & NODE_CHUNK_MASK];
+    }
+
+    private void setContent(int id, SegmentedContent content) {
+        _contents[id >>> NODE_CHUNK_SHIFT][id & NODE_CHUNK_MASK] = content;
+    }
+
+    private int type(int id) {
+        return field(id, TYPE);
+    }
+
+    private int parentOf(int id) {
+        return field(id, PARENT);
+    }
+
+    private String nameOf(int id) {
+        int nameOffset = field(id, NAME_OFFSET);
+        byte[] bytes = new byte[field(id, NAME_LENGTH)];
+        _names[nameOffset >>> NAME_CHUNK_SHIFT].get(nameOffset & NAME_CHUNK_MASK, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private boolean nameEquals(int id, byte[] nameBytes) {
+        int length = field(id, NAME_LENGTH);
+        if (length != nameBytes.length) {
+            return false;
+        }
+        // names don't cross chunks
+        int nameOffset = field(id, NAME_OFFSET);
+        ByteBuffer chunk = _names[nameOffset >>> NAME_CHUNK_SHIFT];
+        int start = nameOffset & NAME_CHUNK_MASK;
+        for (int i = 0; i < length; i++) {
+            if (chunk.get(start + i) != nameBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the name of a node equals the given path element, encoded as UTF-8 while comparing.
+     */
+    private boolean nameEquals(int id, String path, int start, int end) {
+        int length = field(id, NAME_LENGTH);
+        int nameOffset = field(id, NAME_OFFSET);
+        ByteBuffer chunk = _names[nameOffset >>> NAME_CHUNK_SHIFT];
+        int at = nameOffset & NAME_CHUNK_MASK;
+        int pos = 0;
+        for (int i = start; i < end; ) {
+            long encoded = utf8(path, i, end);
+            int count = (int) (encoded >>> 32);
+            if (pos + count > length) {
+                return false;
+            }
+            for (int b = 0; b < count; b++) {
+                if (chunk.get(at + pos++) != (byte) (encoded >>> (b * 8))) {
+                    return false;
+                }
+            }
+            i += count == 4 ? 2 : 1;
+        }
+        return pos == length;
+    }
+
+    private boolean isBelow(int id, int dir) {
+        for (int node = id; node != NO_NODE; node = parentOf(node)) {
+            if (node == dir) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void checkLive(int id) {
+        Preconditions.checkArgument(id >= 0 && id < _highWater && type(id) != FREE_NODE, "Node %s doesn't exist!", id);
+    }
+
+    private void checkDirectory(int id) {
+        checkLive(id);
+        Preconditions.checkState(type(id) == DIRECTORY_NODE, "Node %s is not a directory!", id);
+    }
+
+    private static int hash(byte[] nameBytes) {
+        int hash = 1;
+        for (byte b : nameBytes) {
+            hash = 31 * hash + b;
+        }
+        return hash;
+    }
+
+    /**
+     * Same as {@link #hash(byte[])} of the UTF-8 bytes of a path element, without encoding it into an array.
+     */
+    private static int hash(String path, int start, int end) {
+        int hash = 1;
+        for (int i = start; i < end; ) {
+            long encoded = utf8(path, i, end);
+            int count = (int) (encoded >>> 32);
+            for (int b = 0; b < count; b++) {
+                hash = 31 * hash + (byte) (encoded >>> (b * 8));
+            }
+            i += count == 4 ? 2 : 1;
+        }
+        return hash;
+    }
+
+    /**
+     * Encode the character at the given index as UTF-8 like {@link String#getBytes}, a surrogate pair as one code point
+     * and an unpaired surrogate as '?'.
+     * @return the bytes, first one lowest, with their count in the upper int
+     */
+    private static long utf8(String path, int i, int end) {
+        char c = path.charAt(i);
+        if (c < 0x80) {
+            return c | 1L << 32;
+        }
+        if (c < 0x800) {
+            return (0xC0 | c >> 6) | (0x80 | c & 0x3F) << 8 | 2L << 32;
+        }
+        if (!Character.isSurrogate(c)) {
+            return (0xE0 | c >> 12) | (0x80 | c >> 6 & 0x3F) << 8 | (0x80 | c & 0x3F) << 16 | 3L << 32;
+        }
+        if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(path.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, path.charAt(i + 1));
+            return (0xF0 | cp >> 18) | (0x80 | cp >> 12 & 0x3F) << 8 | (0x80 | cp >> 6 & 0x3F) << 16
+                    | (long) (0x80 | cp & 0x3F) << 24 | 4L << 32;
+        }
+        return '?' | 1L << 32;
+    }
+
+    private int slotOf(int parent, int nameHash) {
+        int h = parent * 0x9E3779B9 ^ nameHash;
+        return (h ^ (h >>> 16)) & _slotMask;
+    }
+
+    /**
+     * @return slot holding the sub file of the given name, -1 if there's none
+     */
+    private int findSlot(int parent, byte[] nameBytes, int nameHash) {
+        for (int slot = slotOf(parent, nameHash); ; slot = (slot + 1) & _slotMask) {
+            int id = slot(slot);
+            if (id == EMPTY_SLOT) {
+                return -1;
+            }
+            if (id != DELETED_SLOT && parentOf(id) == parent
+                    && field(id, NAME_HASH) == nameHash && nameEquals(id, nameBytes)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * @return slot holding the sub file named as the given path element, -1 if there's none
+     */
+    private int findSlot(int parent, String path, int start, int end, int nameHash) {
+        for (int slot = slotOf(parent, nameHash); ; slot = (slot + 1) & _slotMask) {
+            int id = slot(slot);
+            if (id == EMPTY_SLOT) {
+                return -1;
+            }
+            if (id != DELETED_SLOT && parentOf(id) == parent
+                    && field(id, NAME_HASH) == nameHash && nameEquals(id, path, start, end)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Add a node to the child table and to the sibling list of its parent.
+     */
+    private void link(int id) {
+        if ((_usedSlots + 1) * 2 > _slotMask + 1) {
+            rehash(id);
+        }
+        int parent = parentOf(id);
+        int slot = slotOf(parent, field(id, NAME_HASH));
+        while (slot(slot) >= 0) {
+            slot = (slot + 1) & _slotMask;
+        }
+        if (slot(slot) == EMPTY_SLOT) {
+            _usedSlots++;
+        }
+        setSlot(slot, id);
+
+        int first = field(parent, FIRST_CHILD);
+        setField(id, NEXT_SIBLING, first);
+        setField(id, PREV_SIBLING, NO_NODE);
+        if (first != NO_NODE) {
+            setField(first, PREV_SIBLING, id);
+        }
+        setField(parent, FIRST_CHILD, id);
+    }
+
+    /**
+     * Remove a node from the child table and from the sibling list of its parent.
+     */
+    private void unlink(int id) {
+        removeSlot(id);
+        int prev = field(id, PREV_SIBLING);
+        int next = field(id, NEXT_SIBLING);
+        if (prev == NO_NODE) {
+            setField(parentOf(id), FIRST_CHILD, next);
+        } else {
+            setField(prev, NEXT_SIBLING, next);
+        }
+        if (next != NO_NODE) {
+            setField(next, PREV_SIBLING, prev);
+        }
+    }
+
+    private void removeSlot(int id) {
+        for (int slot = slotOf(parentOf(id), field(id, NAME_HASH)); ; slot = (slot + 1) & _slotMask) {
+            int slotId = slot(slot);
+            Preconditions.checkState(slotId != EMPTY_SLOT, "Node %s is not in the child table", id);
+            if (slotId == id) {
+                setSlot(slot, DELETED_SLOT);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Rebuild the child table without deleted slots, doubling it if it's half full of live children.
+     * @param linking node being linked, left out
+     */
+    private void rehash(int linking) {
+        int slots = _slotMask + 1;
+        if ((_liveNodes + 1L) * 2 > slots) {
+            Preconditions.checkState(slots < MAX_SLOTS, "Child table of the arena is full");
+            slots *= 2;
+        }
+        _slots = emptySlots(slots);
+        _slotMask = slots - 1;
+        _usedSlots = 0;
+        for (int id = 1; id < _highWater; id++) {
+            if (id == linking || type(id) == FREE_NODE) {
+                continue;
+            }
+            int slot = slotOf(parentOf(id), field(id, NAME_HASH));
+            while (slot(slot) != EMPTY_SLOT) {
+                slot = (slot + 1) & _slotMask;
+            }
+            setSlot(slot, id);
+            _usedSlots++;
+        }
+    }
+
+    private int slot(int slot) {
+        return _slots[slot >>> SLOT_CHUNK_SHIFT].getInt((slot & SLOT_CHUNK_MASK) * 4);
+    }
+
+    private void setSlot(int slot, int id) {
+        _slots[slot >>> SLOT_CHUNK_SHIFT].putInt((slot & SLOT_CHUNK_MASK) * 4, id);
+    }
+
+    /**
+     * @param slots power of two number of slots, tables smaller than a chunk take a single smaller chunk
+     */
+    private static ByteBuffer[] emptySlots(int slots) {
+        int chunkSlots = Math.min(slots, SLOT_CHUNK_MASK + 1);
+        ByteBuffer[] chunks = new ByteBuffer[slots / chunkSlots];
+        for (int c = 0; c < chunks.length; c++) {
+            chunks[c] = ByteBuffer.allocateDirect(chunkSlots * 4);
+            for (int i = 0; i < chunkSlots; i++) {
+                chunks[c].putInt(i * 4, EMPTY_SLOT);
+            }
+        }
+        return chunks;
+    }
+
+    private int allocateNode() {
+        if (_freeHead != NO_NODE) {
+            int id = _freeHead;
+            _freeHead = field(id, NEXT_SIBLING);
+            _liveNodes++;
+            return id;
+        }
+        Preconditions.checkState(_highWater < Integer.MAX_VALUE, "Node arena is full");
+        int chunk = _highWater >>> NODE_CHUNK_SHIFT;
+        if (chunk == _nodeChunks) {
+            if (chunk == _nodes.length) {
+                _nodes = Arrays.copyOf(_nodes, chunk * 2);
+                _contents = Arrays.copyOf(_contents, chunk * 2);
+            }
+            _nodes[chunk] = ByteBuffer.allocateDirect((NODE_CHUNK_MASK + 1) * NODE_SIZE);
+            _contents[chunk] = new SegmentedContent[NODE_CHUNK_MASK + 1];
+            _nodeChunks++;
+        }
+        _liveNodes++;
+        return _highWater++;
+    }
+
+    private void freeNode(int id) {
+        setField(id, TYPE, FREE_NODE);
+        setField(id, NEXT_SIBLING, _freeHead);
+        setContent(id, null);
+        _freeHead = id;
+        _liveNodes--;
+    }
+
+    private void setNode(int id, int parent, int nameOffset, int nameLength, int nameHash, int type) {
+        setField(id, PARENT, parent);
+        setField(id, NAME_OFFSET, nameOffset);
+        setField(id, NAME_LENGTH, nameLength);
+        setField(id, NAME_HASH, nameHash);
+        setField(id, FIRST_CHILD, NO_NODE);
+        setField(id, NEXT_SIBLING, NO_NODE);
+        setField(id, PREV_SIBLING, NO_NODE);
+        setField(id, TYPE, type);
+    }
+
+    /**
+     * Append a name to the name heap, starting a new chunk if it doesn't fit in the current one.
+     * @return offset of the name
+     */
+    private int appendName(byte[] nameBytes) {
+        Preconditions.checkArgument(nameBytes.length <= NAME_CHUNK_SIZE,
+                "name of %s bytes is longer than %s bytes", nameBytes.length, NAME_CHUNK_SIZE);
+        long offset = _namesSize;
+        if ((offset & NAME_CHUNK_MASK) + nameBytes.length > NAME_CHUNK_SIZE) {
+            offset = (offset | NAME_CHUNK_MASK) + 1;
+        }
+        Preconditions.checkState(offset + nameBytes.length <= Integer.MAX_VALUE, "Name heap of the arena is full");
+        int chunk = (int) (offset >>> NAME_CHUNK_SHIFT);
+        if (chunk == _names.length) {
+            _names = Arrays.copyOf(_names, chunk * 2);
+        }
+        if (_names[chunk] == null) {
+            _names[chunk] = ByteBuffer.allocateDirect(NAME_CHUNK_SIZE);
+        }
+        _names[chunk].put((int) offset & NAME_CHUNK_MASK, nameBytes);
+        _namesSize = (int) (offset + nameBytes.length);
+        return (int) offset;
+    }
+}
@@ -0,0 +1,152 @@
+package imfs.filesystem;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import imfs.api.File;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * A bounded cache of resolved paths, similar to a dentry cache, used by {@link PathTraverser}
+ * to skip walking deep paths that are looked up over and over.
+ *
+ * Entries are keyed by the {@link Directory} a path is resolved from (root for absolute paths,
+ * current working directory otherwise) and the path string. Only successful resolutions are cached,
+ * so creating a new file never makes an entry stale. An entry remembers the directories its path was resolved
+ * through with their stamps, see {@link Directory#getResolveStamp()}, a directory unmapping or replacing
+ * a sub file, or being moved or deleted, only invalidates the entries resolved through it.
+ * Least recently used entries are evicted once the cache is full.
+ */
+public class PathCache {
+    public static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+    private static final PathCache DEFAULT_PATH_CACHE = new PathCache(DEFAULT_MAX_ENTRIES);
+    // reused to look up entries, so hits don't allocate a key
+    private static final ThreadLocal<PathKey> LOOKUP_KEY = ThreadLocal.withInitial(() -> new PathKey(null, null));
+
+    private final Cache<PathKey, Entry> _entries;
+    private final LongAdder _hits = new LongAdder();
+    private final LongAdder _misses = new LongAdder();
+
+    public PathCache(int maxEntries) {
+        _entries = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
+    }
+
+    public static PathCache getInstance() {
+        return DEFAULT_PATH_CACHE;
+    }
+
+    /**
+     * Look up a resolved path.
+     * @param base directory the path is resolved from
+     * @param path path to resolve
+     * @return the cached {@link File}, null if not cached or stale
+     */
+    public @Nullable File get(Directory base, String path) {
+        PathKey key = LOOKUP_KEY.get();
+        key._base = base;
+        key._path = path;
+        Entry entry;
+        try {
+            entry = _entries.getIfPresent(key);
+        } finally {
+            key._base = null;
+            key._path = null;
+        }
+        if (entry == null || !entry._chain.isValid()) {
+            _misses.increment();
+            return null;
+        }
+        _hits.increment();
+        return entry._file;
+    }
+
+    /**
+     * Cache a resolved path.
+     * @param chain directories the path was resolved through, recorded while resolving it
+     */
+    public void put(Directory base, String path, File file, Chain chain) {
+        _entries.put(new PathKey(base, path), new Entry(file, chain));
+    }
+
+    public long getHitCount() {
+        return _hits.sum();
+    }
+
+    public long getMissCount() {
+        return _misses.sum();
+    }
+
+    public long size() {
+        return _entries.size();
+    }
+
+    /**
+     * Directories a path is resolved through, each with its stamp read before the path was resolved further from it.
+     */
+    public static final class Chain {
+        private Directory[] _directories = new Directory[8];
+        private long[] _stamps = new long[8];
+        private int _size;
+
+        /**
+         * Record a directory, to be called before a sub file or the parent of the directory is looked up.
+         */
+        void add(Directory dir) {
+            if (_size == _directories.length) {
+                _directories = Arrays.copyOf(_directories, _size * 2);
+                _stamps = Arrays.copyOf(_stamps, _size * 2);
+            }
+            _directories[_size] = dir;
+            _stamps[_size] = dir.getResolveStamp();
+            _size++;
+        }
+
+        boolean isValid() {
+            for (int i = 0; i < _size; i++) {
+                if (_directories[i].getResolveStamp() != _stamps[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class PathKey {
+        // only changed on the thread's lookup key
+        private Directory _base;
+        private String _path;
+
+        PathKey(Directory base, String path) {
+            _base = base;
+            _path = path;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PathKey)) {
+                return false;
+            }
+            PathKey other = (PathKey) o;
+            return _base == other._base && _path.equals(other._path);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(_base) + _path.hashCode();
+        }
+    }
+
+    private static final class Entry {
+        private final File _file;
+        private final Chain _chain;
+
+        Entry(File file, Chain chain) {
+            _file = file;
+            _chain = chain;
+        }
+    }
+}
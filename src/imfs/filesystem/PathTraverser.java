@@ -6,22 +6,28 @@ import imfs.api.File;
 import org.apache.commons.lang3.StringUtils;
 
 import javax.annotation.Nullable;
-import java.util.Arrays;
-import java.util.List;
-import java.util.stream.Collectors;
 
 
 /**
  * A helper class to traverse to target {@link File} at different levels in an in-memory files system.
  */
 public class PathTraverser {
+    private static final char DELIMITER_CHAR = File.DELIMITER.charAt(0);
+
     private Directory _root;
 
     private Directory _cwd;
 
+    private PathCache _pathCache;
+
     public PathTraverser(Directory root, Directory cwd) {
+        this(root, cwd, PathCache.getInstance());
+    }
+
+    public PathTraverser(Directory root, Directory cwd, PathCache pathCache) {
         _root = root;
         _cwd = cwd;
+        _pathCache = pathCache;
     }
 
     /**
@@ -32,8 +38,7 @@ public class PathTraverser {
      * @return {@link File} if found the target with exact name, otherwise null.
      */
     public File traverseOneLevel(String target, boolean createOnNotExist) {
-        String[] subs = new String[] {target};
-        File found = locateChildren(subs, createOnNotExist, 0, _cwd);
+        File found = locateChildren(target, createOnNotExist, _cwd, null);
         // change cwd to located dir, no-op is a concrete file is found
         if (found != null && found.isDirectory()) {
             _cwd = (Directory) found;
@@ -52,6 +57,8 @@ public class PathTraverser {
      * /foo/
      * /foo/bar/
      * /foo/bar/foobar/
+     * Resolved paths are served from the {@link PathCache} when possible, a cached path exists
+     * so it resolves the same way whether creation is enforced or not.
      * @param path a string path, can be partial from current working directory, or a full path starting from root "/"
      * @param createOnNotExist enforce directory creation if any element in the path is not existing
      * @return the target {@link File} to traverse to, this could be null if creationOnExist is not enforced
@@ -65,13 +72,15 @@ public class PathTraverser {
             return _cwd;
         }
 
-        List<String> subs = Arrays.asList(path.split(File.DELIMITER)).stream()
-                .filter(e -> !StringUtils.isEmpty(e))
-                .collect(Collectors.toList());
-        String[] subArray = new String[subs.size()];
-        subs.toArray(subArray);
-        File found = path.startsWith(File.DELIMITER) ? locateChildren(subArray, createOnNotExist, 0, _root) :
-                locateChildren(subArray, createOnNotExist, 0, _cwd);
+        Directory base = path.startsWith(File.DELIMITER) ? _root : _cwd;
+        File found = _pathCache.get(base, path);
+        if (found == null) {
+            PathCache.Chain chain = new PathCache.Chain();
+            found = locateChildren(path, createOnNotExist, base, chain);
+            if (found != null) {
+                _pathCache.put(base, path, found, chain);
+            }
+        }
         // change cwd to located dir, no-op is a concrete file is found
         if (found != null && found.isDirectory()) {
             _cwd = (Directory) found;
@@ -81,45 +90,66 @@ public class PathTraverser {
 
     /**
      * Helper function to facilitate children traversal.
-     * @param subs all sub {@link File}s on the traversal path
+     * The path is walked in place with a cursor, one level at a time, instead of being split up front,
+     * repeated delimiters are skipped the same way as empty path elements.
+     * @param path path of the {@link File} to locate, every element on it is resolved against the previous one
      * @param createOnNotExist enforcing flag to force creation of non-existing {@link File},
      *                         note that any non-existing {@link  File} will be created as {@link Directory},
      *                         instead of {@link ConcreteFile} to accommodate various file types
-     * @param idx  index of the current {@link File} being traversed to
-     * @param curFolder current {@link Directory} to look for the above {@link File} being traversed to
+     * @param curFolder {@link Directory} to resolve the first path element against
+     * @param chain records the directories resolved through, null if the path isn't cached
      * @return the found {@link File}, could be null if createOnNotExist option is not enforced
      */
-    private @Nullable File locateChildren(String[] subs, boolean createOnNotExist, int idx, Directory curFolder) {
-        Preconditions.checkArgument(idx < subs.length);
-        String curSub = subs[idx];
-        switch (curSub) {
-            case File.CURRENT_DIR_DOT:
-                if (idx == subs.length - 1) {
-                    return curFolder;
-                }
-                return locateChildren(subs, createOnNotExist, idx + 1, curFolder);
-            case File.SINGLE_LEVEL_PARENT:
-                Directory parent = curFolder.isRoot()? curFolder : curFolder.getParent();
-                if (idx == subs.length - 1) {
-                    return parent;
-                }
-                return locateChildren(subs, createOnNotExist, idx + 1, parent);
-            default:
-                File found = curFolder.getNameToSubFile().getOrDefault(curSub, null);
-                if (found == null) {
-                    found = createOnNotExist ? curFolder.createNewSubFile(curSub, true) : null;
-                }
-                if (idx == subs.length - 1) {
-                    return found;
-                }
-                if (found != null) {
-                    // if concrete file under same name is found before last level
-                    Preconditions.checkState(found.isDirectory(),
-                            String.format("File with same name %s already exists but not a directory!", curSub));
+    private @Nullable File locateChildren(String path, boolean createOnNotExist, Directory curFolder,
+                                          @Nullable PathCache.Chain chain) {
+        int length = path.length();
+        int start = skipDelimiters(path, 0);
+        while (start < length) {
+            int end = path.indexOf(DELIMITER_CHAR, start);
+            if (end < 0) {
+                end = length;
+            }
+            boolean currentDir = isElement(path, start, end, File.CURRENT_DIR_DOT);
+            if (chain != null && !currentDir) {
+                // recorded before reading the sub files or the parent of the directory
+                chain.add(curFolder);
+            }
+            File found;
+            if (currentDir) {
+                found = curFolder;
+            } else if (isElement(path, start, end, File.SINGLE_LEVEL_PARENT)) {
+                found = curFolder.isRoot() ? curFolder : curFolder.getParent();
+            } else {
+                String curSub = start == 0 && end == length ? path : path.substring(start, end);
+                found = curFolder.getSubFile(curSub);
+                if (found == null && createOnNotExist) {
+                    found = curFolder.createNewSubFile(curSub, true);
                 }
+            }
+            start = skipDelimiters(path, end);
+            if (start == length || found == null) {
+                return found;
+            }
+            // if concrete file under same name is found before last level
+            Preconditions.checkState(found.isDirectory(),
+                    "File with same name %s already exists but not a directory!", found.getName());
+            curFolder = (Directory) found;
+        }
+        return curFolder;
+    }
 
-                return found == null ? null : locateChildren(subs, createOnNotExist, idx + 1, (Directory) found);
+    private static int skipDelimiters(String path, int pos) {
+        while (pos < path.length() && path.charAt(pos) == DELIMITER_CHAR) {
+            pos++;
         }
+        return pos;
+    }
+
+    /**
+     * Returns true if the path element between the given indexes equals the given name, without extracting it.
+     */
+    private static boolean isElement(String path, int start, int end, String name) {
+        return end - start == name.length() && path.startsWith(name, start);
     }
 
     /**
@@ -134,6 +164,32 @@ public class PathTraverser {
         return _cwd;
     }
 
+    /**
+     * Traverse to the directory a file is moved or copied into, given the location it's moved or copied to.
+     * The directory is the part of the location before its last delimiter, a location without any delimiter
+     * is a name in the current working directory.
+     * @param targetLocation destination path, can be partial from current working directory, or a full path
+     * @param createOnNonExist enforce directory creation if any element of the path is not existing
+     * @return the directory to move or copy into
+     */
+    public File traverseToTargetDirectory(String targetLocation, boolean createOnNonExist) {
+        if (!targetLocation.contains(File.DELIMITER)) {
+            // same directory move
+            return _cwd;
+        }
+        if (targetLocation.startsWith(File.DELIMITER)) {
+            traverseToRoot();
+        }
+        String dirStr = targetLocation.substring(0, targetLocation.lastIndexOf(File.DELIMITER));
+        //moving to root
+        File targetDirectory = StringUtils.isEmpty(dirStr) ? _cwd : traverseToAnyLevel(dirStr, createOnNonExist);
+        Preconditions.checkState(targetDirectory != null, String.format("File %s doesn't exist!", dirStr));
+        // if concrete file under same name is found before last level
+        Preconditions.checkState(targetDirectory.isDirectory(),
+                String.format("File %s already exists but it's not a directory!", dirStr));
+        return targetDirectory;
+    }
+
     @VisibleForTesting
     public Directory getCwd() {
         return _cwd;
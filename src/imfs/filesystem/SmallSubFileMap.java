@@ -0,0 +1,133 @@
+package imfs.filesystem;
+
+import imfs.api.File;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+
+/**
+ * Sub file map of a small {@link Directory}, names and files inline in one array instead of a hash table
+ * with a node per entry. Most directories hold a handful of files, a directory outgrowing {@link #MAX_SIZE}
+ * switches to a {@link java.util.concurrent.ConcurrentHashMap}.
+ *
+ * Changes copy the array and are made under the lock of the directory, lookups and iterations read
+ * the array as of their start without locking, the same as the weakly consistent views of the concurrent map.
+ */
+final class SmallSubFileMap extends AbstractMap<String, File> {
+    static final int MAX_SIZE = 8;
+    private static final Object[] EMPTY = new Object[0];
+
+    // names at even indexes, each followed by its file
+    private volatile Object[] _entries = EMPTY;
+
+    SmallSubFileMap() {
+    }
+
+    boolean isFull() {
+        return _entries.length == 2 * MAX_SIZE;
+    }
+
+    private static int indexOf(Object[] entries, Object name) {
+        for (int i = 0; i < entries.length; i += 2) {
+            if (entries[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int size() {
+        return _entries.length / 2;
+    }
+
+    @Override
+    public boolean containsKey(Object name) {
+        return indexOf(_entries, name) >= 0;
+    }
+
+    @Override
+    public File get(Object name) {
+        Object[] entries = _entries;
+        int idx = indexOf(entries, name);
+        return idx < 0 ? null : (File) entries[idx + 1];
+    }
+
+    /**
+     * Map a name to a file, the caller holds the lock of the directory and promotes a full map first.
+     */
+    @Override
+    public File put(String name, File file) {
+        Object[] entries = _entries;
+        int idx = indexOf(entries, name);
+        Object[] changed;
+        if (idx < 0) {
+            changed = Arrays.copyOf(entries, entries.length + 2);
+            idx = entries.length;
+            changed[idx] = name;
+        } else {
+            changed = entries.clone();
+        }
+        changed[idx + 1] = file;
+        _entries = changed;
+        return idx < entries.length ? (File) entries[idx + 1] : null;
+    }
+
+    @Override
+    public File remove(Object name) {
+        Object[] entries = _entries;
+        int idx = indexOf(entries, name);
+        if (idx < 0) {
+            return null;
+        }
+        Object[] changed = new Object[entries.length - 2];
+        System.arraycopy(entries, 0, changed, 0, idx);
+        System.arraycopy(entries, idx + 2, changed, idx, entries.length - idx - 2);
+        _entries = changed;
+        return (File) entries[idx + 1];
+    }
+
+    @Override
+    public void clear() {
+        _entries = EMPTY;
+    }
+
+    @Override
+    public Set<Entry<String, File>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<String, File>> iterator() {
+                Object[] entries = _entries;
+                return new Iterator<>() {
+                    private int _next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return _next < entries.length;
+                    }
+
+                    @Override
+                    public Entry<String, File> next() {
+                        if (_next >= entries.length) {
+                            throw new NoSuchElementException();
+                        }
+                        Entry<String, File> entry =
+                                new SimpleImmutableEntry<>((String) entries[_next], (File) entries[_next + 1]);
+                        _next += 2;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return SmallSubFileMap.this.size();
+            }
+        };
+    }
+}
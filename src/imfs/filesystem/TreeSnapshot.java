@@ -0,0 +1,119 @@
+package imfs.filesystem;
+
+import com.google.common.base.Preconditions;
+import imfs.api.File;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A consistent read only view of the directory structure as of one version of {@link TreeVersions}.
+ * Writers are not blocked by open snapshots, a snapshot sees every change of a version or none of it,
+ * e.g. a file being moved is listed either in its old directory or in its new one.
+ * Only the structure is versioned, the content of files is read as of now.
+ *
+ * Sub files are listed by the names they had in the snapshot, which may differ from their current names.
+ * A snapshot keeps undo records alive until it's closed, so it should be closed after use.
+ */
+public class TreeSnapshot implements AutoCloseable {
+    private final long _version;
+    private final TreeVersions _versions;
+    private boolean _closed;
+
+    TreeSnapshot(long version, TreeVersions versions) {
+        _version = version;
+        _versions = versions;
+    }
+
+    public long getVersion() {
+        return _version;
+    }
+
+    /**
+     * List the sub files of the given {@link Directory} as of this snapshot.
+     * @return map of sub file names to sub files, empty if the directory didn't exist in this snapshot
+     */
+    public Map<String, File> listSubFiles(Directory dir) {
+        ensureOpen();
+        // the map is read before the undo log, a change missing from the log hasn't reached the map yet
+        Map<String, File> current = dir.getNameToSubFile();
+        Map<String, File> subFiles = current == null ? new HashMap<>() : new HashMap<>(current);
+        for (Directory.UndoRecord record : oldestNewerRecords(dir, null).values()) {
+            if (record._previous == null) {
+                subFiles.remove(record._name);
+            } else {
+                subFiles.put(record._name, record._previous);
+            }
+        }
+        return subFiles;
+    }
+
+    /**
+     * Look up a direct sub file of the given {@link Directory} as of this snapshot.
+     * @return the sub file, null if the name wasn't mapped in this snapshot
+     */
+    public @Nullable File getSubFile(Directory dir, String name) {
+        ensureOpen();
+        File found = dir.getSubFile(name);
+        Directory.UndoRecord record = oldestNewerRecords(dir, name).get(name);
+        return record == null ? found : record._previous;
+    }
+
+    /**
+     * Find {@link File}s matching the given name exactly as of this snapshot, same as
+     * {@link Directory#findExactMath(String, List, boolean)} on the live tree.
+     * @return matching files
+     */
+    public List<File> findExactMatch(Directory dir, String name, boolean recursive) {
+        List<File> res = new ArrayList<>();
+        findExactMatch(dir, name, recursive, res);
+        return res;
+    }
+
+    private void findExactMatch(Directory dir, String name, boolean recursive, List<File> res) {
+        for (Map.Entry<String, File> sub : listSubFiles(dir).entrySet()) {
+            File file = sub.getValue();
+            if (name.equals(sub.getKey())) {
+                res.add(file);
+            }
+            if (recursive && file.isDirectory()) {
+                findExactMatch((Directory) file, name, recursive, res);
+            }
+        }
+    }
+
+    /**
+     * Collect per name the first undo record of the versions newer than this snapshot,
+     * it holds the entry the name mapped to in this snapshot.
+     * @param name name to collect the record of, null for all names
+     */
+    private Map<String, Directory.UndoRecord> oldestNewerRecords(Directory dir, @Nullable String name) {
+        Map<String, Directory.UndoRecord> oldest = new HashMap<>();
+        // the log is newest first, and records of the same version are kept in the order they were made
+        for (Directory.UndoRecord record = dir.getUndoLog(); record != null; record = record._next) {
+            if (record._version > _version && (name == null || name.equals(record._name))) {
+                oldest.merge(record._name, record, (kept, older) -> older._version <= kept._version ? older : kept);
+            }
+        }
+        return oldest;
+    }
+
+    private void ensureOpen() {
+        Preconditions.checkState(!_closed, "Snapshot %s is closed!", _version);
+    }
+
+    /**
+     * Release this snapshot, undo records only it needed can be trimmed afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        if (!_closed) {
+            _closed = true;
+            _versions.release(_version);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package imfs.filesystem;
+
+import com.google.common.base.Preconditions;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Version clock of the file tree, used to give readers consistent {@link TreeSnapshot}s without blocking writers.
+ *
+ * Every change of the tree, e.g. a file move touching two directories, runs as one version: the writer
+ * calls {@link #begin()} once it holds the locks of the directories it changes, records the previous sub files of
+ * these directories under the version, and calls {@link #commit()} after releasing the locks. Versions commit
+ * without waiting for each other, a snapshot pins the version right below the oldest one still in flight, so it sees
+ * either all or none of the changes of any version.
+ * Nested changes on the same thread, e.g. the sub file deletions of a directory deletion, join the outer version.
+ *
+ * Undo records are only needed by snapshots, changes only record them while a snapshot is open or being opened.
+ * Opening a snapshot turns recording on and waits for the changes started before to finish, so every version newer
+ * than the pinned one is recorded. Records older than the oldest pinned snapshot are no longer needed,
+ * directories trim them as they record new changes and once the snapshots are released, see {@link #watermark()}.
+ */
+public class TreeVersions {
+    private static final TreeVersions INSTANCE = new TreeVersions();
+    // version of a thread not in a change
+    private static final long IDLE = Long.MAX_VALUE;
+
+    private final AtomicLong _lastStarted = new AtomicLong();
+    // whether changes starting now record undo records, changed under the monitor
+    private volatile boolean _recording;
+    private volatile long _watermark;
+    // guarded by the monitor: pinned version to number of open snapshots pinning it, and snapshots being opened
+    private final TreeMap<Long, Integer> _pinned = new TreeMap<>();
+    private int _opening;
+    // changes of all threads that ever changed a tree, and directories holding undo records
+    private final Set<Change> _changes = ConcurrentHashMap.newKeySet();
+    private final Set<Directory> _undoLogged = ConcurrentHashMap.newKeySet();
+    private final ThreadLocal<Change> _currentChange = ThreadLocal.withInitial(this::newChange);
+
+    public static TreeVersions getInstance() {
+        return INSTANCE;
+    }
+
+    private Change newChange() {
+        Change change = new Change(Thread.currentThread());
+        _changes.add(change);
+        return change;
+    }
+
+    /**
+     * Start a change of the tree, or join the change the current thread is already in.
+     * @return version of the change
+     */
+    long begin() {
+        Change change = _currentChange.get();
+        if (change._depth++ == 0) {
+            // a lower bound of the version is published before taking it, so snapshots never miss a change in flight
+            change._version = _lastStarted.get() + 1;
+            change._version = _lastStarted.incrementAndGet();
+            // read after taking the version, see openSnapshot
+            change._recording = _recording;
+        }
+        return change._version;
+    }
+
+    /**
+     * @return version of the change the current thread is in
+     */
+    long currentVersion() {
+        Change change = _currentChange.get();
+        Preconditions.checkState(change._depth > 0, "Tree is changed outside of a version!");
+        return change._version;
+    }
+
+    /**
+     * @return whether the change the current thread is in records undo records
+     */
+    boolean isRecording() {
+        Change change = _currentChange.get();
+        Preconditions.checkState(change._depth > 0, "Tree is changed outside of a version!");
+        return change._recording;
+    }
+
+    /**
+     * Finish a change started by {@link #begin()}, the outermost call publishes the version.
+     * Must be called after releasing the directory locks.
+     */
+    void commit() {
+        Change change = _currentChange.get();
+        if (--change._depth > 0) {
+            return;
+        }
+        change._version = IDLE;
+        if (change._recording && !_recording) {
+            // recorded after the last snapshot was released, nothing trims the records otherwise
+            trimUndoLogs();
+        }
+    }
+
+    /**
+     * Open a snapshot of the tree as of the version right below the oldest change still in flight,
+     * the snapshot must be closed after use.
+     */
+    public TreeSnapshot openSnapshot() {
+        // it would wait for its own change
+        Preconditions.checkState(_currentChange.get()._depth == 0, "A snapshot can't be opened within a change of the tree!");
+        long started;
+        synchronized (this) {
+            _opening++;
+            _recording = true;
+            started = _lastStarted.get();
+        }
+        // changes taking a version after this see recording on, wait for the ones which may not record
+        for (Change change : _changes) {
+            while (change._version <= started) {
+                Thread.onSpinWait();
+            }
+        }
+        synchronized (this) {
+            long version = oldestInFlight() - 1;
+            _opening--;
+            _pinned.merge(version, 1, Integer::sum);
+            _watermark = _pinned.firstKey();
+            return new TreeSnapshot(version, this);
+        }
+    }
+
+    void release(long version) {
+        synchronized (this) {
+            _pinned.computeIfPresent(version, (v, count) -> count == 1 ? null : count - 1);
+            if (_pinned.isEmpty()) {
+                _recording = _opening > 0;
+                _watermark = oldestInFlight() - 1;
+            } else {
+                _watermark = _pinned.firstKey();
+            }
+        }
+        trimUndoLogs();
+    }
+
+    /**
+     * Oldest version in flight, or the next version if none is, also drops the changes of terminated threads.
+     * Future snapshots pin a version below it, it only grows.
+     */
+    private long oldestInFlight() {
+        long oldest = _lastStarted.get() + 1;
+        for (Iterator<Change> it = _changes.iterator(); it.hasNext(); ) {
+            Change change = it.next();
+            long version = change._version;
+            if (version == IDLE && change._thread.get() == null) {
+                it.remove();
+            }
+            oldest = Math.min(oldest, version);
+        }
+        return oldest;
+    }
+
+    /**
+     * Undo records of versions at or below the watermark aren't needed by any open or future snapshot.
+     */
+    long watermark() {
+        return _watermark;
+    }
+
+    /**
+     * Register a directory holding undo records, called under the lock of the directory.
+     */
+    void undoLogged(Directory dir) {
+        _undoLogged.add(dir);
+    }
+
+    /**
+     * Trim the undo records of all directories holding any, directories left without records are dropped.
+     */
+    private void trimUndoLogs() {
+        for (Directory dir : _undoLogged) {
+            dir.lock();
+            try {
+                if (dir.trimUndoLog()) {
+                    _undoLogged.remove(dir);
+                }
+            } finally {
+                dir.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the newest version all changes up to which are committed
+     */
+    public synchronized long getLastCommitted() {
+        return oldestInFlight() - 1;
+    }
+
+    /**
+     * Version and nesting depth of the change a thread is in.
+     */
+    private static final class Change {
+        private final WeakReference<Thread> _thread;
+        // written by the owning thread only
+        private volatile long _version = IDLE;
+        private int _depth;
+        private boolean _recording;
+
+        Change(Thread thread) {
+            _thread = new WeakReference<>(thread);
+        }
+    }
+}
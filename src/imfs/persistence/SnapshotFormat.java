@@ -0,0 +1,27 @@
+package imfs.persistence;
+
+
+/**
+ * Layout of an IMFS snapshot image, all numbers are big endian:
+ *
+ * header         magic, format version, string count, node count, content section offset and length,
+ *                first {@link WriteAheadLog} generation not covered by the image, 0 if the tree wasn't logged
+ * string table   deduplicated file names, each an int byte length followed by its UTF-8 bytes
+ * node table     fixed size node records, a parent always precedes its sub files:
+ *                parent node index, name string index, node type, content offset in the content section
+ *                and content length. The root is node 0, with no parent and no name.
+ * content        content of all files back to back
+ */
+final class SnapshotFormat {
+    static final int MAGIC = 0x494D4653; // "IMFS"
+    static final int FORMAT_VERSION = 2;
+    static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8 + 8 + 8;
+    static final int NODE_RECORD_SIZE = 4 + 4 + 1 + 8 + 8;
+
+    static final int NO_INDEX = -1;
+    static final byte DIRECTORY_NODE = 0;
+    static final byte FILE_NODE = 1;
+
+    private SnapshotFormat() {
+    }
+}
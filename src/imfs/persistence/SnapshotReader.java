@@ -0,0 +1,125 @@
+package imfs.persistence;
+
+import com.google.common.base.Preconditions;
+import imfs.api.File;
+import imfs.filesystem.ConcreteFile;
+import imfs.filesystem.Directory;
+import imfs.storage.MappedRegion;
+import imfs.storage.SegmentedContent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static imfs.persistence.SnapshotFormat.*;
+
+
+/**
+ * Loads a snapshot image written by {@link SnapshotWriter} into a new file tree.
+ *
+ * The image is memory mapped. Nodes are rebuilt in one pass over the node table, while the content of files,
+ * the bulk of the image, stays in the mapping: it's read from there on demand and only copied into memory when the
+ * file is first changed, see {@link SegmentedContent#mapped}. Loading therefore takes time proportional to the
+ * number of nodes, not to the size of the content, and cold files cost no heap.
+ * The image must not be changed in place while the tree is in use, {@link SnapshotWriter} replaces it by a rename.
+ */
+public class SnapshotReader {
+    // content is mapped in windows, a single mapping can't exceed 2GB
+    private static final long CONTENT_WINDOW_SIZE = 1L << 30;
+
+    private SnapshotReader() {
+    }
+
+    /**
+     * Load a snapshot image.
+     * @param source image file
+     * @return root of the loaded tree
+     */
+    public static Directory read(Path source) throws IOException {
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = readHeader(channel, source);
+            int stringCount = header.getInt();
+            int nodeCount = header.getInt();
+            long contentOffset = header.getLong();
+            long contentLength = header.getLong();
+            if (contentOffset + contentLength != size || contentOffset > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot " + source + " is truncated or corrupted!");
+            }
+
+            MappedByteBuffer tables = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, contentOffset - HEADER_SIZE);
+            String[] strings = new String[stringCount];
+            for (int i = 0; i < stringCount; i++) {
+                byte[] bytes = new byte[tables.getInt()];
+                tables.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            // content windows are mapped upfront, mapping reserves address space but reads no bytes
+            MappedByteBuffer[] windows = new MappedByteBuffer[(int) ((contentLength + CONTENT_WINDOW_SIZE - 1) / CONTENT_WINDOW_SIZE)];
+            for (int w = 0; w < windows.length; w++) {
+                long windowStart = w * CONTENT_WINDOW_SIZE;
+                windows[w] = channel.map(FileChannel.MapMode.READ_ONLY, contentOffset + windowStart,
+                        Math.min(CONTENT_WINDOW_SIZE, contentLength - windowStart));
+            }
+
+            Directory root = new Directory();
+            File[] nodes = new File[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                int parentIndex = tables.getInt();
+                int nameIndex = tables.getInt();
+                byte type = tables.get();
+                long nodeContentOffset = tables.getLong();
+                long nodeContentLength = tables.getLong();
+                if (i == 0) {
+                    nodes[i] = root;
+                    continue;
+                }
+                Preconditions.checkState(parentIndex >= 0 && parentIndex < i && nodes[parentIndex].isDirectory(),
+                        "Snapshot node %s has an invalid parent %s", i, parentIndex);
+                Directory parent = (Directory) nodes[parentIndex];
+                if (type == FILE_NODE && nodeContentLength > 0) {
+                    MappedRegion region = new MappedRegion(windows, CONTENT_WINDOW_SIZE, nodeContentOffset, nodeContentLength);
+                    nodes[i] = new ConcreteFile(strings[nameIndex], parent, SegmentedContent.mapped(region));
+                } else {
+                    nodes[i] = parent.createNewSubFile(strings[nameIndex], type == DIRECTORY_NODE);
+                }
+            }
+            return root;
+        }
+    }
+
+    /**
+     * Read the first {@link WriteAheadLog} generation not covered by a snapshot image, recovery replays the log from it.
+     * @param source image file
+     * @return log generation, 0 if the tree wasn't logged when the image was written
+     */
+    public static long readLogGeneration(Path source) throws IOException {
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            return readHeader(channel, source).getLong(HEADER_SIZE - 8);
+        }
+    }
+
+    /**
+     * Map and validate the header of an image.
+     * @return the header, positioned after the format version
+     */
+    private static ByteBuffer readHeader(FileChannel channel, Path source) throws IOException {
+        if (channel.size() < HEADER_SIZE) {
+            throw new IOException("Snapshot " + source + " is truncated!");
+        }
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("File " + source + " is not an IMFS snapshot!");
+        }
+        int formatVersion = header.getInt();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Snapshot format version " + formatVersion + " is not supported!");
+        }
+        return header;
+    }
+}
@@ -0,0 +1,178 @@
+package imfs.persistence;
+
+import imfs.api.File;
+import imfs.filesystem.ConcreteFile;
+import imfs.filesystem.Directory;
+import imfs.filesystem.MutationLog;
+import imfs.filesystem.TreeSnapshot;
+import imfs.filesystem.TreeVersions;
+import imfs.storage.ContentChannel;
+
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static imfs.persistence.SnapshotFormat.*;
+
+
+/**
+ * Writes a file tree to a snapshot image, see {@link SnapshotFormat}.
+ *
+ * The structure is taken from a {@link TreeSnapshot}, so mutators keep running while the image is written and
+ * the image still holds a consistent tree. The content of every file is taken as of the moment the file is
+ * visited and streamed segment by segment to the image, without being copied in memory.
+ * The image is written to a temporary file first and moved in place when it's complete.
+ *
+ * If the tree is logged by a {@link WriteAheadLog}, the structure is collected at a checkpoint of the
+ * {@link MutationLog}: changes are blocked while nodes are collected, which copies no content, and the image records
+ * the log generation started at the checkpoint. Appends made later are past the content length taken at the
+ * checkpoint and are not written to the image, positional writes may be, but replaying them again is harmless.
+ * Log generations the image covers are deleted once it's in place.
+ */
+public class SnapshotWriter {
+
+    private SnapshotWriter() {
+    }
+
+    /**
+     * Write the tree of the given root to a snapshot image.
+     * @param root root of the tree to write
+     * @param target image file, replaced if it exists
+     */
+    public static void write(Directory root, Path target) throws IOException {
+        List<Node> nodes = new ArrayList<>();
+        Map<String, Integer> stringIndexes = new HashMap<>();
+        List<byte[]> strings = new ArrayList<>();
+        MutationLog mutationLog = MutationLog.getInstance();
+        long logGeneration = mutationLog.beginCheckpoint(root);
+        try (TreeSnapshot snapshot = TreeVersions.getInstance().openSnapshot()) {
+            collectNodes(root, snapshot, nodes, stringIndexes, strings);
+        } finally {
+            mutationLog.endCheckpoint();
+        }
+
+        long contentOffset = HEADER_SIZE + (long) nodes.size() * NODE_RECORD_SIZE;
+        for (byte[] string : strings) {
+            contentOffset += 4 + string.length;
+        }
+        long contentLength = 0;
+        for (Node node : nodes) {
+            contentLength += node._contentLength;
+        }
+
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // the stream is flushed but not closed, closing it would close the channel
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(strings.size());
+            out.writeInt(nodes.size());
+            out.writeLong(contentOffset);
+            out.writeLong(contentLength);
+            out.writeLong(logGeneration);
+            for (byte[] string : strings) {
+                out.writeInt(string.length);
+                out.write(string);
+            }
+            long nodeContentOffset = 0;
+            for (Node node : nodes) {
+                out.writeInt(node._parentIndex);
+                out.writeInt(node._nameIndex);
+                out.writeByte(node._directory ? DIRECTORY_NODE : FILE_NODE);
+                out.writeLong(nodeContentOffset);
+                out.writeLong(node._contentLength);
+                nodeContentOffset += node._contentLength;
+            }
+            out.flush();
+
+            for (Node node : nodes) {
+                if (node._content != null && node._contentLength > 0) {
+                    node._content.transferTo(0, node._contentLength, channel);
+                }
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        WriteAheadLog log = mutationLog.getLog(root);
+        if (log != null && logGeneration > 0) {
+            log.deleteGenerationsBefore(logGeneration);
+        }
+    }
+
+    /**
+     * Collect the nodes of the tree, every parent is collected before its sub files.
+     */
+    private static void collectNodes(Directory root, TreeSnapshot snapshot, List<Node> nodes,
+                                     Map<String, Integer> stringIndexes, List<byte[]> strings) throws IOException {
+        Deque<Integer> pending = new ArrayDeque<>();
+        List<Directory> directories = new ArrayList<>();
+        nodes.add(new Node(NO_INDEX, NO_INDEX, true, null, 0));
+        directories.add(root);
+        pending.push(0);
+        while (!pending.isEmpty()) {
+            int parentIndex = pending.pop();
+            Directory dir = directories.get(parentIndex);
+            for (Map.Entry<String, File> sub : snapshot.listSubFiles(dir).entrySet()) {
+                int nameIndex = stringIndexes.computeIfAbsent(sub.getKey(), name -> {
+                    strings.add(name.getBytes(StandardCharsets.UTF_8));
+                    return strings.size() - 1;
+                });
+                File file = sub.getValue();
+                if (file.isDirectory()) {
+                    nodes.add(new Node(parentIndex, nameIndex, true, null, 0));
+                    directories.add((Directory) file);
+                    pending.push(nodes.size() - 1);
+                } else {
+                    ContentChannel content = openContent((ConcreteFile) file);
+                    long contentLength = content == null ? 0 : content.size();
+                    nodes.add(new Node(parentIndex, nameIndex, false, content, contentLength));
+                    directories.add(null);
+                }
+            }
+        }
+    }
+
+    /**
+     * A channel stays readable after its file is deleted, so content is captured when the file is visited.
+     */
+    private static @Nullable ContentChannel openContent(ConcreteFile file) {
+        try {
+            return file.newReadChannel();
+        } catch (IllegalStateException e) {
+            // deleted after the snapshot was taken, written as an empty file
+            return null;
+        }
+    }
+
+    private static final class Node {
+        private final int _parentIndex;
+        private final int _nameIndex;
+        private final boolean _directory;
+        private final @Nullable ContentChannel _content;
+        private final long _contentLength;
+
+        Node(int parentIndex, int nameIndex, boolean directory, @Nullable ContentChannel content, long contentLength) {
+            _parentIndex = parentIndex;
+            _nameIndex = nameIndex;
+            _directory = directory;
+            _content = content;
+            _contentLength = contentLength;
+        }
+    }
+}
@@ -0,0 +1,523 @@
+package imfs.persistence;
+
+import com.google.common.base.Preconditions;
+import imfs.api.File;
+import imfs.filesystem.ConcreteFile;
+import imfs.filesystem.Directory;
+import imfs.filesystem.FileModifyOptions;
+import imfs.filesystem.PathTraverser;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static imfs.persistence.WriteAheadLogFormat.*;
+
+
+/**
+ * Write-ahead log of the changes of a file tree, see {@link WriteAheadLogFormat} and {@link imfs.filesystem.MutationLog}.
+ *
+ * Appending a record only copies it into an in-memory batch and hands out its sequence number, the record is made
+ * durable by {@link #sync(long)}. Syncs are group committed: the first syncing writer leads the next commit and
+ * writes and fsyncs every record appended so far, writers syncing meanwhile wait for it or for the commit after it.
+ * A leader can wait up to a delay for a batch of records to fill up first, trading commit latency for fewer fsyncs.
+ *
+ * Recovery replays the generations not covered by the snapshot the tree was loaded from, a record torn by a crash
+ * can only be at the end of the last generation and is dropped.
+ */
+public class WriteAheadLog implements Closeable {
+    private static final int INITIAL_BATCH_CAPACITY = 64 * 1024;
+
+    private final Path _directory;
+    private final int _batchSize;
+    private final long _maxBatchDelayNanos;
+
+    // everything below is guarded by the monitor of this log
+    private long _generation;
+    private FileChannel _channel;
+    // records appended but not written yet, and the written batch buffer kept for reuse
+    private ByteBuffer _pending = ByteBuffer.allocateDirect(INITIAL_BATCH_CAPACITY);
+    private ByteBuffer _spare = ByteBuffer.allocateDirect(INITIAL_BATCH_CAPACITY);
+    private int _pendingRecords;
+    private long _appended;
+    private volatile long _durable;
+    // set while a leader writes a batch without holding the monitor
+    private boolean _flushing;
+    private IOException _failure;
+    private boolean _closed;
+    private long _syncCount;
+
+    private WriteAheadLog(Path directory, long generation, int batchSize, long maxBatchDelayNanos) throws IOException {
+        _directory = directory;
+        _generation = generation;
+        _batchSize = batchSize;
+        _maxBatchDelayNanos = maxBatchDelayNanos;
+        _channel = openGeneration(directory, generation);
+    }
+
+    /**
+     * Replay the log in the given directory on top of a tree loaded from a snapshot, and open the log
+     * to append the further changes of the tree to.
+     * @param directory log directory, created if it doesn't exist
+     * @param fromGeneration first generation not covered by the snapshot, see {@link SnapshotReader#readLogGeneration}
+     * @param root root of the tree loaded from the snapshot, or an empty root
+     * @param batchSize number of records a group commit waits for before it fsyncs, 1 to never wait
+     * @param maxBatchDelay longest a group commit waits for its batch to fill up
+     * @return the opened log
+     */
+    public static WriteAheadLog recover(Path directory, long fromGeneration, Directory root,
+                                        int batchSize, long maxBatchDelay, TimeUnit unit) throws IOException {
+        Preconditions.checkArgument(batchSize > 0, "batch size %s must be positive", batchSize);
+        Files.createDirectories(directory);
+        List<Long> generations = listGenerations(directory);
+        long last = fromGeneration - 1;
+        for (int i = 0; i < generations.size(); i++) {
+            long generation = generations.get(i);
+            if (generation >= fromGeneration) {
+                replay(directory.resolve(fileName(generation)), i == generations.size() - 1, root);
+            }
+            last = Math.max(last, generation);
+        }
+        return new WriteAheadLog(directory, last + 1, batchSize, unit.toNanos(maxBatchDelay));
+    }
+
+    public long appendCreate(String path, boolean isDirectory) {
+        byte[] pathBytes = utf8(path);
+        return append(CREATE, stringSize(pathBytes) + 1, body -> {
+            putString(body, pathBytes);
+            body.put(isDirectory ? (byte) 1 : 0);
+        });
+    }
+
+    public long appendContent(String path, byte[] content) {
+        byte[] pathBytes = utf8(path);
+        return append(APPEND, stringSize(pathBytes) + content.length, body -> {
+            putString(body, pathBytes);
+            body.put(content);
+        });
+    }
+
+    /**
+     * Append a positional write, the position of the source buffer is left untouched.
+     */
+    public long appendWrite(String path, long position, ByteBuffer src) {
+        byte[] pathBytes = utf8(path);
+        return append(WRITE, stringSize(pathBytes) + 8 + src.remaining(), body -> {
+            putString(body, pathBytes);
+            body.putLong(position);
+            body.put(src.duplicate());
+        });
+    }
+
+    public long appendTruncate(String path, long size) {
+        byte[] pathBytes = utf8(path);
+        return append(TRUNCATE, stringSize(pathBytes) + 8, body -> {
+            putString(body, pathBytes);
+            body.putLong(size);
+        });
+    }
+
+    public long appendMove(String path, String destination, FileModifyOptions modifyOption) {
+        byte[] pathBytes = utf8(path);
+        byte[] destinationBytes = utf8(destination);
+        return append(MOVE, stringSize(pathBytes) + stringSize(destinationBytes) + 1, body -> {
+            putString(body, pathBytes);
+            putString(body, destinationBytes);
+            body.put((byte) modifyOption.ordinal());
+        });
+    }
+
+    public long appendCopy(String path, String destination, FileModifyOptions modifyOption) {
+        byte[] pathBytes = utf8(path);
+        byte[] destinationBytes = utf8(destination);
+        return append(COPY, stringSize(pathBytes) + stringSize(destinationBytes) + 1, body -> {
+            putString(body, pathBytes);
+            putString(body, destinationBytes);
+            body.put((byte) modifyOption.ordinal());
+        });
+    }
+
+    public long appendRename(String path, String newName) {
+        byte[] pathBytes = utf8(path);
+        byte[] nameBytes = utf8(newName);
+        return append(RENAME, stringSize(pathBytes) + stringSize(nameBytes), body -> {
+            putString(body, pathBytes);
+            putString(body, nameBytes);
+        });
+    }
+
+    public long appendDelete(String path) {
+        byte[] pathBytes = utf8(path);
+        return append(DELETE, stringSize(pathBytes), body -> putString(body, pathBytes));
+    }
+
+    public long appendDeleteSubFile(String directoryPath, String name, boolean isDeadFile) {
+        byte[] pathBytes = utf8(directoryPath);
+        byte[] nameBytes = utf8(name);
+        return append(DELETE_SUB_FILE, stringSize(pathBytes) + stringSize(nameBytes) + 1, body -> {
+            putString(body, pathBytes);
+            putString(body, nameBytes);
+            body.put(isDeadFile ? (byte) 1 : 0);
+        });
+    }
+
+    /**
+     * Copy a record into the pending batch.
+     * @return sequence number of the record
+     */
+    private synchronized long append(byte type, int fieldsSize, Consumer<ByteBuffer> fields) {
+        Preconditions.checkState(!_closed, "Write-ahead log is closed!");
+        int bodySize = 1 + fieldsSize;
+        ensurePendingCapacity(RECORD_HEADER_SIZE + bodySize);
+        int start = _pending.position();
+        _pending.position(start + RECORD_HEADER_SIZE);
+        _pending.put(type);
+        fields.accept(_pending);
+        CRC32 crc = new CRC32();
+        crc.update(_pending.slice(start + RECORD_HEADER_SIZE, bodySize));
+        _pending.putInt(start, bodySize);
+        _pending.putInt(start + 4, (int) crc.getValue());
+        if (++_pendingRecords >= _batchSize) {
+            // wake a leader waiting for its batch to fill up
+            notifyAll();
+        }
+        return ++_appended;
+    }
+
+    private void ensurePendingCapacity(int size) {
+        if (_pending.remaining() >= size) {
+            return;
+        }
+        ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(_pending.capacity() * 2, _pending.position() + size));
+        grown.put(_pending.flip());
+        _pending = grown;
+    }
+
+    /**
+     * Wait until the record of the given sequence number, and every record before it, is durable.
+     * Leads a group commit if none is in progress.
+     */
+    public void sync(long sequence) throws IOException {
+        ByteBuffer batch;
+        long batchEnd;
+        FileChannel channel;
+        synchronized (this) {
+            while (_durable < sequence && _flushing && _failure == null) {
+                awaitUninterruptibly(0);
+            }
+            if (_durable >= sequence) {
+                return;
+            }
+            checkNotFailed();
+            _flushing = true;
+            long deadline = System.nanoTime() + _maxBatchDelayNanos;
+            long remaining;
+            while (_pendingRecords < _batchSize && (remaining = deadline - System.nanoTime()) > 0) {
+                awaitUninterruptibly(remaining);
+            }
+            batch = _pending;
+            batchEnd = _appended;
+            channel = _channel;
+            _pending = _spare;
+            _spare = null;
+            _pendingRecords = 0;
+        }
+        // the batch is written without the monitor, writers keep appending to the other buffer meanwhile
+        IOException failure = null;
+        try {
+            write(channel, batch);
+        } catch (IOException e) {
+            failure = e;
+        }
+        synchronized (this) {
+            _flushing = false;
+            _spare = batch.clear();
+            if (failure == null) {
+                _durable = batchEnd;
+                _syncCount++;
+            } else {
+                _failure = failure;
+            }
+            notifyAll();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Write and fsync the pending records while holding the monitor, no group commit can be in progress.
+     */
+    private void flushPending() throws IOException {
+        checkNotFailed();
+        if (_pendingRecords == 0) {
+            return;
+        }
+        write(_channel, _pending);
+        _pending.clear();
+        _pendingRecords = 0;
+        _durable = _appended;
+        _syncCount++;
+        notifyAll();
+    }
+
+    private static void write(FileChannel channel, ByteBuffer batch) throws IOException {
+        batch.flip();
+        while (batch.hasRemaining()) {
+            channel.write(batch);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Make every appended record durable and start a new generation, records appended from now on go to it.
+     * Callers make sure no record is appended meanwhile.
+     * @return the new generation
+     */
+    public synchronized long rotate() throws IOException {
+        Preconditions.checkState(!_closed, "Write-ahead log is closed!");
+        awaitFlushed();
+        flushPending();
+        _channel.close();
+        _generation++;
+        _channel = openGeneration(_directory, _generation);
+        return _generation;
+    }
+
+    /**
+     * Delete the generations older than the given one, once a snapshot covering them is in place.
+     */
+    public void deleteGenerationsBefore(long generation) throws IOException {
+        for (long old : listGenerations(_directory)) {
+            if (old < generation) {
+                Files.deleteIfExists(_directory.resolve(fileName(old)));
+            }
+        }
+    }
+
+    /**
+     * Make every appended record durable and close the log.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (_closed) {
+            return;
+        }
+        awaitFlushed();
+        try {
+            flushPending();
+        } finally {
+            _closed = true;
+            _channel.close();
+        }
+    }
+
+    public synchronized long getGeneration() {
+        return _generation;
+    }
+
+    /**
+     * @return number of records appended since the log was opened
+     */
+    public synchronized long getRecordCount() {
+        return _appended;
+    }
+
+    /**
+     * @return number of fsyncs since the log was opened, records per fsync tell how well commits are grouped
+     */
+    public synchronized long getSyncCount() {
+        return _syncCount;
+    }
+
+    private void awaitFlushed() {
+        while (_flushing) {
+            awaitUninterruptibly(0);
+        }
+    }
+
+    /**
+     * Wait on the monitor, a change waiting for durability can't be abandoned so interrupts are deferred.
+     * @param nanos longest time to wait, 0 to wait until notified
+     */
+    private void awaitUninterruptibly(long nanos) {
+        try {
+            if (nanos > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, nanos);
+            } else {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkNotFailed() throws IOException {
+        if (_failure != null) {
+            throw new IOException("Write-ahead log failed, records can't be made durable anymore!", _failure);
+        }
+    }
+
+    private static FileChannel openGeneration(Path directory, long generation) throws IOException {
+        return FileChannel.open(directory.resolve(fileName(generation)),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    private static List<Long> listGenerations(Path directory) throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX)) {
+                    try {
+                        generations.add(Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // not a generation file
+                    }
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    /**
+     * Replay the records of one generation file.
+     * @param last whether this is the last generation, the only one a crash can leave a torn record at the end of
+     */
+    private static void replay(Path file, boolean last, Directory root) throws IOException {
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            byte[] header = new byte[RECORD_HEADER_SIZE];
+            while (in.readNBytes(header, 0, RECORD_HEADER_SIZE) == RECORD_HEADER_SIZE) {
+                ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+                int bodySize = headerBuffer.getInt();
+                int checksum = headerBuffer.getInt();
+                if (bodySize <= 0) {
+                    break;
+                }
+                byte[] body = in.readNBytes(bodySize);
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                if (body.length < bodySize || (int) crc.getValue() != checksum) {
+                    break;
+                }
+                try {
+                    apply(ByteBuffer.wrap(body), root);
+                } catch (RuntimeException e) {
+                    throw new IOException("Could not replay record at position " + valid + " of " + file, e);
+                }
+                valid += RECORD_HEADER_SIZE + bodySize;
+            }
+        }
+        if (valid < Files.size(file)) {
+            if (!last) {
+                throw new IOException("Write-ahead log " + file + " is corrupted at position " + valid + "!");
+            }
+            System.err.println("Dropping a torn record at the end of write-ahead log " + file);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+                channel.force(true);
+            }
+        }
+    }
+
+    private static void apply(ByteBuffer body, Directory root) {
+        byte type = body.get();
+        String path = getString(body);
+        switch (type) {
+            case CREATE:
+                Directory parent = resolveDirectory(root, path.substring(0, path.lastIndexOf(File.DELIMITER)));
+                String name = path.substring(path.lastIndexOf(File.DELIMITER) + 1);
+                if (body.get() == 1) {
+                    parent.createNewSubFile(name, true);
+                } else {
+                    // same as creating a sub file, and replaces a same name file like the constructor
+                    new ConcreteFile(name, parent);
+                }
+                break;
+            case APPEND:
+                ConcreteFile appended = resolveFile(root, path);
+                appended.write(appended.getContentSize(), body);
+                break;
+            case WRITE:
+                long position = body.getLong();
+                resolveFile(root, path).write(position, body);
+                break;
+            case TRUNCATE:
+                resolveFile(root, path).truncate(body.getLong());
+                break;
+            case MOVE:
+                String destination = getString(body);
+                resolveFile(root, path).move(destination, false, FileModifyOptions.values()[body.get()]);
+                break;
+            case RENAME:
+                resolve(root, path).setName(getString(body));
+                break;
+            case DELETE:
+                resolve(root, path).delete();
+                break;
+            case DELETE_SUB_FILE:
+                String subFileName = getString(body);
+                resolveDirectory(root, path).deleteSubFile(subFileName, body.get() == 1);
+                break;
+            case COPY:
+                String copyDestination = getString(body);
+                resolve(root, path).copy(copyDestination, false, FileModifyOptions.values()[body.get()]);
+                break;
+            default:
+                throw new IllegalStateException("Unknown log record type " + type);
+        }
+    }
+
+    private static File resolve(Directory root, String path) {
+        File found = new PathTraverser(root, root).traverseToAnyLevel(path, false);
+        Preconditions.checkState(found != null, "Logged file %s doesn't exist!", path);
+        return found;
+    }
+
+    private static Directory resolveDirectory(Directory root, String path) {
+        File found = resolve(root, path);
+        Preconditions.checkState(found.isDirectory(), "Logged directory %s is not a directory!", path);
+        return (Directory) found;
+    }
+
+    private static ConcreteFile resolveFile(Directory root, String path) {
+        File found = resolve(root, path);
+        Preconditions.checkState(!found.isDirectory(), "Logged file %s is a directory!", path);
+        return (ConcreteFile) found;
+    }
+
+    private static byte[] utf8(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int stringSize(byte[] string) {
+        return 4 + string.length;
+    }
+
+    private static void putString(ByteBuffer body, byte[] string) {
+        body.putInt(string.length);
+        body.put(string);
+    }
+
+    private static String getString(ByteBuffer body) {
+        byte[] bytes = new byte[body.getInt()];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
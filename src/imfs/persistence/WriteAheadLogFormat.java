@@ -0,0 +1,43 @@
+package imfs.persistence;
+
+
+/**
+ * Layout of the IMFS write-ahead log, all numbers are big endian.
+ *
+ * The log is a directory of generation files named {@code wal-<generation>.log}, a new generation is started when
+ * a snapshot is taken, see {@link imfs.filesystem.MutationLog#beginCheckpoint}. A generation file is a sequence of
+ * records, each an int body length, the CRC32 of the body and the body: the record type followed by its fields.
+ * Strings are an int byte length followed by their UTF-8 bytes, files are named by their full paths.
+ *
+ * create            path, 1 if a directory is created, 0 for a file
+ * append            path, appended content bytes
+ * write             path, long position, written content bytes
+ * move              path, destination path, ordinal of the {@link imfs.filesystem.FileModifyOptions}
+ * rename            path, new name
+ * delete            path
+ * delete sub file   directory path, name, 1 if the sub file is dead already, 0 otherwise
+ * copy              path, destination path, ordinal of the {@link imfs.filesystem.FileModifyOptions}
+ * truncate          path, long size
+ */
+final class WriteAheadLogFormat {
+    static final String FILE_PREFIX = "wal-";
+    static final String FILE_SUFFIX = ".log";
+    static final int RECORD_HEADER_SIZE = 4 + 4;
+
+    static final byte CREATE = 1;
+    static final byte APPEND = 2;
+    static final byte WRITE = 3;
+    static final byte MOVE = 4;
+    static final byte RENAME = 5;
+    static final byte DELETE = 6;
+    static final byte DELETE_SUB_FILE = 7;
+    static final byte COPY = 8;
+    static final byte TRUNCATE = 9;
+
+    private WriteAheadLogFormat() {
+    }
+
+    static String fileName(long generation) {
+        return FILE_PREFIX + generation + FILE_SUFFIX;
+    }
+}
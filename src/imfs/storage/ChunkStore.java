@@ -0,0 +1,142 @@
+package imfs.storage;
+
+import com.google.common.hash.HashCode;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * An optional content-addressed store of {@link Segment}s, so identical chunks of different files are kept once.
+ *
+ * Once enabled, a full segment is looked up by the hash of its bytes when an append completes it or content is
+ * loaded into segments. If an identical segment is stored already, the content switches to it and its own copy
+ * is dropped, otherwise the segment is stored. Stored segments are shared, so like segments shared by a transfer
+ * they are copied before either side overwrites them, appends never touch them as they are full.
+ *
+ * A stored segment is referenced by the contents using it and weakly by the store, so it lives as long as
+ * any content counts on it and leaves the store once the last one drops it.
+ */
+public class ChunkStore {
+    private static final ChunkStore INSTANCE = new ChunkStore();
+
+    private final Map<HashCode, Chunk> _chunks = new ConcurrentHashMap<>();
+    private final ReferenceQueue<Segment> _collected = new ReferenceQueue<>();
+    private final LongAdder _chunkBytes = new LongAdder();
+    private final LongAdder _dedupedBytes = new LongAdder();
+    private volatile boolean _enabled;
+
+    public static ChunkStore getInstance() {
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return _enabled;
+    }
+
+    /**
+     * Start deduplicating chunks completed or loaded from now on.
+     */
+    public synchronized void enable() {
+        _enabled = true;
+    }
+
+    /**
+     * Stop deduplicating and drop the store, chunks already shared stay shared.
+     */
+    public synchronized void disable() {
+        _enabled = false;
+        _chunks.clear();
+        while (_collected.poll() != null) {
+            // the store is empty, nothing left to unmap
+        }
+    }
+
+    /**
+     * @return bytes of chunks looked up in the store
+     */
+    public long getChunkBytes() {
+        return _chunkBytes.sum();
+    }
+
+    /**
+     * @return bytes of chunks dropped because an identical chunk was stored already
+     */
+    public long getDedupedBytes() {
+        return _dedupedBytes.sum();
+    }
+
+    /**
+     * @return bytes of chunks looked up in the store per byte kept in memory for them, 1 without any duplicates
+     */
+    public double getDedupRatio() {
+        long chunkBytes = getChunkBytes();
+        long keptBytes = chunkBytes - getDedupedBytes();
+        return keptBytes == 0 ? 1 : (double) chunkBytes / keptBytes;
+    }
+
+    /**
+     * @return number of distinct chunks in the store
+     */
+    public int getChunkCount() {
+        expungeCollected();
+        return _chunks.size();
+    }
+
+    /**
+     * Look up a full segment by its bytes, storing it if no identical segment is stored yet.
+     * Must be called holding a lock keeping the segment from being written meanwhile.
+     * @return the stored identical segment, or the given segment itself
+     */
+    Segment intern(Segment segment) {
+        if (!_enabled) {
+            return segment;
+        }
+        expungeCollected();
+        HashCode hash = segment.hash();
+        _chunkBytes.add(segment.capacity());
+        while (true) {
+            Chunk chunk = _chunks.get(hash);
+            Segment stored = chunk == null ? null : chunk.get();
+            if (stored == null) {
+                Chunk fresh = new Chunk(hash, segment.share(), _collected);
+                boolean added = chunk == null ? _chunks.putIfAbsent(hash, fresh) == null : _chunks.replace(hash, chunk, fresh);
+                if (added) {
+                    return segment;
+                }
+                continue;
+            }
+            // a hash collision keeps its own segment
+            if (stored == segment || !stored.hasSameBytes(segment)) {
+                return segment;
+            }
+            _dedupedBytes.add(segment.capacity());
+            return stored;
+        }
+    }
+
+    /**
+     * Unmap chunks whose segment was garbage collected.
+     */
+    private void expungeCollected() {
+        Chunk chunk;
+        while ((chunk = (Chunk) _collected.poll()) != null) {
+            _chunks.remove(chunk._hash, chunk);
+        }
+    }
+
+    /**
+     * Weak mapping of a hash to the stored segment.
+     */
+    private static final class Chunk extends WeakReference<Segment> {
+        private final HashCode _hash;
+
+        private Chunk(HashCode hash, Segment segment, ReferenceQueue<Segment> queue) {
+            super(segment, queue);
+            _hash = hash;
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package imfs.storage;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * An optional memory budget for the content of all files, so a tree can hold more content than fits the heap.
+ *
+ * Once enabled, contents report the segments they allocate. A change or read that takes the resident bytes over
+ * the budget spills cold contents to a local {@link SpillFile} until they're back under it, a spilled content is
+ * faulted back into segments on its next read or change. Recency is tracked by a clock, an approximation of LRU:
+ * every access sets a bit on the content, the clock hand clears it and only spills contents found with the bit
+ * cleared already, so accesses never take a lock or reorder a list.
+ *
+ * Resident bytes are counted per segment: a segment shared by several tracked contents, through a copy,
+ * a transfer or the {@link ChunkStore}, is charged once while any of them holds it, and given back once
+ * the last one spills or drops it.
+ *
+ * Contents in the middle of a change are skipped, so the budget is a soft limit: a single file larger than
+ * the budget that's written all the time stays resident. Contents are tracked from their first allocation
+ * or copy after the budget is enabled, so it's best enabled before the tree is loaded.
+ */
+public class ContentBudget {
+    private static final ContentBudget INSTANCE = new ContentBudget();
+    private static final long UNLIMITED = Long.MAX_VALUE;
+    // a round of spilling goes down to this share of the budget, so the next allocation doesn't start another one
+    private static final double SPILL_TO = 0.9;
+
+    private volatile long _maxResidentBytes = UNLIMITED;
+    private volatile @Nullable SpillFile _spillFile;
+    private final AtomicLong _residentBytes = new AtomicLong();
+    private final AtomicLong _spilledBytes = new AtomicLong();
+    private final AtomicLong _faults = new AtomicLong();
+    private final AtomicLong _faultNanos = new AtomicLong();
+    private final AtomicLong _maxFaultNanos = new AtomicLong();
+    // resident tracked contents in clock order, a spilled content leaves the clock until it's faulted back in
+    private final Queue<Entry> _clock = new ConcurrentLinkedQueue<>();
+    // keeps entries reachable, so the ones of collected contents are enqueued and their bytes given back
+    private final Set<Entry> _entries = ConcurrentHashMap.newKeySet();
+    private final ReferenceQueue<SegmentedContent> _collected = new ReferenceQueue<>();
+    private final ReentrantLock _spillLock = new ReentrantLock();
+
+    public static ContentBudget getInstance() {
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return _maxResidentBytes != UNLIMITED;
+    }
+
+    /**
+     * Start keeping resident content within the given budget, spilling cold contents if it's exceeded already.
+     * @param maxResidentBytes bytes of content segments allowed in memory, on and off the heap
+     * @param spillDirectory local directory to create the spill file in
+     */
+    public synchronized void enable(long maxResidentBytes, Path spillDirectory) throws IOException {
+        Preconditions.checkArgument(maxResidentBytes > 0, "budget %s must be positive", maxResidentBytes);
+        SpillFile spillFile = SpillFile.open(Files.createTempFile(spillDirectory, "imfs-", ".spill"));
+        SpillFile previous = _spillFile;
+        _spillFile = spillFile;
+        if (previous != null) {
+            previous.retire();
+        }
+        _maxResidentBytes = maxResidentBytes;
+        spillIfOverBudget(null);
+    }
+
+    /**
+     * Stop spilling, spilled contents stay in the spill file until they're faulted back in.
+     */
+    public synchronized void disable() {
+        _maxResidentBytes = UNLIMITED;
+        SpillFile spillFile = _spillFile;
+        _spillFile = null;
+        if (spillFile != null) {
+            spillFile.retire();
+        }
+    }
+
+    public long getMaxResidentBytes() {
+        return _maxResidentBytes;
+    }
+
+    /**
+     * @return bytes of segments held by tracked contents
+     */
+    public long getResidentBytes() {
+        expungeCollected();
+        return _residentBytes.get();
+    }
+
+    /**
+     * @return bytes of content in spill files
+     */
+    public long getSpilledBytes() {
+        expungeCollected();
+        return _spilledBytes.get();
+    }
+
+    /**
+     * @return number of spilled contents faulted back in
+     */
+    public long getFaultCount() {
+        return _faults.get();
+    }
+
+    /**
+     * @return time spent faulting spilled contents back in, in nanoseconds
+     */
+    public long getFaultNanos() {
+        return _faultNanos.get();
+    }
+
+    /**
+     * @return longest time a single fault took, in nanoseconds
+     */
+    public long getMaxFaultNanos() {
+        return _maxFaultNanos.get();
+    }
+
+    /**
+     * Start tracking a content if the budget is enabled and it isn't tracked yet, holding the segments of its table.
+     * Called holding the monitor of the content.
+     * @return tracking record of the content, null if it's not tracked
+     */
+    @Nullable Entry track(SegmentedContent content, AtomicReferenceArray<Segment> segments) {
+        Entry entry = content._entry;
+        if (entry != null || !isEnabled()) {
+            return entry;
+        }
+        entry = new Entry(content, _collected);
+        entry._segments = segments;
+        for (int idx = 0; idx < segments.length(); idx++) {
+            Segment segment = segments.get(idx);
+            if (segment != null) {
+                hold(segment);
+            }
+        }
+        content._entry = entry;
+        _entries.add(entry);
+        enterClock(entry);
+        return entry;
+    }
+
+    /**
+     * Account for a segment about to be put into the table of a content, e.g. allocated, copied from a shared one,
+     * shared by a transfer or stored in the {@link ChunkStore}, and start tracking the content if it isn't yet.
+     * Called holding the monitor of the content, a segment it replaces is {@link #dropped} after it's put.
+     */
+    void held(SegmentedContent content, AtomicReferenceArray<Segment> segments, Segment segment) {
+        Entry entry = track(content, segments);
+        if (entry == null) {
+            return;
+        }
+        hold(segment);
+        enterClock(entry);
+    }
+
+    /**
+     * Account for a segment taken out of the table of a content.
+     * Called holding the monitor of the content.
+     */
+    void dropped(SegmentedContent content, Segment segment) {
+        if (content._entry != null) {
+            drop(segment);
+        }
+    }
+
+    /**
+     * Account for a content switching to a new segment table, grown with the same segments or truncated.
+     * Segments left out of a truncated table are {@link #dropped} after it's switched to.
+     * Called holding the monitor of the content.
+     */
+    void tableReplaced(SegmentedContent content, AtomicReferenceArray<Segment> segments) {
+        Entry entry = content._entry;
+        if (entry != null) {
+            synchronized (entry) {
+                entry._segments = segments;
+            }
+        }
+    }
+
+    /**
+     * Account for a content moved to the given range of a spill file, the segments of its table are dropped.
+     * Called holding the monitor of the content.
+     */
+    void spilled(SegmentedContent content, AtomicReferenceArray<Segment> segments, SpillFile spillFile,
+                 long position, long length) {
+        Entry entry = content._entry;
+        synchronized (entry) {
+            entry._segments = null;
+            entry._inClock = false;
+            entry._spillFile = spillFile;
+            entry._spillPosition = position;
+            entry._spillLength = length;
+        }
+        dropAll(segments);
+        _spilledBytes.addAndGet(length);
+    }
+
+    /**
+     * Account for a spilled content read back into the given segment table, its segments are held.
+     * Called holding the monitor of the content.
+     */
+    void faultedIn(SegmentedContent content, AtomicReferenceArray<Segment> segments, long nanos) {
+        Entry entry = content._entry;
+        SpillFile spillFile;
+        long length;
+        synchronized (entry) {
+            spillFile = entry._spillFile;
+            length = entry._spillLength;
+            entry._spillFile = null;
+            entry._segments = segments;
+        }
+        for (int idx = 0; idx < segments.length(); idx++) {
+            hold(segments.get(idx));
+        }
+        spillFile.free(length);
+        _spilledBytes.addAndGet(-length);
+        enterClock(entry);
+        _faults.incrementAndGet();
+        _faultNanos.addAndGet(nanos);
+        _maxFaultNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Spill cold contents while the resident bytes are over the budget. Callers over the budget
+     * wait for a round of spilling in progress, which holds back writers faster than the spill file.
+     * Must not be called holding a lock of any content.
+     * @param accessed content whose access took the resident bytes over the budget, it isn't spilled by this round
+     */
+    void spillIfOverBudget(@Nullable SegmentedContent accessed) {
+        if (_residentBytes.get() <= _maxResidentBytes) {
+            return;
+        }
+        _spillLock.lock();
+        try {
+            expungeCollected();
+            SpillFile spillFile = _spillFile;
+            long target = (long) (_maxResidentBytes * SPILL_TO);
+            // every content has its access bit cleared and is looked at a second time at most
+            long steps = 2L * _entries.size();
+            while (spillFile != null && steps-- > 0 && _residentBytes.get() > target) {
+                Entry entry = _clock.poll();
+                if (entry == null) {
+                    break;
+                }
+                SegmentedContent content = entry.get();
+                if (content == null) {
+                    continue;
+                }
+                if (content == accessed || content.clearReferenced()) {
+                    _clock.offer(entry);
+                    continue;
+                }
+                try {
+                    if (!content.spill(spillFile)) {
+                        _clock.offer(entry);
+                    }
+                } catch (IOException e) {
+                    _clock.offer(entry);
+                    System.err.println("Could not spill content to " + spillFile.getPath() + ": " + e.getMessage());
+                    return;
+                }
+            }
+        } finally {
+            _spillLock.unlock();
+        }
+    }
+
+    private void hold(Segment segment) {
+        if (segment.hold()) {
+            _residentBytes.addAndGet(segment.capacity());
+        }
+    }
+
+    private void drop(Segment segment) {
+        if (segment.drop()) {
+            _residentBytes.addAndGet(-segment.capacity());
+        }
+    }
+
+    private void dropAll(@Nullable AtomicReferenceArray<Segment> segments) {
+        if (segments == null) {
+            return;
+        }
+        for (int idx = 0; idx < segments.length(); idx++) {
+            Segment segment = segments.get(idx);
+            if (segment != null) {
+                drop(segment);
+            }
+        }
+    }
+
+    private void enterClock(Entry entry) {
+        boolean enterClock;
+        synchronized (entry) {
+            enterClock = !entry._inClock;
+            entry._inClock = true;
+        }
+        if (enterClock) {
+            _clock.offer(entry);
+        }
+    }
+
+    /**
+     * Give back the bytes of contents that were garbage collected, e.g. of deleted files.
+     */
+    private void expungeCollected() {
+        Entry entry;
+        while ((entry = (Entry) _collected.poll()) != null) {
+            _entries.remove(entry);
+            AtomicReferenceArray<Segment> segments;
+            SpillFile spillFile;
+            long length;
+            synchronized (entry) {
+                segments = entry._segments;
+                spillFile = entry._spillFile;
+                length = entry._spillLength;
+                entry._segments = null;
+                entry._spillFile = null;
+            }
+            dropAll(segments);
+            if (spillFile != null) {
+                spillFile.free(length);
+                _spilledBytes.addAndGet(-length);
+            }
+        }
+    }
+
+    /**
+     * Tracking record of a content, it outlives the content so its bytes can be given back once it's collected.
+     */
+    static final class Entry extends WeakReference<SegmentedContent> {
+        // guarded by the monitor of the entry
+        // segment table of the content while it's resident, its segments are dropped once the content is collected
+        private @Nullable AtomicReferenceArray<Segment> _segments;
+        private boolean _inClock;
+        private @Nullable SpillFile _spillFile;
+        private long _spillPosition;
+        private long _spillLength;
+
+        private Entry(SegmentedContent content, ReferenceQueue<SegmentedContent> queue) {
+            super(content, queue);
+        }
+
+        synchronized SpillFile getSpillFile() {
+            return _spillFile;
+        }
+
+        synchronized long getSpillPosition() {
+            return _spillPosition;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package imfs.storage;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+
+/**
+ * A {@link SeekableByteChannel} reading and writing a {@link SegmentedContent} directly,
+ * so file content can be handed to NIO based libraries without materializing it.
+ * Reads fill the caller's buffer straight from content segments, and transfers between two
+ * {@link ContentChannel}s share whole segments by reference instead of copying their bytes.
+ *
+ * Like a channel over an unlinked file, the channel stays usable after its file is deleted.
+ * A read-only channel throws {@link NonWritableChannelException} on any change of its content.
+ * Changes are applied through a {@link ContentWriter}, so the owner of the content can e.g. log them.
+ */
+public class ContentChannel implements SeekableByteChannel {
+    // chunk size of transfers from channels other than content channels
+    private static final int TRANSFER_CHUNK_SIZE = SegmentedContent.SEGMENT_SIZE;
+
+    private static final ContentWriter DIRECT_WRITER = new ContentWriter() {
+        @Override
+        public int write(SegmentedContent content, long position, ByteBuffer src) {
+            return content.write(position, src);
+        }
+
+        @Override
+        public long transfer(SegmentedContent source, long sourcePosition, long count,
+                             SegmentedContent content, long position) {
+            return source.transferTo(sourcePosition, count, content, position);
+        }
+
+        @Override
+        public void truncate(SegmentedContent content, long size) {
+            content.truncate(size);
+        }
+    };
+
+    private final SegmentedContent _content;
+    private final boolean _readOnly;
+    private final ContentWriter _writer;
+    private long _position;
+    private volatile boolean _open = true;
+
+    public ContentChannel(SegmentedContent content) {
+        this(content, false);
+    }
+
+    public ContentChannel(SegmentedContent content, boolean readOnly) {
+        this(content, readOnly, DIRECT_WRITER);
+    }
+
+    /**
+     * @param writer applies the changes made through the channel to the content
+     */
+    public ContentChannel(SegmentedContent content, ContentWriter writer) {
+        this(content, false, writer);
+    }
+
+    private ContentChannel(SegmentedContent content, boolean readOnly, ContentWriter writer) {
+        _content = content;
+        _readOnly = readOnly;
+        _writer = writer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        int read = _content.read(_position, dst);
+        if (read > 0) {
+            _position += read;
+        }
+        return read;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        ensureWritable();
+        int written = _writer.write(_content, _position, src);
+        _position += written;
+        return written;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return _position;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized ContentChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        Preconditions.checkArgument(newPosition >= 0, "position %s must not be negative", newPosition);
+        _position = newPosition;
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return _content.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     * Bytes past the given size are discarded, see {@link SegmentedContent#truncate}.
+     */
+    @Override
+    public synchronized ContentChannel truncate(long size) throws IOException {
+        ensureWritable();
+        Preconditions.checkArgument(size >= 0, "size %s must not be negative", size);
+        if (size < _content.size()) {
+            _writer.truncate(_content, size);
+        }
+        _position = Math.min(_position, size);
+        return this;
+    }
+
+    /**
+     * Transfer bytes from this channel's content to the given channel, the position of this channel is not modified.
+     * If the target is a {@link ContentChannel}, whole segments are shared by reference and the target position advances.
+     * @param position position in this channel's content to start transferring from
+     * @param count maximum number of bytes to transfer
+     * @param target channel to transfer to
+     * @return number of bytes transferred
+     */
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        ensureOpen();
+        if (target instanceof ContentChannel && ((ContentChannel) target)._content != _content) {
+            ContentChannel channel = (ContentChannel) target;
+            synchronized (channel) {
+                channel.ensureWritable();
+                long transferred = channel._writer.transfer(_content, position, count, channel._content, channel._position);
+                channel._position += transferred;
+                return transferred;
+            }
+        }
+        return _content.writeTo(position, count, target);
+    }
+
+    /**
+     * Transfer bytes from the given channel into this channel's content, the position of this channel is not modified.
+     * If the source is a {@link ContentChannel}, whole segments are shared by reference and the source position advances.
+     * @param src channel to transfer from
+     * @param position position in this channel's content to start writing at
+     * @param count maximum number of bytes to transfer
+     * @return number of bytes transferred
+     */
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        ensureWritable();
+        if (src instanceof ContentChannel && ((ContentChannel) src)._content != _content) {
+            ContentChannel channel = (ContentChannel) src;
+            synchronized (channel) {
+                channel.ensureOpen();
+                long transferred = _writer.transfer(channel._content, channel._position, count, _content, position);
+                channel._position += transferred;
+                return transferred;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, TRANSFER_CHUNK_SIZE));
+        long transferred = 0;
+        while (transferred < count) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), count - transferred));
+            int read = src.read(buffer);
+            if (read <= 0) {
+                break;
+            }
+            buffer.flip();
+            transferred += _writer.write(_content, position + transferred, buffer);
+        }
+        return transferred;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isOpen() {
+        return _open;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        _open = false;
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!_open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private void ensureWritable() throws ClosedChannelException {
+        ensureOpen();
+        if (_readOnly) {
+            throw new NonWritableChannelException();
+        }
+    }
+
+    /**
+     * Applies the changes made through a channel to its content.
+     */
+    public interface ContentWriter {
+        /**
+         * Write bytes at the given position of the content, see {@link SegmentedContent#write}.
+         */
+        int write(SegmentedContent content, long position, ByteBuffer src);
+
+        /**
+         * Transfer bytes of another content to the given position of the content sharing whole segments,
+         * see {@link SegmentedContent#transferTo}.
+         */
+        long transfer(SegmentedContent source, long sourcePosition, long count, SegmentedContent content, long position);
+
+        /**
+         * Cut the content to the given size, see {@link SegmentedContent#truncate}.
+         */
+        void truncate(SegmentedContent content, long size);
+    }
+}
@@ -0,0 +1,95 @@
+package imfs.storage;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * Codec compressing chunks of content for the {@link ContentCompressor}.
+ * A codec is called from several threads at once, compression from the compressor's thread
+ * and decompression from any thread reading compressed content.
+ */
+public interface ContentCodec {
+
+    String getName();
+
+    /**
+     * @param src bytes to compress, from its position to its limit, the position is advanced
+     * @return compressed bytes
+     */
+    byte[] compress(ByteBuffer src);
+
+    /**
+     * Decompress bytes produced by {@link #compress} into the given buffer.
+     * @param dst buffer to fill from its position, exactly as many bytes remain as were compressed
+     */
+    void decompress(byte[] src, ByteBuffer dst);
+
+    /**
+     * @param level compression level of the JDK {@link Deflater}, 0 to 9
+     * @return codec using raw deflate without zlib header and checksum
+     */
+    static ContentCodec deflate(int level) {
+        Preconditions.checkArgument(level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION,
+                "deflate level %s is out of range", level);
+        return new DeflateCodec(level);
+    }
+
+    /**
+     * Raw deflate, the deflaters and inflaters are reused per thread as they hold native memory.
+     */
+    final class DeflateCodec implements ContentCodec {
+        private final int _level;
+        private final ThreadLocal<Deflater> _deflaters;
+        private final ThreadLocal<Inflater> _inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+        private DeflateCodec(int level) {
+            _level = level;
+            _deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+        }
+
+        @Override
+        public String getName() {
+            return "deflate-" + _level;
+        }
+
+        @Override
+        public byte[] compress(ByteBuffer src) {
+            Deflater deflater = _deflaters.get();
+            deflater.reset();
+            deflater.setInput(src);
+            deflater.finish();
+            // incompressible input grows a little, the compressor keeps such chunks as they are
+            byte[] out = new byte[src.remaining() + 64];
+            int len = 0;
+            while (!deflater.finished()) {
+                if (len == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                len += deflater.deflate(out, len, out.length - len);
+            }
+            return Arrays.copyOf(out, len);
+        }
+
+        @Override
+        public void decompress(byte[] src, ByteBuffer dst) {
+            Inflater inflater = _inflaters.get();
+            inflater.reset();
+            inflater.setInput(src);
+            try {
+                while (dst.hasRemaining() && !inflater.finished()) {
+                    if (inflater.inflate(dst) == 0 && inflater.needsInput()) {
+                        throw new IllegalStateException("Compressed chunk ends early");
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Compressed chunk is corrupt", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package imfs.storage;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nullable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * An optional compression tier for file content, chunks are compressed on a dedicated background thread
+ * and decompressed on demand when they're read or changed again.
+ *
+ * Compression is per full {@link Segment}, so appends, which only write the tail, never recompress a file.
+ * A full segment of at least the chunk size is compressed as soon as an append completes it,
+ * and all full segments of a file idle beyond the threshold are compressed by a sweep running once per threshold.
+ * A decompressed segment stays decompressed until its file is idle again. Chunks that don't shrink stay as they are.
+ */
+public class ContentCompressor {
+    private static final ContentCompressor INSTANCE = new ContentCompressor();
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    // contents with full segments, the sweep drops the ones that were garbage collected
+    private final Queue<WeakReference<SegmentedContent>> _tracked = new ConcurrentLinkedQueue<>();
+    private final LongAdder _compressedChunks = new LongAdder();
+    private final LongAdder _savedBytes = new LongAdder();
+    private final LongAdder _compressNanos = new LongAdder();
+    private final LongAdder _decompressedChunks = new LongAdder();
+    private final LongAdder _decompressNanos = new LongAdder();
+    private volatile @Nullable ScheduledExecutorService _executor;
+    private volatile ContentCodec _codec;
+    private volatile int _minChunkSize;
+    // advanced by every sweep, contents remember the epoch they were last accessed in
+    private volatile int _epoch;
+
+    public static ContentCompressor getInstance() {
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return _executor != null;
+    }
+
+    /**
+     * Start compressing content in the background.
+     * @param codec codec compressing the chunks, chunks compressed by an earlier codec are still decompressed by it
+     * @param idleThreshold time a file is not accessed before all its full segments are compressed
+     * @param minChunkSize capacity of full segments compressed as soon as they're completed,
+     *                     larger than {@link SegmentedContent#SEGMENT_SIZE} to only compress idle files
+     */
+    public synchronized void enable(ContentCodec codec, long idleThreshold, TimeUnit unit, int minChunkSize) {
+        Preconditions.checkArgument(idleThreshold > 0, "idle threshold %s must be positive", idleThreshold);
+        disable();
+        _codec = codec;
+        _minChunkSize = minChunkSize;
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "imfs-compressor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::sweep, idleThreshold, idleThreshold, unit);
+        _executor = executor;
+    }
+
+    /**
+     * Stop compressing, compressed chunks are still decompressed on demand.
+     */
+    public synchronized void disable() {
+        ScheduledExecutorService executor = _executor;
+        _executor = null;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return number of chunks compressed
+     */
+    public long getCompressedChunks() {
+        return _compressedChunks.sum();
+    }
+
+    /**
+     * @return bytes saved by the chunks compressed right now
+     */
+    public long getSavedBytes() {
+        return _savedBytes.sum();
+    }
+
+    /**
+     * @return cpu time spent compressing chunks, in nanoseconds
+     */
+    public long getCompressNanos() {
+        return _compressNanos.sum();
+    }
+
+    /**
+     * @return number of chunks decompressed on demand
+     */
+    public long getDecompressedChunks() {
+        return _decompressedChunks.sum();
+    }
+
+    /**
+     * @return cpu time spent decompressing chunks, in nanoseconds
+     */
+    public long getDecompressNanos() {
+        return _decompressNanos.sum();
+    }
+
+    int getEpoch() {
+        return _epoch;
+    }
+
+    /**
+     * Start watching a content with full segments for being idle.
+     */
+    void track(SegmentedContent content) {
+        if (isEnabled()) {
+            _tracked.offer(new WeakReference<>(content));
+        }
+    }
+
+    /**
+     * Compress the given full segments of a content in the background if they're of at least the chunk size.
+     */
+    void completed(SegmentedContent content, int fromIdx, int toIdx) {
+        ScheduledExecutorService executor = _executor;
+        if (executor == null || SegmentedContent.segmentCapacity(toIdx - 1) < _minChunkSize) {
+            return;
+        }
+        executor.execute(() -> content.compress(fromIdx, toIdx, _minChunkSize));
+    }
+
+    /**
+     * Compress a full segment with the current codec, must be called holding a lock keeping it from being written.
+     */
+    void compress(Segment segment) {
+        long start = THREADS.getCurrentThreadCpuTime();
+        int compressed = segment.compress(_codec);
+        _compressNanos.add(THREADS.getCurrentThreadCpuTime() - start);
+        if (compressed >= 0) {
+            _compressedChunks.increment();
+            _savedBytes.add(segment.capacity() - compressed);
+        }
+    }
+
+    /**
+     * Decompress the given bytes into a segment's buffer with the codec that compressed them.
+     */
+    void decompress(ContentCodec codec, byte[] src, ByteBuffer dst) {
+        long start = THREADS.getCurrentThreadCpuTime();
+        codec.decompress(src, dst);
+        _decompressNanos.add(THREADS.getCurrentThreadCpuTime() - start);
+        _decompressedChunks.increment();
+        _savedBytes.add(src.length - dst.capacity());
+    }
+
+    /**
+     * Compress the full segments of contents not accessed since the sweep before the last one.
+     */
+    private void sweep() {
+        int epoch = ++_epoch;
+        for (Iterator<WeakReference<SegmentedContent>> it = _tracked.iterator(); it.hasNext(); ) {
+            SegmentedContent content = it.next().get();
+            if (content == null) {
+                it.remove();
+            } else if (epoch - content.getAccessEpoch() > 1) {
+                try {
+                    content.compress(0, Integer.MAX_VALUE, 0);
+                } catch (RuntimeException e) {
+                    // a failing content must not end the sweeps
+                    System.err.println("Could not compress content: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
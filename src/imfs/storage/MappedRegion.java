@@ -0,0 +1,126 @@
+package imfs.storage;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+
+/**
+ * A read only range of bytes in a memory mapped file, e.g. the content of one file in a snapshot image.
+ * A file larger than a single mapping is mapped in windows of the same size, the range may span several of them.
+ * Bytes are read straight from the mapping, so they are paged in from the OS page cache only when read.
+ *
+ * The mapped file must not change while the region is in use, replacing it by a rename leaves the mapping intact.
+ */
+public final class MappedRegion {
+    private final ByteBuffer[] _windows;
+    private final long _windowSize;
+    private final long _offset;
+    private final long _length;
+
+    /**
+     * @param windows mapped windows of the file, every window but the last holds exactly windowSize bytes
+     * @param offset position of the region in the mapped file
+     * @param length number of bytes in the region
+     */
+    public MappedRegion(ByteBuffer[] windows, long windowSize, long offset, long length) {
+        Preconditions.checkArgument(offset >= 0 && length >= 0 && offset + length <= windows.length * windowSize,
+                "region at %s of length %s is out of the mapped windows", offset, length);
+        _windows = windows;
+        _windowSize = windowSize;
+        _offset = offset;
+        _length = length;
+    }
+
+    public long length() {
+        return _length;
+    }
+
+    /**
+     * @return a view of the bytes from the given position of the region up to the end of their window,
+     * at most the given number of bytes
+     */
+    ByteBuffer slice(long pos, long maxLength) {
+        long filePos = _offset + pos;
+        ByteBuffer window = _windows[(int) (filePos / _windowSize)];
+        int at = (int) (filePos % _windowSize);
+        int n = (int) Math.min(Math.min(window.capacity() - at, _length - pos), maxLength);
+        // absolute slices leave the shared window untouched
+        return window.slice(at, n);
+    }
+
+    /**
+     * Read bytes starting at the given position into the destination buffer, see {@link SegmentedContent#read}.
+     */
+    int read(long offset, ByteBuffer dst) {
+        if (offset >= _length) {
+            return -1;
+        }
+        int len = (int) Math.min(dst.remaining(), _length - offset);
+        long pos = offset;
+        while (pos < offset + len) {
+            ByteBuffer slice = slice(pos, offset + len - pos);
+            pos += slice.remaining();
+            dst.put(slice);
+        }
+        return len;
+    }
+
+    /**
+     * Write a range of the region to the given channel, see {@link SegmentedContent#writeTo(long, long, WritableByteChannel)}.
+     */
+    long writeTo(long position, long count, WritableByteChannel out) throws IOException {
+        long end = position + Math.max(0, Math.min(count, _length - position));
+        long pos = position;
+        while (pos < end) {
+            ByteBuffer slice = slice(pos, end - pos);
+            pos += slice.remaining();
+            while (slice.hasRemaining()) {
+                out.write(slice);
+            }
+        }
+        return end - position;
+    }
+
+    InputStream openStream() {
+        return new RegionInputStream();
+    }
+
+    /**
+     * Stream reading straight from the mapping.
+     */
+    private class RegionInputStream extends InputStream {
+        private long _pos;
+
+        @Override
+        public int read() {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] dst, int off, int len) {
+            Preconditions.checkPositionIndexes(off, off + len, dst.length);
+            int read = MappedRegion.this.read(_pos, ByteBuffer.wrap(dst, off, len));
+            if (read > 0) {
+                _pos += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, _length - _pos));
+            _pos += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(_length - _pos, Integer.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package imfs.storage;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+
+/**
+ * A fixed-capacity chunk of file content owned by a {@link SegmentedContent}.
+ * A segment is only ever filled from its start towards its capacity, bytes below the
+ * published length of the owning content are only rewritten by positional writes.
+ * Whole segments can be shared between contents, a shared segment is copied before it is written.
+ *
+ * Full size segments live in direct buffers off the java heap, so large file data
+ * doesn't take part in young/old gen scans, small head segments of tiny files stay on heap
+ * where allocation is cheap.
+ *
+ * A full segment can be compressed by the {@link ContentCompressor}, its buffer is then dropped
+ * and the bytes are decompressed into a new one on the next access.
+ *
+ * The {@link ContentBudget} counts the contents it tracks holding a segment, so a segment shared by
+ * any number of them is charged once.
+ */
+final class Segment {
+    private static final AtomicIntegerFieldUpdater<Segment> HOLDERS =
+            AtomicIntegerFieldUpdater.newUpdater(Segment.class, "_holders");
+
+    private final int _capacity;
+    // null while compressed
+    private volatile @Nullable ByteBuffer _data;
+    // compressed bytes and their codec while the buffer is dropped, guarded by the monitor
+    private @Nullable byte[] _compressed;
+    private @Nullable ContentCodec _codec;
+    // set once the segment is referenced by more than one content, it is never written in place afterwards
+    private volatile boolean _shared;
+    // contents tracked by the budget holding this segment in their table
+    private volatile int _holders;
+
+    Segment(int capacity) {
+        _capacity = capacity;
+        _data = allocate(capacity);
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+        return capacity >= SegmentedContent.SEGMENT_SIZE ?
+                ByteBuffer.allocateDirect(capacity) :
+                ByteBuffer.allocate(capacity);
+    }
+
+    int capacity() {
+        return _capacity;
+    }
+
+    /**
+     * @return the buffer of this segment, decompressing it if needed
+     */
+    private ByteBuffer data() {
+        ByteBuffer data = _data;
+        return data != null ? data : decompress();
+    }
+
+    private synchronized ByteBuffer decompress() {
+        if (_data == null) {
+            ByteBuffer data = allocate(_capacity);
+            ContentCompressor.getInstance().decompress(_codec, _compressed, data.duplicate());
+            _compressed = null;
+            _codec = null;
+            _data = data;
+        }
+        return _data;
+    }
+
+    /**
+     * Replace the buffer by the compressed bytes if they're smaller. Readers still holding the buffer keep reading it.
+     * Must be called holding a lock keeping the segment from being written.
+     * @return size of the compressed bytes, -1 if the segment was not compressed
+     */
+    synchronized int compress(ContentCodec codec) {
+        ByteBuffer data = _data;
+        if (data == null) {
+            return -1;
+        }
+        byte[] compressed = codec.compress(data.duplicate().clear());
+        if (compressed.length >= _capacity) {
+            return -1;
+        }
+        _compressed = compressed;
+        _codec = codec;
+        _data = null;
+        return compressed.length;
+    }
+
+    boolean isCompressed() {
+        return _data == null;
+    }
+
+    boolean isShared() {
+        return _shared;
+    }
+
+    /**
+     * Mark this segment as referenced by another content.
+     * @return this segment
+     */
+    Segment share() {
+        _shared = true;
+        return this;
+    }
+
+    /**
+     * Count one more tracked content holding this segment.
+     * @return true if it's the first one, the segment is to be charged
+     */
+    boolean hold() {
+        return HOLDERS.incrementAndGet(this) == 1;
+    }
+
+    /**
+     * Count one tracked content less holding this segment.
+     * @return true if it was the last one, the segment is to be given back
+     */
+    boolean drop() {
+        return HOLDERS.decrementAndGet(this) == 0;
+    }
+
+    /**
+     * @return a private copy of this segment
+     */
+    Segment copy() {
+        Segment copy = new Segment(capacity());
+        copy.data().put(0, data(), 0, capacity());
+        return copy;
+    }
+
+    /**
+     * @return hash of all bytes of this segment, see {@link ChunkStore}
+     */
+    HashCode hash() {
+        return Hashing.murmur3_128().hashBytes(data().duplicate().clear());
+    }
+
+    boolean hasSameBytes(Segment other) {
+        return capacity() == other.capacity() && data().duplicate().clear().mismatch(other.data().duplicate().clear()) < 0;
+    }
+
+    /**
+     * @return a read-only view over a range of this segment
+     */
+    ByteBuffer slice(int at, int len) {
+        return data().slice(at, len).asReadOnlyBuffer();
+    }
+
+    /**
+     * Copy bytes from the given source buffer into this segment, advancing the source position.
+     * @param at offset inside this segment to start writing at
+     */
+    void put(int at, ByteBuffer src, int len) {
+        data().put(at, src, src.position(), len);
+        src.position(src.position() + len);
+    }
+
+    /**
+     * Fill a range of this segment with zeros.
+     */
+    void clear(int at, int len) {
+        ByteBuffer data = data();
+        for (int i = at; i < at + len; i++) {
+            data.put(i, (byte) 0);
+        }
+    }
+
+    /**
+     * Copy bytes of this segment into the given destination.
+     * @param at offset inside this segment to start reading from
+     */
+    void get(int at, byte[] dst, int off, int len) {
+        data().get(at, dst, off, len);
+    }
+
+    /**
+     * Copy bytes of this segment into the given destination buffer, advancing the destination position.
+     * @param at offset inside this segment to start reading from
+     */
+    void get(int at, ByteBuffer dst, int len) {
+        dst.put(dst.position(), data(), at, len);
+        dst.position(dst.position() + len);
+    }
+
+    /**
+     * Fill this segment from its start with bytes of the spill file at the given position.
+     */
+    void readFrom(SpillFile file, long position, int len) throws IOException {
+        file.read(data().slice(0, len), position);
+    }
+
+    /**
+     * Write bytes of this segment to the given channel without copying them into an intermediate array.
+     */
+    void writeTo(WritableByteChannel out, int at, int len) throws IOException {
+        ByteBuffer view = data().slice(at, len);
+        while (view.hasRemaining()) {
+            out.write(view);
+        }
+    }
+}
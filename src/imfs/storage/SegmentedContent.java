@@ -0,0 +1,943 @@
+package imfs.storage;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
+
+
+/**
+ * Append-friendly content store of a {@link imfs.filesystem.ConcreteFile}.
+ * Content is kept as UTF-8 bytes in a table of {@link Segment}s instead of one contiguous buffer,
+ * so an append only touches the tail segment and never copies existing content,
+ * and reads stream over the segments without materializing the whole file.
+ *
+ * Appends don't take an exclusive lock: each writer reserves its byte range with a single atomic add,
+ * copies its bytes in parallel with other writers, then publishes the range in reservation order.
+ * Readers therefore only ever see whole appends. Allocating a new segment, once per
+ * {@link #SEGMENT_SIZE} bytes, is the only step done under the monitor of this content.
+ *
+ * Segment layout is fixed, which keeps the segment lookup pure arithmetic:
+ * the first {@link #SEGMENT_SIZE} bytes are split into small power-of-two segments
+ * (64, 64, 128, ... 4096 bytes) so that tiny files stay tiny,
+ * every following segment holds exactly {@link #SEGMENT_SIZE} bytes.
+ *
+ * Content loaded from an image can start out {@link #mapped} over a {@link MappedRegion} instead of segments:
+ * reads are served straight from the mapping and the bytes are only copied into segments on the first change.
+ *
+ * With the {@link ContentCompressor} enabled, full segments are compressed in the background and decompressed on demand.
+ * With the {@link ChunkStore} enabled, full segments identical to ones of other files are shared instead of copied.
+ * With a {@link ContentBudget} enabled, cold content is spilled to a local file and faulted back into segments
+ * on its next read or change. Changes hold the residency lock shared, so a spill never lands in the middle of one.
+ *
+ * Content only shrinks by a {@link #truncate}, which holds the residency lock exclusively like a spill.
+ * Readers read the length and the segment table optimistically against it, so they never pair a length with
+ * a table that was cut below it.
+ */
+public class SegmentedContent {
+    static final int MIN_SEGMENT_SHIFT = 6;
+    static final int SEGMENT_SHIFT = 13;
+    public static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    // number of small segments covering the first SEGMENT_SIZE bytes
+    static final int HEAD_SEGMENTS = SEGMENT_SHIFT - MIN_SEGMENT_SHIFT + 1;
+
+    // spins waiting for a preceding append to publish before yielding the cpu
+    private static final int PUBLISH_SPINS = 64;
+    private static final ContentBudget BUDGET = ContentBudget.getInstance();
+    private static final ChunkStore CHUNKS = ChunkStore.getInstance();
+    private static final ContentCompressor COMPRESSOR = ContentCompressor.getInstance();
+    // segment table of spilled content, readers meeting it fault the content back in
+    private static final AtomicReferenceArray<Segment> SPILLED = new AtomicReferenceArray<>(0);
+
+    // segment table, only grown or filled under the monitor of this content
+    private volatile AtomicReferenceArray<Segment> _segments = new AtomicReferenceArray<>(0);
+    // end of the byte ranges handed out to writers so far
+    private final AtomicLong _reserved = new AtomicLong();
+    // serializes positional writes, appends never take it
+    private final Object _positionalWriteLock = new Object();
+    // published length, bytes below it are visible to readers and only change by positional writes
+    private volatile long _length;
+    // content not copied into segments yet, read from the mapping until the first change
+    private volatile @Nullable MappedRegion _unloaded;
+    private final Object _loadLock = new Object();
+    // held shared by changes and exclusively by a spill
+    private final StampedLock _residency = new StampedLock();
+    // access bit of the budget's clock, a lost update only makes the content look a little colder or hotter
+    private boolean _referenced;
+    // sweep of the compressor the content was last accessed in
+    private int _accessEpoch;
+    // set once the compressor watches this content, guarded by the monitor of this content
+    private boolean _compressorTracked;
+    // tracking record of the budget, guarded by the monitor of this content
+    @Nullable ContentBudget.Entry _entry;
+
+    public SegmentedContent() {
+    }
+
+    private SegmentedContent(MappedRegion region) {
+        _unloaded = region;
+    }
+
+    /**
+     * Create content backed by the given mapped region, its bytes are copied into segments on the first change.
+     */
+    public static SegmentedContent mapped(MappedRegion region) {
+        return new SegmentedContent(region);
+    }
+
+    /**
+     * Start a change: keep the content from being spilled until the change ends, and load it into segments
+     * if it's mapped or spilled.
+     * @return stamp to end the change with
+     */
+    private long beginChange() {
+        long stamp = _residency.readLock();
+        try {
+            ensureLoaded();
+        } catch (RuntimeException e) {
+            _residency.unlockRead(stamp);
+            throw e;
+        }
+        touch();
+        return stamp;
+    }
+
+    private void endChange(long stamp) {
+        _residency.unlockRead(stamp);
+        BUDGET.spillIfOverBudget(this);
+    }
+
+    /**
+     * Copy mapped or spilled content into segments before it's changed, must hold the residency lock.
+     * Changes wait for the copy, and run once it's done, which is when the content stops being read from the mapping.
+     */
+    private void ensureLoaded() {
+        if (_unloaded == null && _segments != SPILLED) {
+            return;
+        }
+        synchronized (_loadLock) {
+            if (_segments == SPILLED) {
+                faultIn();
+                return;
+            }
+            MappedRegion region = _unloaded;
+            if (region == null) {
+                return;
+            }
+            long length = region.length();
+            long pos = 0;
+            while (pos < length) {
+                ByteBuffer slice = region.slice(pos, length - pos);
+                int n = slice.remaining();
+                copyIn(pos, slice, n);
+                pos += n;
+            }
+            _reserved.set(length);
+            _length = length;
+            // readers check the region first, so they see the copy once they stop seeing the region
+            _unloaded = null;
+            completed(0, length);
+        }
+    }
+
+    /**
+     * Read spilled content back into segments, must hold the residency lock shared and the load lock.
+     */
+    private void faultIn() {
+        long start = System.nanoTime();
+        ContentBudget.Entry entry;
+        synchronized (this) {
+            entry = _entry;
+        }
+        SpillFile spillFile = entry.getSpillFile();
+        long position = entry.getSpillPosition();
+        long length = _length;
+        AtomicReferenceArray<Segment> segments = new AtomicReferenceArray<>(length == 0 ? 0 : segmentIndex(length - 1) + 1);
+        try {
+            for (int idx = 0; idx < segments.length(); idx++) {
+                Segment segment = new Segment(segmentCapacity(idx));
+                long segmentStart = segmentStart(idx);
+                int n = (int) Math.min(segment.capacity(), length - segmentStart);
+                segment.readFrom(spillFile, position + segmentStart, n);
+                segments.set(idx, n == segment.capacity() ? CHUNKS.intern(segment) : segment);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not fault in content from " + spillFile.getPath(), e);
+        }
+        synchronized (this) {
+            _segments = segments;
+            BUDGET.faultedIn(this, segments, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Move this content to the given spill file and drop its segments, unless a change of it is in progress.
+     * Readers still holding the dropped segment table keep reading it, changes only write to the table faulted back in.
+     * @return false if the content was not spilled
+     */
+    boolean spill(SpillFile spillFile) throws IOException {
+        long stamp = _residency.tryWriteLock();
+        if (stamp == 0L) {
+            return false;
+        }
+        try {
+            AtomicReferenceArray<Segment> segments = _segments;
+            if (segments == SPILLED || _unloaded != null) {
+                return false;
+            }
+            long length = _length;
+            long position = spillFile.reserve(length);
+            try {
+                writeSegments(segments, 0, length, spillFile.channelAt(position));
+            } catch (IOException e) {
+                spillFile.free(length);
+                throw e;
+            }
+            synchronized (this) {
+                _segments = SPILLED;
+                BUDGET.spilled(this, segments, spillFile, position, length);
+            }
+            return true;
+        } finally {
+            _residency.unlockWrite(stamp);
+        }
+    }
+
+    private void touch() {
+        _referenced = true;
+        _accessEpoch = COMPRESSOR.getEpoch();
+    }
+
+    int getAccessEpoch() {
+        return _accessEpoch;
+    }
+
+    /**
+     * Compress the full segments in the given range of at least the given capacity, see {@link ContentCompressor}.
+     * A content being spilled is skipped.
+     */
+    void compress(int fromIdx, int toIdx, int minCapacity) {
+        long stamp = _residency.tryReadLock();
+        if (stamp == 0L) {
+            return;
+        }
+        try {
+            if (_segments == SPILLED) {
+                return;
+            }
+            for (int idx = fromIdx; idx < toIdx && segmentStart(idx) + segmentCapacity(idx) <= _length; idx++) {
+                if (segmentCapacity(idx) < minCapacity) {
+                    continue;
+                }
+                // keeps positional writes off the segment while it's compressed
+                synchronized (_positionalWriteLock) {
+                    Segment segment = _segments.get(idx);
+                    if (!segment.isCompressed()) {
+                        COMPRESSOR.compress(segment);
+                    }
+                }
+            }
+        } finally {
+            _residency.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Clear the access bit.
+     * @return true if the content was accessed since the bit was last cleared
+     */
+    boolean clearReferenced() {
+        boolean referenced = _referenced;
+        _referenced = false;
+        return referenced;
+    }
+
+    /**
+     * @return the published length and a segment table covering it to read from, spilled content is faulted back in first.
+     * The table stays readable even if the content is spilled or truncated right away. Both are read optimistically,
+     * a spill, copy or truncation meanwhile makes them be read again within a change.
+     */
+    private ResidentView residentView() {
+        touch();
+        long stamp = _residency.tryOptimisticRead();
+        // length first: the segment table read after it always covers the published bytes, unless truncated meanwhile
+        long length = _length;
+        AtomicReferenceArray<Segment> segments = _segments;
+        if (segments == SPILLED || !_residency.validate(stamp)) {
+            stamp = beginChange();
+            length = _length;
+            segments = _segments;
+            endChange(stamp);
+        }
+        return new ResidentView(length, segments);
+    }
+
+    /**
+     * @return false while the content is still read from a mapped region
+     */
+    @VisibleForTesting
+    public boolean isLoaded() {
+        return _unloaded == null;
+    }
+
+    /**
+     * @return true while the content is in a spill file of the {@link ContentBudget}
+     */
+    @VisibleForTesting
+    public boolean isSpilled() {
+        return _segments == SPILLED;
+    }
+
+    /**
+     * Append text content encoded as UTF-8.
+     * @param text content to append
+     */
+    public void append(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        append(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Append raw bytes to the end of the content atomically, concurrent appends never interleave.
+     * Only the tail segment (and newly allocated ones) are written, existing segments are left untouched.
+     */
+    public void append(byte[] src, int off, int len) {
+        Preconditions.checkPositionIndexes(off, off + len, src.length);
+        append(ByteBuffer.wrap(src, off, len));
+    }
+
+    /**
+     * Append the remaining bytes of the given buffer, see {@link #append(byte[], int, int)}.
+     */
+    public void append(ByteBuffer src) {
+        int len = src.remaining();
+        if (len == 0) {
+            return;
+        }
+        long stamp = beginChange();
+        try {
+            long start = _reserved.getAndAdd(len);
+            long end = start + len;
+            copyIn(start, src, len);
+            // publish once every range reserved before it is published, so content is always a gap free prefix
+            awaitPublished(start);
+            _length = end;
+            completed(start, end);
+        } finally {
+            endChange(stamp);
+        }
+    }
+
+    /**
+     * Write bytes at the given position, overwriting existing content in place.
+     * Bytes past the current end extend the content like an append, and a gap between
+     * the current end and the position is zero filled.
+     * Positional writes are atomic with respect to appends and to each other,
+     * readers may however observe an overwrite of existing bytes while it is in progress.
+     * @param offset position in the content to start writing at
+     * @param src buffer holding the bytes to write, its position is advanced
+     * @return number of bytes written
+     */
+    public int write(long offset, ByteBuffer src) {
+        Preconditions.checkArgument(offset >= 0, "position %s must not be negative", offset);
+        int len = src.remaining();
+        if (len == 0) {
+            return 0;
+        }
+        long end = offset + len;
+        long stamp = beginChange();
+        try {
+            synchronized (_positionalWriteLock) {
+                long extendFrom = beginPositionalWrite(offset, end);
+                copyIn(offset, src, len);
+                endPositionalWrite(extendFrom, end);
+            }
+        } finally {
+            endChange(stamp);
+        }
+        return len;
+    }
+
+    /**
+     * Cut the content to the given size, discarding the bytes past it. A size at or past the end leaves it unmodified.
+     * Waits for changes in progress like {@link #copy}, and publishes a segment table without the segments past
+     * the new end, so they're given back while readers already holding the previous table keep reading it.
+     * The bytes past the new end in the tail segment are zeroed, a tail shared with other content is unshared first.
+     * @param size size to cut the content to
+     */
+    public void truncate(long size) {
+        Preconditions.checkArgument(size >= 0, "size %s must not be negative", size);
+        // keeps appends from reserving until the content is cut, so none lands past the new end
+        long stamp = _residency.writeLock();
+        try {
+            ensureLoaded();
+            touch();
+            synchronized (_positionalWriteLock) {
+                if (size >= _length) {
+                    return;
+                }
+                _length = size;
+                dropSegmentsFrom(size);
+                _reserved.set(size);
+            }
+        } finally {
+            _residency.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Publish a segment table without the segments past the given end, and zero the rest of the tail segment.
+     */
+    private synchronized void dropSegmentsFrom(long end) {
+        AtomicReferenceArray<Segment> segments = _segments;
+        int kept = end == 0 ? 0 : segmentIndex(end - 1) + 1;
+        AtomicReferenceArray<Segment> truncated = new AtomicReferenceArray<>(kept);
+        for (int idx = 0; idx < kept; idx++) {
+            truncated.set(idx, segments.get(idx));
+        }
+        _segments = truncated;
+        BUDGET.tableReplaced(this, truncated);
+        for (int idx = kept; idx < segments.length(); idx++) {
+            Segment segment = segments.get(idx);
+            if (segment != null) {
+                BUDGET.dropped(this, segment);
+            }
+        }
+        int tail = kept - 1;
+        if (kept > 0 && end < segmentStart(tail) + segmentCapacity(tail)) {
+            int at = (int) (end - segmentStart(tail));
+            writableSegment(truncated, tail).clear(at, segmentCapacity(tail) - at);
+        }
+    }
+
+    /**
+     * Transfer bytes of this content into another content at the given position.
+     * Whole segments lining up on both sides are shared by reference instead of copied,
+     * a shared segment is only copied once either side overwrites it. Only ragged edges are copied byte by byte.
+     * @param position position in this content to start transferring from
+     * @param count maximum number of bytes to transfer
+     * @param target content to transfer into
+     * @param targetPosition position in the target content to start writing at
+     * @return number of bytes transferred
+     */
+    public long transferTo(long position, long count, SegmentedContent target, long targetPosition) {
+        Preconditions.checkArgument(position >= 0 && count >= 0 && targetPosition >= 0,
+                "position %s, count %s and target position %s must not be negative", position, count, targetPosition);
+        Preconditions.checkArgument(target != this, "content can not be transferred into itself");
+        // content transferred between files is hot, mapped or spilled content on either side is loaded to share segments
+        long length;
+        AtomicReferenceArray<Segment> segments;
+        long stamp = beginChange();
+        try {
+            length = _length;
+            segments = _segments;
+        } finally {
+            endChange(stamp);
+        }
+        long len = Math.min(count, length - position);
+        if (len <= 0) {
+            return 0;
+        }
+        long end = targetPosition + len;
+        long targetStamp = target.beginChange();
+        try {
+            transferSegments(segments, position, target, targetPosition, end);
+        } finally {
+            target.endChange(targetStamp);
+        }
+        return len;
+    }
+
+    /**
+     * Copy or share the segments of a transfer into the target, see {@link #transferTo}.
+     */
+    private static void transferSegments(AtomicReferenceArray<Segment> segments, long position,
+                                         SegmentedContent target, long targetPosition, long end) {
+        synchronized (target._positionalWriteLock) {
+            long extendFrom = target.beginPositionalWrite(targetPosition, end);
+            long pos = position;
+            long targetPos = targetPosition;
+            while (targetPos < end) {
+                int idx = segmentIndex(pos);
+                int at = (int) (pos - segmentStart(idx));
+                int targetIdx = segmentIndex(targetPos);
+                int targetAt = (int) (targetPos - segmentStart(targetIdx));
+                int capacity = segmentCapacity(idx);
+                int n;
+                if (at == 0 && targetAt == 0 && capacity == segmentCapacity(targetIdx) && end - targetPos >= capacity) {
+                    n = capacity;
+                    target.installSegment(targetIdx, segments.get(idx).share());
+                } else {
+                    n = (int) Math.min(Math.min(capacity - at, segmentCapacity(targetIdx) - targetAt), end - targetPos);
+                    target.copyIn(targetPos, segments.get(idx).slice(at, n), n);
+                }
+                pos += n;
+                targetPos += n;
+            }
+            target.endPositionalWrite(extendFrom, end);
+        }
+    }
+
+    /**
+     * Copy this content without copying its bytes: the copy shares every segment, the tail included,
+     * and a shared segment is only copied once either side writes it. Mapped content shares its region.
+     * @return copy of the content as of now
+     */
+    public SegmentedContent copy() {
+        MappedRegion unloaded = _unloaded;
+        if (unloaded != null) {
+            return mapped(unloaded);
+        }
+        SegmentedContent copy = new SegmentedContent();
+        // waits for changes in progress, so no write can land in a segment once it's shared
+        long stamp = _residency.writeLock();
+        try {
+            ensureLoaded();
+            long length = _length;
+            AtomicReferenceArray<Segment> segments = _segments;
+            AtomicReferenceArray<Segment> shared = new AtomicReferenceArray<>(length == 0 ? 0 : segmentIndex(length - 1) + 1);
+            for (int idx = 0; idx < shared.length(); idx++) {
+                shared.set(idx, segments.get(idx).share());
+            }
+            copy._segments = shared;
+            copy._reserved.set(length);
+            copy._length = length;
+            synchronized (copy) {
+                // the shared segments are charged once, by whichever content held them first
+                BUDGET.track(copy, shared);
+            }
+        } finally {
+            _residency.unlockWrite(stamp);
+        }
+        return copy;
+    }
+
+    /**
+     * Reserve the part of a positional write past the current end the same way an append does,
+     * and wait for appends reserved before it to land so they can't clobber the written bytes.
+     * Must be called holding the positional write lock.
+     * @return position the write starts extending the content from, the end of the write if it doesn't extend it
+     */
+    private long beginPositionalWrite(long offset, long end) {
+        long reserved = _reserved.get();
+        while (reserved < end && !_reserved.compareAndSet(reserved, end)) {
+            reserved = _reserved.get();
+        }
+        long extendFrom = Math.min(reserved, end);
+        awaitPublished(extendFrom);
+        if (offset > extendFrom) {
+            clear(extendFrom, offset);
+        }
+        return extendFrom;
+    }
+
+    /**
+     * Publish the part of a positional write past the previous end.
+     */
+    private void endPositionalWrite(long extendFrom, long end) {
+        if (extendFrom < end) {
+            _length = end;
+        }
+    }
+
+    /**
+     * Read bytes starting at the given position into the destination buffer, straight from the segments.
+     * @param offset position in the content to start reading from
+     * @param dst buffer to fill, its position is advanced
+     * @return number of bytes read, possibly zero, or -1 if the position is at or past the end of the content
+     */
+    public int read(long offset, ByteBuffer dst) {
+        Preconditions.checkArgument(offset >= 0, "position %s must not be negative", offset);
+        MappedRegion unloaded = _unloaded;
+        if (unloaded != null) {
+            return unloaded.read(offset, dst);
+        }
+        ResidentView view = residentView();
+        long length = view._length;
+        AtomicReferenceArray<Segment> segments = view._segments;
+        if (offset >= length) {
+            return -1;
+        }
+        int len = (int) Math.min(dst.remaining(), length - offset);
+        long pos = offset;
+        long end = offset + len;
+        while (pos < end) {
+            int idx = segmentIndex(pos);
+            int at = (int) (pos - segmentStart(idx));
+            int n = (int) Math.min(segmentCapacity(idx) - at, end - pos);
+            segments.get(idx).get(at, dst, n);
+            pos += n;
+        }
+        return len;
+    }
+
+    /**
+     * Hand the segments completed by the published range to the {@link ChunkStore} and the {@link ContentCompressor}.
+     * Must be called within a change.
+     */
+    private void completed(long from, long to) {
+        if (to <= from) {
+            return;
+        }
+        int fromIdx = segmentIndex(from);
+        int toIdx = fromIdx;
+        while (segmentStart(toIdx) + segmentCapacity(toIdx) <= to) {
+            toIdx++;
+        }
+        if (toIdx == fromIdx) {
+            return;
+        }
+        deduplicate(fromIdx, toIdx);
+        if (COMPRESSOR.isEnabled()) {
+            synchronized (this) {
+                if (!_compressorTracked) {
+                    _compressorTracked = true;
+                    COMPRESSOR.track(this);
+                }
+            }
+            COMPRESSOR.completed(this, fromIdx, toIdx);
+        }
+    }
+
+    /**
+     * Switch the given full segments to stored identical ones of the {@link ChunkStore} where there are any.
+     */
+    private void deduplicate(int fromIdx, int toIdx) {
+        if (!CHUNKS.isEnabled()) {
+            return;
+        }
+        for (int idx = fromIdx; idx < toIdx; idx++) {
+            // keeps positional writes off the segment while it's hashed
+            synchronized (_positionalWriteLock) {
+                Segment segment = _segments.get(idx);
+                Segment stored = CHUNKS.intern(segment);
+                if (stored != segment) {
+                    replaceSegment(idx, stored);
+                }
+            }
+        }
+    }
+
+    /**
+     * Switch a slot to an identical segment stored in the {@link ChunkStore}.
+     */
+    private synchronized void replaceSegment(int idx, Segment stored) {
+        AtomicReferenceArray<Segment> segments = _segments;
+        Segment segment = segments.get(idx);
+        BUDGET.held(this, segments, stored);
+        segments.set(idx, stored);
+        BUDGET.dropped(this, segment);
+    }
+
+    /**
+     * Wait until every byte below the given position is published.
+     */
+    private void awaitPublished(long pos) {
+        int spins = 0;
+        while (_length < pos) {
+            if (++spins < PUBLISH_SPINS) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Copy bytes from the source buffer into the segments covering the given range, allocating them if needed.
+     */
+    private void copyIn(long pos, ByteBuffer src, int len) {
+        long end = pos + len;
+        AtomicReferenceArray<Segment> segments = ensureCapacity(end);
+        while (pos < end) {
+            int idx = segmentIndex(pos);
+            int at = (int) (pos - segmentStart(idx));
+            int n = (int) Math.min(segmentCapacity(idx) - at, end - pos);
+            writableSegment(segments, idx).put(at, src, n);
+            pos += n;
+        }
+    }
+
+    /**
+     * Zero fill the segments covering the given range, allocating them if needed.
+     */
+    private void clear(long pos, long end) {
+        AtomicReferenceArray<Segment> segments = ensureCapacity(end);
+        while (pos < end) {
+            int idx = segmentIndex(pos);
+            int at = (int) (pos - segmentStart(idx));
+            int n = (int) Math.min(segmentCapacity(idx) - at, end - pos);
+            writableSegment(segments, idx).clear(at, n);
+            pos += n;
+        }
+    }
+
+    /**
+     * Get a segment that can be written in place, a segment shared with other content is replaced by a private copy.
+     * Appends only meet a shared segment in the tail of a {@link #copy}, which is taken between changes.
+     */
+    private Segment writableSegment(AtomicReferenceArray<Segment> segments, int idx) {
+        Segment segment = segments.get(idx);
+        return segment.isShared() ? unshare(idx) : segment;
+    }
+
+    private synchronized Segment unshare(int idx) {
+        Segment segment = _segments.get(idx);
+        if (!segment.isShared()) {
+            return segment;
+        }
+        Segment copy = segment.copy();
+        BUDGET.held(this, _segments, copy);
+        _segments.set(idx, copy);
+        BUDGET.dropped(this, segment);
+        return copy;
+    }
+
+    /**
+     * Put a segment shared with other content into the given slot, allocating any missing slot before it.
+     */
+    private synchronized void installSegment(int idx, Segment segment) {
+        allocateSegments(idx);
+        AtomicReferenceArray<Segment> segments = ensureTable(idx + 1);
+        Segment replaced = segments.get(idx);
+        BUDGET.held(this, segments, segment);
+        segments.set(idx, segment);
+        if (replaced != null) {
+            BUDGET.dropped(this, replaced);
+        }
+    }
+
+    /**
+     * @return number of content bytes currently stored
+     */
+    public long size() {
+        MappedRegion unloaded = _unloaded;
+        return unloaded != null ? unloaded.length() : _length;
+    }
+
+    /**
+     * Open a stream over the content as of now. Later appends are not visible to the stream,
+     * and no content is copied upfront.
+     */
+    public InputStream openStream() {
+        MappedRegion unloaded = _unloaded;
+        if (unloaded != null) {
+            return unloaded.openStream();
+        }
+        ResidentView view = residentView();
+        return new SegmentInputStream(view._segments, view._length);
+    }
+
+    /**
+     * Write the whole content to the given output, segment by segment.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        writeTo(Channels.newChannel(out));
+    }
+
+    /**
+     * Write the whole content to the given channel, segment by segment.
+     */
+    public void writeTo(WritableByteChannel out) throws IOException {
+        writeTo(0, Long.MAX_VALUE, out);
+    }
+
+    /**
+     * Write a range of the content to the given channel straight from the segments.
+     * @param position position in the content to start writing from
+     * @param count maximum number of bytes to write
+     * @return number of bytes written
+     */
+    public long writeTo(long position, long count, WritableByteChannel out) throws IOException {
+        Preconditions.checkArgument(position >= 0 && count >= 0,
+                "position %s and count %s must not be negative", position, count);
+        MappedRegion unloaded = _unloaded;
+        if (unloaded != null) {
+            return unloaded.writeTo(position, count, out);
+        }
+        ResidentView view = residentView();
+        long end = position + Math.max(0, Math.min(count, view._length - position));
+        writeSegments(view._segments, position, end, out);
+        return end - position;
+    }
+
+    private static void writeSegments(AtomicReferenceArray<Segment> segments, long position, long end,
+                                      WritableByteChannel out) throws IOException {
+        long pos = position;
+        while (pos < end) {
+            int idx = segmentIndex(pos);
+            int at = (int) (pos - segmentStart(idx));
+            int n = (int) Math.min(segmentCapacity(idx) - at, end - pos);
+            segments.get(idx).writeTo(out, at, n);
+            pos += n;
+        }
+    }
+
+    /**
+     * Decode the whole content as a UTF-8 string, this copies the content.
+     */
+    @Override
+    public String toString() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(size(), Integer.MAX_VALUE));
+        try {
+            writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Make sure segments exist for every byte below the given end position.
+     * Segments are allocated in order, so checking the last needed one is enough for the lock-free fast path.
+     */
+    private AtomicReferenceArray<Segment> ensureCapacity(long end) {
+        AtomicReferenceArray<Segment> segments = _segments;
+        int needed = segmentIndex(end - 1) + 1;
+        if (needed <= segments.length() && segments.get(needed - 1) != null) {
+            return segments;
+        }
+        return allocateSegments(needed);
+    }
+
+    /**
+     * Allocate missing segments up to the given count. A grown table is published only
+     * after existing segments are carried over by reference, so no allocation is ever lost.
+     */
+    private synchronized AtomicReferenceArray<Segment> allocateSegments(int needed) {
+        AtomicReferenceArray<Segment> segments = ensureTable(needed);
+        for (int i = 0; i < needed; i++) {
+            if (segments.get(i) == null) {
+                Segment segment = new Segment(segmentCapacity(i));
+                BUDGET.held(this, segments, segment);
+                segments.set(i, segment);
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Grow the segment table to hold at least the given number of slots, must hold the monitor.
+     */
+    private AtomicReferenceArray<Segment> ensureTable(int slots) {
+        AtomicReferenceArray<Segment> segments = _segments;
+        if (slots <= segments.length()) {
+            return segments;
+        }
+        AtomicReferenceArray<Segment> grown = new AtomicReferenceArray<>(Math.max(slots, segments.length() * 2));
+        for (int i = 0; i < segments.length(); i++) {
+            grown.set(i, segments.get(i));
+        }
+        _segments = grown;
+        BUDGET.tableReplaced(this, grown);
+        return grown;
+    }
+
+    /**
+     * @return index of the segment holding the byte at the given position
+     */
+    static int segmentIndex(long pos) {
+        if (pos >= SEGMENT_SIZE) {
+            return (int) (pos >>> SEGMENT_SHIFT) + HEAD_SEGMENTS - 1;
+        }
+        if (pos < (1 << MIN_SEGMENT_SHIFT)) {
+            return 0;
+        }
+        return (63 - Long.numberOfLeadingZeros(pos)) - MIN_SEGMENT_SHIFT + 1;
+    }
+
+    /**
+     * @return position of the first byte of the given segment
+     */
+    static long segmentStart(int idx) {
+        if (idx >= HEAD_SEGMENTS) {
+            return (long) (idx - HEAD_SEGMENTS + 1) << SEGMENT_SHIFT;
+        }
+        return idx == 0 ? 0 : 1L << (idx + MIN_SEGMENT_SHIFT - 1);
+    }
+
+    /**
+     * @return number of bytes the given segment can hold
+     */
+    static int segmentCapacity(int idx) {
+        if (idx >= HEAD_SEGMENTS) {
+            return SEGMENT_SIZE;
+        }
+        return idx == 0 ? 1 << MIN_SEGMENT_SHIFT : 1 << (idx + MIN_SEGMENT_SHIFT - 1);
+    }
+
+    /**
+     * Published length of a content and a segment table covering it, read together.
+     */
+    private static final class ResidentView {
+        private final long _length;
+        private final AtomicReferenceArray<Segment> _segments;
+
+        ResidentView(long length, AtomicReferenceArray<Segment> segments) {
+            _length = length;
+            _segments = segments;
+        }
+    }
+
+    /**
+     * Stream reading straight from a fixed view of the segment table.
+     */
+    private static class SegmentInputStream extends InputStream {
+        private final AtomicReferenceArray<Segment> _segments;
+        private final long _length;
+        private long _pos;
+
+        SegmentInputStream(AtomicReferenceArray<Segment> segments, long length) {
+            _segments = segments;
+            _length = length;
+        }
+
+        @Override
+        public int read() {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] dst, int off, int len) {
+            Preconditions.checkPositionIndexes(off, off + len, dst.length);
+            if (_pos >= _length) {
+                return -1;
+            }
+            int total = 0;
+            while (total < len && _pos < _length) {
+                int idx = segmentIndex(_pos);
+                int at = (int) (_pos - segmentStart(idx));
+                int n = (int) Math.min(Math.min(segmentCapacity(idx) - at, _length - _pos), len - total);
+                _segments.get(idx).get(at, dst, off + total, n);
+                total += n;
+                _pos += n;
+            }
+            return total;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, _length - _pos));
+            _pos += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(_length - _pos, Integer.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package imfs.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * Local file holding contents spilled by the {@link ContentBudget}.
+ * Space is handed out append only and is not reused while any spilled content is still in the file,
+ * the file is truncated once the last one is faulted back in, and deleted then if the file was retired.
+ */
+final class SpillFile {
+    private final Path _path;
+    private final FileChannel _channel;
+    // end of the space handed out so far and bytes of it still holding spilled content, guarded by the monitor
+    private long _end;
+    private long _liveBytes;
+    private boolean _retired;
+
+    private SpillFile(Path path, FileChannel channel) {
+        _path = path;
+        _channel = channel;
+    }
+
+    static SpillFile open(Path path) throws IOException {
+        return new SpillFile(path, FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    Path getPath() {
+        return _path;
+    }
+
+    /**
+     * Hand out space for content of the given length.
+     * @return position of the space in the file
+     */
+    synchronized long reserve(long length) {
+        long at = _end;
+        _end += length;
+        _liveBytes += length;
+        return at;
+    }
+
+    /**
+     * Give back the space of content that was faulted back in or is gone.
+     */
+    synchronized void free(long length) {
+        _liveBytes -= length;
+        if (_liveBytes > 0) {
+            return;
+        }
+        _end = 0;
+        try {
+            if (_retired) {
+                _channel.close();
+                Files.deleteIfExists(_path);
+            } else {
+                _channel.truncate(0);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not reclaim spill file " + _path + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stop handing out space, the file is deleted once no spilled content is left in it.
+     */
+    synchronized void retire() {
+        _retired = true;
+        if (_liveBytes == 0) {
+            free(0);
+        }
+    }
+
+    /**
+     * @return channel writing to the file from the given position on, writes of different positions run in parallel
+     */
+    WritableByteChannel channelAt(long position) {
+        return new WritableByteChannel() {
+            private long _pos = position;
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                int n = _channel.write(src, _pos);
+                _pos += n;
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return _channel.isOpen();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Fill the destination buffer with bytes of the file from the given position on.
+     */
+    void read(ByteBuffer dst, long position) throws IOException {
+        long pos = position;
+        while (dst.hasRemaining()) {
+            int n = _channel.read(dst, pos);
+            if (n < 0) {
+                throw new EOFException("Spill file " + _path + " ends at " + pos);
+            }
+            pos += n;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package imfs.utils;
+
+import com.google.common.base.Preconditions;
+import imfs.api.File;
+import org.apache.commons.lang3.StringUtils;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+
+/**
+ * A file name or path pattern compiled once into a small automaton over path elements, used to find files
+ * without visiting subtrees the pattern can't match in.
+ *
+ * Supported patterns:
+ * - glob names, e.g. "*.log", "data-?.[ct]sv", "{foo,bar}.txt"
+ * - glob paths, e.g. "var/**&#47;tmp/*.log", where "**" matches any number of directories, including none,
+ *   a path starting with "/" is absolute
+ * - regex names prefixed by "regex:", e.g. "regex:.*\.log"
+ * A "glob:" prefix is accepted and ignored.
+ *
+ * The automaton state while walking down the tree is the set of pattern elements a path can go on matching at,
+ * encoded as a bit mask, so walking allocates nothing. Elements without wildcards are matched by name equality,
+ * a state holding literal elements only can be answered by direct lookups instead of scanning a directory.
+ */
+public final class FilePattern {
+    public static final String GLOB_PREFIX = "glob:";
+    public static final String REGEX_PREFIX = "regex:";
+    public static final String ANY_DIRECTORIES = "**";
+
+    private static final String GLOB_META_CHARS = "*?[]{}\\";
+    private static final String REGEX_META_CHARS = "\\.[]{}()<>*+-=!?^$|";
+    // one bit per element plus one for the matched state
+    private static final int MAX_ELEMENTS = Long.SIZE - 1;
+
+    private final String _pattern;
+    private final boolean _absolute;
+    private final Element[] _elements;
+    private final long _matchedBit;
+
+    private FilePattern(String pattern, boolean absolute, List<Element> elements) {
+        _pattern = pattern;
+        _absolute = absolute;
+        _elements = elements.toArray(new Element[0]);
+        _matchedBit = 1L << _elements.length;
+    }
+
+    /**
+     * Compile a name or path pattern.
+     * @param pattern pattern to compile
+     * @param recursive whether a name pattern matches at any depth, path patterns ignore it and use "**" instead
+     * @return the compiled pattern
+     */
+    public static FilePattern compile(String pattern, boolean recursive) {
+        Preconditions.checkArgument(StringUtils.isNotEmpty(pattern), "pattern can't be empty!");
+        List<Element> elements = new ArrayList<>();
+        boolean absolute = false;
+        if (pattern.startsWith(REGEX_PREFIX)) {
+            elements.add(Element.regex(Pattern.compile(pattern.substring(REGEX_PREFIX.length()))));
+        } else {
+            String glob = pattern.startsWith(GLOB_PREFIX) ? pattern.substring(GLOB_PREFIX.length()) : pattern;
+            absolute = glob.startsWith(File.DELIMITER);
+            for (String name : StringUtils.split(glob, File.DELIMITER)) {
+                Preconditions.checkArgument(!name.equals(File.CURRENT_DIR_DOT) && !name.equals(File.SINGLE_LEVEL_PARENT),
+                        "pattern %s can't contain \".\" or \"..\"", pattern);
+                elements.add(Element.glob(name));
+            }
+            Preconditions.checkArgument(!elements.isEmpty(), "pattern %s doesn't match any file", pattern);
+        }
+        if (recursive && !absolute && elements.size() == 1) {
+            elements.add(0, Element.ANY_DIRECTORIES);
+        }
+        Preconditions.checkArgument(elements.size() <= MAX_ELEMENTS,
+                "pattern %s has more than %s elements", pattern, MAX_ELEMENTS);
+        return new FilePattern(pattern, absolute, elements);
+    }
+
+    /**
+     * @return true if the pattern is to be matched from root, otherwise from current working directory
+     */
+    public boolean isAbsolute() {
+        return _absolute;
+    }
+
+    /**
+     * @return state of the directory a search starts from
+     */
+    public long initialState() {
+        return close(1L);
+    }
+
+    /**
+     * Move the automaton over a sub file name.
+     * @param state state of the directory holding the sub file
+     * @param name sub file name
+     * @return state of the sub file
+     */
+    public long next(long state, String name) {
+        long next = 0;
+        for (long bits = state & ~_matchedBit; bits != 0; bits &= bits - 1) {
+            int i = Long.numberOfTrailingZeros(bits);
+            Element element = _elements[i];
+            if (element == Element.ANY_DIRECTORIES) {
+                next |= 1L << i;
+            } else if (element.matches(name)) {
+                next |= 1L << (i + 1);
+            }
+        }
+        return close(next);
+    }
+
+    /**
+     * @return true if the file in the given state matches the whole pattern
+     */
+    public boolean isMatch(long state) {
+        return (state & _matchedBit) != 0;
+    }
+
+    /**
+     * @return true if files below a directory in the given state can still match, false to prune its subtree
+     */
+    public boolean canMatchBelow(long state) {
+        return (state & ~_matchedBit) != 0;
+    }
+
+    /**
+     * Names of the only sub files that can move the given state on, when the pattern spells them out.
+     * @return literal names to look up, null if sub files need to be scanned
+     */
+    public @Nullable List<String> literalNames(long state) {
+        List<String> names = new ArrayList<>(1);
+        for (long bits = state & ~_matchedBit; bits != 0; bits &= bits - 1) {
+            String literal = _elements[Long.numberOfTrailingZeros(bits)]._literal;
+            if (literal == null) {
+                return null;
+            }
+            if (!names.contains(literal)) {
+                names.add(literal);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Add the elements following any "**" in the state, as it matches no directory too.
+     */
+    private long close(long state) {
+        for (int i = 0; i < _elements.length; i++) {
+            if ((state & (1L << i)) != 0 && _elements[i] == Element.ANY_DIRECTORIES) {
+                state |= 1L << (i + 1);
+            }
+        }
+        return state;
+    }
+
+    @Override
+    public String toString() {
+        return _pattern;
+    }
+
+    private static final class Element {
+        static final Element ANY_DIRECTORIES = new Element(null, null);
+
+        private final @Nullable String _literal;
+        private final @Nullable Pattern _regex;
+
+        private Element(@Nullable String literal, @Nullable Pattern regex) {
+            _literal = literal;
+            _regex = regex;
+        }
+
+        static Element regex(Pattern regex) {
+            return new Element(null, regex);
+        }
+
+        static Element glob(String glob) {
+            if (glob.equals(FilePattern.ANY_DIRECTORIES)) {
+                return ANY_DIRECTORIES;
+            }
+            if (StringUtils.containsNone(glob, GLOB_META_CHARS)) {
+                return new Element(glob, null);
+            }
+            return new Element(null, Pattern.compile(globToRegex(glob)));
+        }
+
+        boolean matches(String name) {
+            return _literal != null ? _literal.equals(name) : _regex.matcher(name).matches();
+        }
+
+        private static String globToRegex(String glob) {
+            StringBuilder regex = new StringBuilder();
+            boolean inAlternatives = false;
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                switch (c) {
+                    case '*':
+                        regex.append(".*");
+                        break;
+                    case '?':
+                        regex.append('.');
+                        break;
+                    case '[':
+                        int end = glob.indexOf(']', i + 1);
+                        if (end < 0) {
+                            appendLiteral(regex, c);
+                            break;
+                        }
+                        String chars = glob.substring(i + 1, end);
+                        regex.append('[');
+                        if (chars.startsWith("!")) {
+                            regex.append('^');
+                            chars = chars.substring(1);
+                        }
+                        regex.append(chars.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                        i = end;
+                        break;
+                    case '{':
+                        inAlternatives = true;
+                        regex.append("(?:");
+                        break;
+                    case '}':
+                        if (inAlternatives) {
+                            inAlternatives = false;
+                            regex.append(')');
+                        } else {
+                            appendLiteral(regex, c);
+                        }
+                        break;
+                    case ',':
+                        if (inAlternatives) {
+                            regex.append('|');
+                        } else {
+                            appendLiteral(regex, c);
+                        }
+                        break;
+                    case '\\':
+                        if (i + 1 < glob.length()) {
+                            i++;
+                        }
+                        appendLiteral(regex, glob.charAt(i));
+                        break;
+                    default:
+                        appendLiteral(regex, c);
+                }
+            }
+            Preconditions.checkArgument(!inAlternatives, "unclosed \"{\" in pattern %s", glob);
+            return regex.toString();
+        }
+
+        private static void appendLiteral(StringBuilder regex, char c) {
+            if (REGEX_META_CHARS.indexOf(c) >= 0) {
+                regex.append('\\');
+            }
+            regex.append(c);
+        }
+    }
+}
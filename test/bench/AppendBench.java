@@ -0,0 +1,50 @@
+package bench;
+
+import imfs.filesystem.ConcreteFile;
+import imfs.filesystem.Directory;
+
+
+/**
+ * Concurrent appends to a few shared files, with the lock-free appends of {@link ConcreteFile#writeFileContent}
+ * against appends serialized by the monitor of the file, the way files appended before.
+ *
+ * Arguments: appends per round, default 400000, and number of files appended to, default 4.
+ */
+public class AppendBench {
+    private static final int[] THREADS = {1, 4, 16, 64};
+    private static final String RECORD = "0123456789abcdef0123456789abcdef";
+
+    public static void main(String[] args) {
+        int appends = Bench.intArg(args, 0, 400_000);
+        int files = Bench.intArg(args, 1, 4);
+        for (int threads : THREADS) {
+            int perThread = appends / threads;
+            Bench.opsPerSecond("monitor, " + threads + " threads", () -> {
+                MonitorFile[] targets = new MonitorFile[files];
+                for (int i = 0; i < files; i++) {
+                    targets[i] = new MonitorFile();
+                }
+                return Bench.onThreads(threads, perThread, i -> targets[i % files].append(RECORD));
+            });
+            Bench.opsPerSecond("lock-free, " + threads + " threads", () -> {
+                Directory dir = new Directory();
+                ConcreteFile[] targets = new ConcreteFile[files];
+                for (int i = 0; i < files; i++) {
+                    targets[i] = (ConcreteFile) dir.createNewSubFile("file" + i, false);
+                }
+                return Bench.onThreads(threads, perThread, i -> targets[i % files].writeFileContent(RECORD));
+            });
+        }
+    }
+
+    /**
+     * Content appended under the monitor of the file, as before appends were lock-free.
+     */
+    private static final class MonitorFile {
+        private final StringBuilder _content = new StringBuilder();
+
+        synchronized void append(String content) {
+            _content.append(content);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.IntConsumer;
+import java.util.function.LongSupplier;
+
+
+/**
+ * Timing helpers shared by the benchmarks in this package, plain main classes run by hand with the test classpath:
+ * java -cp classes:test-classes:deps bench.AppendBench [args]
+ *
+ * There is no benchmark harness among the dependencies, so rounds are warmed up and timed with
+ * {@link System#nanoTime()}, and the median round is reported. Allocation is read from the thread allocation
+ * counter of the JVM, heap footprints from the used heap after collecting garbage.
+ */
+public final class Bench {
+    public static final int WARMUP_ROUNDS = 5;
+    public static final int ROUNDS = 10;
+
+    private Bench() {
+    }
+
+    /**
+     * Run a round repeatedly and print the median throughput of the timed rounds.
+     * @param label what is measured
+     * @param round runs one round, returns the number of operations it made
+     * @return median operations per second
+     */
+    public static double opsPerSecond(String label, LongSupplier round) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            round.getAsLong();
+        }
+        double[] rates = new double[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            long ops = round.getAsLong();
+            rates[i] = ops * 1e9 / Math.max(1, System.nanoTime() - start);
+        }
+        Arrays.sort(rates);
+        double median = rates[ROUNDS / 2];
+        System.out.printf("%-48s %,16.0f ops/s%n", label, median);
+        return median;
+    }
+
+    /**
+     * Run an operation on the given number of threads started together.
+     * @param op called with the index of the operation, ops of a thread are numbered from thread * opsPerThread
+     * @return number of operations made
+     */
+    public static long onThreads(int threads, int opsPerThread, IntConsumer op) {
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int first = t * opsPerThread;
+            workers[t] = new Thread(() -> {
+                awaitQuietly(start);
+                for (int i = 0; i < opsPerThread; i++) {
+                    op.accept(first + i);
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+        return (long) threads * opsPerThread;
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Bytes allocated by the current thread so far, -1 if the JVM doesn't count them.
+     */
+    public static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+
+    /**
+     * Print the bytes the current thread allocates per operation, once warmed up.
+     * @param round runs one round, returns the number of operations it made
+     * @return bytes per operation
+     */
+    public static double bytesPerOp(String label, LongSupplier round) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            round.getAsLong();
+        }
+        long before = allocatedBytes();
+        long ops = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            ops += round.getAsLong();
+        }
+        double perOp = (double) (allocatedBytes() - before) / Math.max(1, ops);
+        System.out.printf("%-48s %,16.1f bytes/op%n", label, perOp);
+        return perOp;
+    }
+
+    /**
+     * Used heap after collecting garbage, anything built since a previous call and still referenced
+     * accounts for the difference.
+     */
+    public static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    public static void printFootprint(String label, long bytes, long nodes) {
+        System.out.printf("%-48s %,16d bytes %,10.1f bytes/node%n", label, bytes, (double) bytes / nodes);
+    }
+
+    public static int intArg(String[] args, int index, int defaultValue) {
+        return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+    }
+}
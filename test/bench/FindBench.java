@@ -0,0 +1,45 @@
+package bench;
+
+import imfs.api.File;
+import imfs.filesystem.Directory;
+import imfs.filesystem.FileFinder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static utils.Fixtures.buildTree;
+
+
+/**
+ * Recursive exact-name find with the fork/join {@link FileFinder} against the sequential walk of
+ * {@link Directory#findExactMath}, over wide, deep and chained synthetic trees.
+ *
+ * Arguments: parallelism of the finder, default the number of processors.
+ */
+public class FindBench {
+    // fan out per level, depth
+    private static final int[][] TREE_SHAPES = {
+            {500, 2},
+            {2, 17},
+            {1, 2_000},
+    };
+
+    public static void main(String[] args) {
+        int parallelism = Bench.intArg(args, 0, Runtime.getRuntime().availableProcessors());
+        FileFinder finder = new FileFinder(new ForkJoinPool(parallelism), FileFinder.DEFAULT_SPLIT_THRESHOLD);
+        for (int[] shape : TREE_SHAPES) {
+            Directory root = buildTree(shape[0], shape[1]);
+            String tree = "fan out " + shape[0] + ", depth " + shape[1];
+            Bench.opsPerSecond("sequential, " + tree, () -> {
+                List<File> found = new ArrayList<>();
+                root.findExactMath("target", found, true);
+                return 1;
+            });
+            Bench.opsPerSecond("parallel x" + parallelism + ", " + tree, () -> {
+                finder.findExactMatch(root, "target", true);
+                return 1;
+            });
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package bench;
+
+import imfs.api.File;
+import imfs.filesystem.Directory;
+import imfs.filesystem.NameIndex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Recursive exact-name find through the {@link NameIndex} against the walk of {@link Directory#findExactMath},
+ * for names with a growing number of hits in the same tree. The index costs O(hits) and the walk O(nodes),
+ * the crossover is the first hit count for which the walk is as fast as the index.
+ *
+ * Arguments: directories per level of the two level tree, default 100, and files per directory
+ * besides the hits, default 20.
+ */
+public class NameIndexBench {
+    // a name has at most one hit per directory
+    private static final int[] HITS = {1, 10, 100, 1_000, 10_000};
+    // spreads the hits of a name over the directories, coprime with their number
+    private static final long SPREAD = 1_000_003L;
+
+    public static void main(String[] args) {
+        int fanOut = Bench.intArg(args, 0, 100);
+        int filesPerDirectory = Bench.intArg(args, 1, 20);
+        int directories = fanOut * fanOut;
+        int files = 0;
+        Directory root = new Directory();
+        for (int a = 0; a < fanOut; a++) {
+            Directory dirA = (Directory) root.createNewSubFile("a" + a, true);
+            for (int b = 0; b < fanOut; b++) {
+                Directory dirB = (Directory) dirA.createNewSubFile("b" + b, true);
+                long rank = (a * fanOut + b) * SPREAD % directories;
+                for (int hits : HITS) {
+                    if (rank < hits) {
+                        dirB.createNewSubFile("hits" + hits, false);
+                        files++;
+                    }
+                }
+                for (int f = 0; f < filesPerDirectory; f++, files++) {
+                    dirB.createNewSubFile("file" + files, false);
+                }
+            }
+        }
+        NameIndex index = NameIndex.getInstance();
+        index.enable(root);
+        try {
+            System.out.printf("%,d files%n", files);
+            int crossover = -1;
+            for (int hits : HITS) {
+                if (hits > directories) {
+                    break;
+                }
+                String name = "hits" + hits;
+                double scan = Bench.opsPerSecond("scan, " + hits + " hits", () -> {
+                    List<File> found = new ArrayList<>();
+                    root.findExactMath(name, found, true);
+                    return 1;
+                });
+                double indexed = Bench.opsPerSecond("index, " + hits + " hits", () -> {
+                    index.findExactMatch(name, root, true);
+                    return 1;
+                });
+                if (crossover < 0 && scan >= indexed) {
+                    crossover = hits;
+                }
+            }
+            System.out.println(crossover < 0 ? "index is faster for every hit count" : "crossover at " + crossover + " hits");
+        } finally {
+            index.disable();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package bench;
+
+import imfs.api.File;
+import imfs.filesystem.Directory;
+import imfs.filesystem.NodeArena;
+import imfs.filesystem.PathCache;
+import imfs.filesystem.PathTraverser;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The same tree as {@link Directory}/{@link imfs.filesystem.ConcreteFile} objects and in a {@link NodeArena}:
+ * heap and off-heap bytes per node, the pause of a full collection with the tree live, and uncached
+ * path lookups and recursive finds over it.
+ *
+ * Arguments: number of nodes, default 1000000, e.g. 10000000 with a heap and direct memory large enough,
+ * and sub files per directory, default 4.
+ */
+public class NodeArenaBench {
+    private static final int LOOKUPS = 100_000;
+
+    public static void main(String[] args) {
+        int nodes = Bench.intArg(args, 0, 1_000_000);
+        int filesPerDirectory = Bench.intArg(args, 1, 4);
+        int directories = nodes / (filesPerDirectory + 1);
+        long built = (long) directories * (filesPerDirectory + 1);
+        String[] paths = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            paths[i] = "/dir" + (int) ((long) i * 7919 % directories) + "/file" + i % filesPerDirectory;
+        }
+        benchObjects(directories, filesPerDirectory, built, paths);
+        benchArena(directories, filesPerDirectory, built, paths);
+    }
+
+    private static void benchObjects(int directories, int filesPerDirectory, long built, String[] paths) {
+        long before = Bench.usedHeap();
+        Directory root = new Directory();
+        for (int d = 0; d < directories; d++) {
+            Directory dir = (Directory) root.createNewSubFile("dir" + d, true);
+            for (int f = 0; f < filesPerDirectory; f++) {
+                dir.createNewSubFile("file" + f, false);
+            }
+        }
+        Bench.printFootprint("objects, heap", Bench.usedHeap() - before, built);
+        printFullGcPause("objects");
+        PathTraverser traverser = new PathTraverser(root, root, new PathCache(0));
+        Bench.opsPerSecond("objects, lookups", () -> {
+            for (String path : paths) {
+                traverser.traverseToAnyLevel(path, false);
+            }
+            return paths.length;
+        });
+        Bench.opsPerSecond("objects, recursive finds", () -> {
+            List<File> found = new ArrayList<>();
+            root.findExactMath("file0", found, true);
+            return 1;
+        });
+        Reference.reachabilityFence(root);
+    }
+
+    private static void benchArena(int directories, int filesPerDirectory, long built, String[] paths) {
+        long before = Bench.usedHeap();
+        NodeArena arena = new NodeArena();
+        for (int d = 0; d < directories; d++) {
+            int dir = arena.create(NodeArena.ROOT, "dir" + d, true);
+            for (int f = 0; f < filesPerDirectory; f++) {
+                arena.create(dir, "file" + f, false);
+            }
+        }
+        Bench.printFootprint("arena, heap", Bench.usedHeap() - before, built);
+        Bench.printFootprint("arena, off heap", arena.getOffHeapBytes(), built);
+        printFullGcPause("arena");
+        Bench.opsPerSecond("arena, lookups", () -> {
+            for (String path : paths) {
+                arena.resolve(path);
+            }
+            return paths.length;
+        });
+        Bench.opsPerSecond("arena, recursive finds", () -> {
+            arena.findExactMatch("file0", NodeArena.ROOT, true);
+            return 1;
+        });
+        Reference.reachabilityFence(arena);
+    }
+
+    /**
+     * Print the average time of a few full collections, which trace everything live.
+     */
+    private static void printFullGcPause(String label) {
+        int collections = 3;
+        long before = collectionMillis();
+        for (int i = 0; i < collections; i++) {
+            System.gc();
+        }
+        System.out.printf("%-48s %,16.1f ms%n", label + ", full gc", (double) (collectionMillis() - before) / collections);
+    }
+
+    private static long collectionMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+}
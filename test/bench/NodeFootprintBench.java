@@ -0,0 +1,73 @@
+package bench;
+
+import imfs.filesystem.Directory;
+import imfs.filesystem.NameTable;
+
+import java.lang.ref.Reference;
+
+
+/**
+ * Heap bytes per node of a tree repeating the same file names in every directory, each name parsed into
+ * its own string as from user input. There is no object layout tool among the dependencies, so the footprint
+ * is the used heap after collecting garbage.
+ *
+ * The old layout is approximated by files not interning their names and each holding an empty
+ * {@link StringBuilder}, as every file allocated its content up front. It is followed by the files without
+ * the builders, which allocate content on their first write, and by names interned in the {@link NameTable}.
+ *
+ * Arguments: number of nodes, default 1000000, and sub files per directory, default 4.
+ */
+public class NodeFootprintBench {
+
+    public static void main(String[] args) {
+        int nodes = Bench.intArg(args, 0, 1_000_000);
+        int filesPerDirectory = Bench.intArg(args, 1, 4);
+        int directories = nodes / (filesPerDirectory + 1);
+        long built = (long) directories * (filesPerDirectory + 1);
+        NameTable names = NameTable.getInstance();
+        boolean wasEnabled = names.isEnabled();
+        try {
+            names.disable();
+            long before = Bench.usedHeap();
+            Directory root = build(directories, filesPerDirectory);
+            StringBuilder[] contents = new StringBuilder[directories * filesPerDirectory];
+            for (int i = 0; i < contents.length; i++) {
+                contents[i] = new StringBuilder();
+            }
+            Bench.printFootprint("own names, eager content", Bench.usedHeap() - before, built);
+            Reference.reachabilityFence(root);
+            Reference.reachabilityFence(contents);
+            root = null;
+            contents = null;
+
+            before = Bench.usedHeap();
+            root = build(directories, filesPerDirectory);
+            Bench.printFootprint("own names, content on first write", Bench.usedHeap() - before, built);
+            Reference.reachabilityFence(root);
+            root = null;
+
+            names.enable();
+            before = Bench.usedHeap();
+            root = build(directories, filesPerDirectory);
+            Bench.printFootprint("interned names, content on first write", Bench.usedHeap() - before, built);
+            Reference.reachabilityFence(root);
+        } finally {
+            if (wasEnabled) {
+                names.enable();
+            } else {
+                names.disable();
+            }
+        }
+    }
+
+    private static Directory build(int directories, int filesPerDirectory) {
+        Directory root = new Directory();
+        for (int d = 0; d < directories; d++) {
+            Directory dir = (Directory) root.createNewSubFile("dir" + d, true);
+            for (int f = 0; f < filesPerDirectory; f++) {
+                dir.createNewSubFile("file" + f, false);
+            }
+        }
+        return root;
+    }
+}
@@ -0,0 +1,91 @@
+package bench;
+
+import com.google.common.base.Preconditions;
+import imfs.api.File;
+import imfs.filesystem.Directory;
+import imfs.filesystem.PathCache;
+import imfs.filesystem.PathTraverser;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+
+/**
+ * Allocation and throughput of path lookups in {@link PathTraverser}, walking the path with a cursor with and without
+ * the {@link PathCache}, against splitting it with a regex and a stream the way paths were walked before.
+ *
+ * Arguments: lookups per round, default 200000.
+ */
+public class PathWalkBench {
+    private static final String[] PATHS = {
+            "/usr/local/lib/jvm/bin/java",
+            "/usr//local/./lib/../lib/jvm/bin/javac",
+            "/home/user/projects/imfs/src/imfs/filesystem/PathTraverser.java",
+    };
+
+    public static void main(String[] args) {
+        int lookups = Bench.intArg(args, 0, 200_000);
+        Directory root = new Directory();
+        for (String path : PATHS) {
+            int last = path.lastIndexOf(File.DELIMITER);
+            PathTraverser traverser = new PathTraverser(root, root);
+            Directory dir = (Directory) traverser.traverseToAnyLevel(path.substring(0, last), true);
+            dir.createNewSubFile(path.substring(last + 1), false);
+        }
+
+        PathTraverser uncached = new PathTraverser(root, root, new PathCache(0));
+        PathTraverser cached = new PathTraverser(root, root, new PathCache(PathCache.DEFAULT_MAX_ENTRIES));
+        run("split and stream", lookups, path -> splitWalk(root, path));
+        run("cursor, uncached", lookups, path -> uncached.traverseToAnyLevel(path, false));
+        run("cursor, cached", lookups, path -> cached.traverseToAnyLevel(path, false));
+    }
+
+    private interface Lookup {
+        File find(String path);
+    }
+
+    private static void run(String label, int lookups, Lookup lookup) {
+        Bench.bytesPerOp(label, () -> walk(lookups, lookup));
+        Bench.opsPerSecond(label, () -> walk(lookups, lookup));
+    }
+
+    private static long walk(int lookups, Lookup lookup) {
+        for (int i = 0; i < lookups; i++) {
+            Preconditions.checkState(lookup.find(PATHS[i % PATHS.length]) != null);
+        }
+        return lookups;
+    }
+
+    /**
+     * Path walk as before, splitting the path into an array and recursing over it.
+     */
+    private static File splitWalk(Directory root, String path) {
+        List<String> subs = Arrays.asList(path.split(File.DELIMITER)).stream()
+                .filter(e -> !StringUtils.isEmpty(e))
+                .collect(Collectors.toList());
+        String[] subArray = new String[subs.size()];
+        subs.toArray(subArray);
+        return locateChildren(subArray, 0, root);
+    }
+
+    private static File locateChildren(String[] subs, int idx, Directory curFolder) {
+        String curSub = subs[idx];
+        File found;
+        switch (curSub) {
+            case File.CURRENT_DIR_DOT:
+                found = curFolder;
+                break;
+            case File.SINGLE_LEVEL_PARENT:
+                found = curFolder.isRoot() ? curFolder : curFolder.getParent();
+                break;
+            default:
+                found = curFolder.getNameToSubFile().getOrDefault(curSub, null);
+        }
+        if (idx == subs.length - 1 || found == null) {
+            return found;
+        }
+        return locateChildren(subs, idx + 1, (Directory) found);
+    }
+}
@@ -0,0 +1,52 @@
+package bench;
+
+import imfs.filesystem.Directory;
+
+import java.lang.ref.Reference;
+import java.util.function.Supplier;
+
+
+/**
+ * Heap footprint of a tree of small directories, with the inline sub file maps of sub directories against
+ * a concurrent hash map per directory, as every directory had before. A root directory still starts with
+ * a concurrent map, so the old layout is built from roots holding the same sub files.
+ *
+ * Arguments: number of nodes, default 1000000, e.g. 10000000 with a heap large enough,
+ * and sub files per directory, default 4.
+ */
+public class SmallDirectoryBench {
+
+    public static void main(String[] args) {
+        int nodes = Bench.intArg(args, 0, 1_000_000);
+        int filesPerDirectory = Bench.intArg(args, 1, 4);
+        String[] names = new String[filesPerDirectory];
+        for (int i = 0; i < filesPerDirectory; i++) {
+            names[i] = "file" + i;
+        }
+        int directories = nodes / (filesPerDirectory + 1);
+        long built = (long) directories * (filesPerDirectory + 1);
+        Directory parent = new Directory();
+
+        long before = Bench.usedHeap();
+        Directory[] tree = build(directories, names, Directory::new);
+        Bench.printFootprint("concurrent maps, " + built + " nodes", Bench.usedHeap() - before, built);
+        Reference.reachabilityFence(tree);
+        tree = null;
+
+        before = Bench.usedHeap();
+        tree = build(directories, names, () -> new Directory("dir", parent));
+        Bench.printFootprint("inline maps, " + built + " nodes", Bench.usedHeap() - before, built);
+        Reference.reachabilityFence(tree);
+    }
+
+    private static Directory[] build(int directories, String[] names, Supplier<Directory> factory) {
+        Directory[] tree = new Directory[directories];
+        for (int i = 0; i < directories; i++) {
+            tree[i] = factory.get();
+            for (String name : names) {
+                tree[i].createNewSubFile(name, false);
+            }
+        }
+        return tree;
+    }
+}
@@ -0,0 +1,71 @@
+package bench;
+
+import imfs.filesystem.ConcreteFile;
+import imfs.filesystem.Directory;
+import imfs.filesystem.MutationLog;
+import imfs.persistence.WriteAheadLog;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+
+/**
+ * Throughput of durable appends from concurrent writers with the {@link WriteAheadLog} attached,
+ * for group commits waiting for batches of different sizes. Every append returns once its record is fsynced,
+ * so a round runs once to warm up and once timed instead of the usual rounds.
+ *
+ * Arguments: writer threads, default 16, appends per writer, default 500, and longest wait of a group commit
+ * for its batch in microseconds, default 1000.
+ */
+public class WalBench {
+    private static final int[] BATCH_SIZES = {1, 4, 16, 64};
+    private static final String RECORD = "0123456789abcdef0123456789abcdef";
+
+    public static void main(String[] args) throws IOException {
+        int writers = Bench.intArg(args, 0, 16);
+        int appends = Bench.intArg(args, 1, 500);
+        int maxDelayMicros = Bench.intArg(args, 2, 1_000);
+        for (int batchSize : BATCH_SIZES) {
+            run(writers, appends, batchSize, maxDelayMicros);
+        }
+    }
+
+    private static void run(int writers, int appends, int batchSize, int maxDelayMicros) throws IOException {
+        Path dir = Files.createTempDirectory("imfs-wal-bench");
+        Directory root = new Directory();
+        WriteAheadLog log = WriteAheadLog.recover(dir, 0, root, batchSize, maxDelayMicros, TimeUnit.MICROSECONDS);
+        MutationLog.getInstance().attach(root, log);
+        try {
+            ConcreteFile[] files = new ConcreteFile[writers];
+            for (int i = 0; i < writers; i++) {
+                files[i] = (ConcreteFile) root.createNewSubFile("file" + i, false);
+            }
+            // warm up
+            Bench.onThreads(writers, appends, i -> files[i / appends].writeFileContent(RECORD));
+            long records = log.getRecordCount();
+            long syncs = log.getSyncCount();
+            long start = System.nanoTime();
+            long ops = Bench.onThreads(writers, appends, i -> files[i / appends].writeFileContent(RECORD));
+            double rate = ops * 1e9 / (System.nanoTime() - start);
+            double perSync = (double) (log.getRecordCount() - records) / Math.max(1, log.getSyncCount() - syncs);
+            System.out.printf("%-48s %,16.0f ops/s %,10.1f records/fsync%n",
+                    "batch " + batchSize + ", " + writers + " writers", rate, perSync);
+        } finally {
+            MutationLog.getInstance().detach();
+            log.close();
+            deleteRecursively(dir);
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package filesystem;
+
+import imfs.filesystem.BatchOperation;
+import imfs.filesystem.BatchResult;
+import imfs.filesystem.ConcreteFile;
+import imfs.filesystem.Directory;
+import imfs.filesystem.IMFS;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static imfs.filesystem.FileModifyOptions.Abort;
+
+public class TestBatch {
+
+    @Test
+    public void testOperationsAreAppliedInOrderPerDirectory() {
+        IMFS imfs = new IMFS(new Directory());
+        List<BatchResult> results = imfs.applyBatch(Arrays.asList(
+                BatchOperation.createDirectory("/logs"),
+                BatchOperation.createFile("/logs/a"),
+                BatchOperation.createDirectory("/logs/old"),
+                BatchOperation.write("/logs/a", "hello"),
+                BatchOperation.createFile("/logs/old/b"),
+                BatchOperation.write("/logs/a", " world"),
+                BatchOperation.move("/logs/a", "/logs/old/a", Abort),
+                BatchOperation.createFile("/logs/a"),
+                BatchOperation.delete("/logs/old/b")));
+
+        for (BatchResult result : results) {
+            Assert.assertTrue(result.isSuccess(), result.getError());
+        }
+        Assert.assertEquals(imfs.traverseTo("/logs/old/a", false).getFileContent(), "hello world");
+        Assert.assertSame(results.get(7).getFile(), imfs.traverseTo("/logs/a", false));
+        Assert.assertEquals(((ConcreteFile) imfs.traverseTo("/logs/a", false)).getContentSize(), 0);
+        Assert.assertNull(imfs.traverseTo("/logs/old/b", false));
+    }
+
+    @Test
+    public void testFailuresAreReportedPerOperation() {
+        IMFS imfs = new IMFS(new Directory());
+        imfs.createNewFile("dir", true);
+        imfs.createNewFile("existing", false);
+        List<BatchResult> results = imfs.applyBatch(Arrays.asList(
+                BatchOperation.createFile("existing"),
+                BatchOperation.createFile("missing/a"),
+                BatchOperation.write("dir", "content"),
+                BatchOperation.write("nothing", "content"),
+                BatchOperation.createFile("dir/a"),
+                BatchOperation.delete("dir"),
+                BatchOperation.createFile("./new")));
+
+        Assert.assertEquals(results.get(0).getError(), "A subdirectory or file existing already exists.");
+        Assert.assertEquals(results.get(1).getError(), "Directory missing/ doesn't exist!");
+        Assert.assertEquals(results.get(2).getError(), "File dir is a directory and doesn't support content writing");
+        Assert.assertFalse(results.get(3).isSuccess());
+        // the file is created before its directory is deleted, as given
+        Assert.assertTrue(results.get(4).isSuccess(), results.get(4).getError());
+        Assert.assertTrue(results.get(5).isSuccess());
+        Assert.assertTrue(results.get(6).isSuccess());
+        Assert.assertNull(imfs.traverseTo("dir", false));
+        Assert.assertNotNull(imfs.traverseTo("new", false));
+    }
+
+    @Test
+    public void testPathsToTheSameDirectoryShareOrder() {
+        IMFS imfs = new IMFS(new Directory());
+        imfs.createNewFile("d", true);
+        List<BatchResult> results = imfs.applyBatch(Arrays.asList(
+                BatchOperation.createFile("d/x"),
+                BatchOperation.write("/d/x", "a"),
+                BatchOperation.write("./d/x", "b"),
+                BatchOperation.delete("d/x")));
+
+        for (BatchResult result : results) {
+            Assert.assertTrue(result.isSuccess(), result.getError());
+        }
+        Assert.assertNull(imfs.traverseTo("/d/x", false));
+    }
+
+    @Test
+    public void testOrderIsKeptAcrossDirectories() {
+        IMFS imfs = new IMFS(new Directory());
+        List<BatchResult> results = imfs.applyBatch(Arrays.asList(
+                BatchOperation.createFile("f"),
+                BatchOperation.createDirectory("e"),
+                BatchOperation.move("f", "e/f", Abort),
+                BatchOperation.createFile("e/g"),
+                BatchOperation.write("f", "gone"),
+                BatchOperation.delete("e")));
+
+        Assert.assertTrue(results.get(2).isSuccess(), results.get(2).getError());
+        Assert.assertTrue(results.get(3).isSuccess(), results.get(3).getError());
+        Assert.assertFalse(results.get(4).isSuccess());
+        Assert.assertTrue(results.get(5).isSuccess(), results.get(5).getError());
+        Assert.assertNull(imfs.traverseTo("/e", false));
+        Assert.assertNull(imfs.traverseTo("/f", false));
+    }
+
+    @Test
+    public void testManyFilesPerDirectory() {
+        IMFS imfs = new IMFS(new Directory());
+        imfs.changeCwd("/ingest/a", true);
+        imfs.changeCwd("/ingest/b", true);
+        imfs.changeCwd("/", false);
+        List<BatchOperation> operations = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            String path = (i % 2 == 0 ? "/ingest/a/" : "ingest/b/") + "file" + i;
+            operations.add(BatchOperation.createFile(path));
+            operations.add(BatchOperation.write(path, "content" + i));
+        }
+        List<BatchResult> results = imfs.applyBatch(operations);
+
+        Assert.assertEquals(results.size(), 2000);
+        Assert.assertTrue(results.stream().allMatch(BatchResult::isSuccess));
+        Assert.assertEquals(((Directory) imfs.traverseTo("/ingest/a", false)).getNameToSubFile().size(), 500);
+        Assert.assertEquals(imfs.traverseTo("/ingest/b/file999", false).getFileContent(), "content999");
+    }
+}
@@ -3,11 +3,17 @@ package filesystem;
 import imfs.api.File;
 import imfs.filesystem.ConcreteFile;
 import imfs.filesystem.Directory;
+import imfs.storage.ContentChannel;
 import org.testng.Assert;
 import org.testng.annotations.BeforeTest;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.NonWritableChannelException;
+import java.util.Arrays;
+
 import static imfs.filesystem.FileModifyOptions.KeepPrevious;
 import static imfs.filesystem.FileModifyOptions.Replace;
 
@@ -83,10 +89,76 @@ public class TestConcreteFile {
         Assert.assertEquals(file.getFullPath(), "/sub1/sub2/a");
     }
 
-    //TODO: add concurrency test
     @Test
-    public void testConcurrentFileWrite(){
+    public void testEmptyFilesAreWrittenIndependently() {
+        ConcreteFile first = new ConcreteFile("emptyFirst", _root);
+        ConcreteFile second = new ConcreteFile("emptySecond", _root);
+        ConcreteFile third = new ConcreteFile("emptyThird", _root);
+        Assert.assertEquals(first.getContentSize(), 0);
+        Assert.assertEquals(first.getFileContent(), "");
+
+        // each file gets its own content on its first write
+        first.writeFileContent("first");
+        second.write(0, ByteBuffer.wrap(new byte[] {'2'}));
+        Assert.assertEquals(first.getFileContent(), "first");
+        Assert.assertEquals(second.getFileContent(), "2");
+        Assert.assertEquals(third.getContentSize(), 0);
+        Assert.assertEquals(((ConcreteFile) third.copy("emptyCopy", false, Replace)).getContentSize(), 0);
+    }
+
+    @Test
+    public void testReadChannelOfEmptyFile() throws IOException {
+        ConcreteFile empty = new ConcreteFile("emptyRead", _root);
+        ContentChannel channel = empty.newReadChannel();
+        Assert.assertEquals(channel.size(), 0);
+        Assert.assertEquals(channel.read(ByteBuffer.allocate(4)), -1);
+        // the file gets its own content on its first write, not shared with the channel opened before
+        empty.writeFileContent("written");
+        Assert.assertEquals(channel.size(), 0);
+        Assert.assertEquals(empty.newReadChannel().size(), "written".length());
+    }
 
+    @Test (expectedExceptions = { NonWritableChannelException.class })
+    public void testReadChannelIsNotWritable() throws IOException {
+        ConcreteFile file = new ConcreteFile("readOnly", _root);
+        file.newReadChannel().write(ByteBuffer.wrap(new byte[] {'x'}));
+    }
+
+    @Test
+    public void testConcurrentFileWrite() throws InterruptedException {
+        ConcreteFile file = new ConcreteFile("concurrent", _root);
+        int writers = 16;
+        int appendsPerWriter = 2000;
+        Thread[] threads = new Thread[writers];
+        for (int t = 0; t < writers; t++) {
+            String record = String.format("<writer%02d-%s>", t, "x".repeat(t * 10));
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < appendsPerWriter; i++) {
+                    file.writeFileContent(record);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // every append must show up whole, never interleaved with another writer's bytes
+        String content = (String) file.getFileContent();
+        int[] counts = new int[writers];
+        int pos = 0;
+        while (pos < content.length()) {
+            Assert.assertTrue(content.startsWith("<writer", pos), "append should not be interleaved at " + pos);
+            int t = Integer.parseInt(content.substring(pos + 7, pos + 9));
+            String record = String.format("<writer%02d-%s>", t, "x".repeat(t * 10));
+            Assert.assertTrue(content.startsWith(record, pos), "append should not be torn at " + pos);
+            counts[t]++;
+            pos += record.length();
+        }
+        for (int count : counts) {
+            Assert.assertEquals(count, appendsPerWriter);
+        }
+        Assert.assertEquals(file.getContentSize(), content.length());
     }
 
     @Test (dataProvider = "moveFileDataExistingDir")
@@ -135,6 +207,20 @@ public class TestConcreteFile {
         Assert.assertEquals(sameNameFile.getFullPath(), "/fooFolder/barFolder/file");
     }
 
+    @Test
+    public void testByteReadWrite() {
+        ConcreteFile file = new ConcreteFile("binary", _root);
+        byte[] payload = new byte[] {0, 1, 2, (byte) 0xff, 4};
+        Assert.assertEquals(file.write(0, ByteBuffer.wrap(payload)), payload.length);
+        Assert.assertEquals(file.getContentSize(), payload.length);
+
+        file.write(3, ByteBuffer.wrap(new byte[] {3}));
+        ByteBuffer dst = ByteBuffer.allocate(10);
+        Assert.assertEquals(file.read(0, dst), payload.length);
+        Assert.assertEquals(Arrays.copyOf(dst.array(), dst.position()), new byte[] {0, 1, 2, 3, 4});
+        Assert.assertEquals(file.read(payload.length, dst), -1);
+    }
+
     @Test
     public void testFileDelete(){
         ConcreteFile file = new ConcreteFile("a", _root);
@@ -1,11 +1,27 @@
 package filesystem;
 
 import imfs.api.File;
+import imfs.filesystem.ConcreteFile;
 import imfs.filesystem.Directory;
+import imfs.filesystem.TreeSnapshot;
+import imfs.filesystem.TreeVersions;
 import org.testng.Assert;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static imfs.filesystem.FileModifyOptions.Abort;
+import static imfs.filesystem.FileModifyOptions.Replace;
+
 public class TestDirectory {
     private Directory _root = new Directory();
 
@@ -89,5 +105,244 @@ public class TestDirectory {
         Assert.assertEquals(_root.getFullPath(), Directory.ROOT_PATH);
         Assert.assertEquals(_root.getNameToSubFile().size(), 0);
     }
+
+    @Test
+    public void testFullPathFollowsRenames() {
+        Directory root = new Directory();
+        Directory top = (Directory) root.createNewSubFile("top", true);
+        Directory sub = (Directory) top.createNewSubFile("sub", true);
+        File file = sub.createNewSubFile("file", false);
+        Assert.assertEquals(file.getFullPath(), "/top/sub/file");
+        // served from the memoized path
+        Assert.assertSame(file.getFullPath(), file.getFullPath());
+
+        Assert.assertTrue(top.setName("renamedTop"));
+        Assert.assertEquals(sub.getFullPath(), "/renamedTop/sub/");
+        Assert.assertEquals(file.getFullPath(), "/renamedTop/sub/file");
+
+        Assert.assertTrue(file.setName("renamedFile"));
+        Assert.assertEquals(file.getFullPath(), "/renamedTop/sub/renamedFile");
+        Assert.assertSame(top.getSubFile("sub"), sub);
+
+        file.move("/moved", false, Abort);
+        Assert.assertEquals(file.getFullPath(), "/moved");
+        Assert.assertEquals(sub.getFullPath(), "/renamedTop/sub/");
+
+        top.delete();
+        Assert.assertNull(sub.getFullPath());
+    }
+
+    @Test
+    public void testConcurrentMovesAndCreates() throws InterruptedException {
+        Directory root = new Directory();
+        int dirCount = 8;
+        Directory[] dirs = new Directory[dirCount];
+        for (int i = 0; i < dirCount; i++) {
+            dirs[i] = (Directory) root.createNewSubFile("dir" + i, true);
+        }
+        List<ConcreteFile> files = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            files.add((ConcreteFile) dirs[i % dirCount].createNewSubFile("file" + i, false));
+        }
+
+        int workers = 16;
+        int opsPerWorker = 2000;
+        Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        Thread[] threads = new Thread[workers];
+        for (int t = 0; t < workers; t++) {
+            int worker = t;
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    for (int i = 0; i < opsPerWorker; i++) {
+                        Directory dir = dirs[random.nextInt(dirCount)];
+                        if (i % 4 == 0) {
+                            dir.createNewSubFile("new" + worker + "_" + i, false);
+                        } else {
+                            // aborts if the file is in that directory already
+                            ConcreteFile file = files.get(random.nextInt(files.size()));
+                            file.move("/" + dir.getName() + "/" + file.getName(), false, Abort);
+                        }
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            // a deadlock would leave workers running
+            thread.join(60_000);
+            Assert.assertFalse(thread.isAlive(), "workers should not deadlock");
+        }
+        Assert.assertTrue(errors.isEmpty(), "workers should not fail: " + errors);
+
+        // every file is listed exactly once, under its own name, in the directory it points to
+        int total = 0;
+        for (Directory dir : dirs) {
+            for (Map.Entry<String, File> entry : dir.getNameToSubFile().entrySet()) {
+                Assert.assertEquals(entry.getValue().getName(), entry.getKey());
+                Assert.assertSame(entry.getValue().getParent(), dir);
+            }
+            total += dir.getNameToSubFile().size();
+        }
+        Assert.assertEquals(total, files.size() + workers * opsPerWorker / 4);
+    }
+
+    @Test
+    public void testCopySubtree() {
+        Directory root = new Directory();
+        Directory src = (Directory) root.createNewSubFile("copySrc", true);
+        ConcreteFile file = (ConcreteFile) src.createNewSubFile("file", false);
+        file.writeFileContent("content");
+        Directory sub = (Directory) src.createNewSubFile("sub", true);
+        ((ConcreteFile) sub.createNewSubFile("nested", false)).writeFileContent("nested");
+
+        File copy = src.copy("/copyDes", false, Abort);
+        Assert.assertNotNull(copy);
+        Assert.assertSame(root.getSubFile("copyDes"), copy);
+        Assert.assertEquals(copy.getFullPath(), "/copyDes/");
+        ConcreteFile copiedFile = (ConcreteFile) ((Directory) copy).getSubFile("file");
+        Directory copiedSub = (Directory) ((Directory) copy).getSubFile("sub");
+        Assert.assertSame(copiedSub.getParent(), copy);
+        Assert.assertEquals(copiedFile.getFileContent(), "content");
+        Assert.assertEquals(copiedSub.getSubFile("nested").getFileContent(), "nested");
+
+        // both sides are written independently
+        copiedFile.writeFileContent(" copied");
+        file.writeFileContent(" original");
+        Assert.assertEquals(copiedFile.getFileContent(), "content copied");
+        Assert.assertEquals(file.getFileContent(), "content original");
+        // an existing destination is kept with Abort
+        Assert.assertNull(src.copy("/copyDes", false, Abort));
+    }
+
+    @Test
+    public void testConcurrentCopiesAndDeletes() throws InterruptedException {
+        Directory root = new Directory();
+        Directory src = (Directory) root.createNewSubFile("src", true);
+        Directory des = (Directory) root.createNewSubFile("des", true);
+        ConcreteFile file = (ConcreteFile) src.createNewSubFile("file", false);
+        file.writeFileContent("content");
+        int rounds = 2000;
+        Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        // copies lock the destination while sub directories of it are deleted, locking it too
+        Thread copier = new Thread(() -> {
+            try {
+                for (int i = 0; i < rounds; i++) {
+                    Assert.assertNotNull(file.copy("/des/copy" + i % 10, false, Replace));
+                    Assert.assertNotNull(src.copy("/des/dirCopy" + i % 10, false, Replace));
+                }
+            } catch (Throwable e) {
+                errors.add(e);
+            }
+        });
+        Thread deleter = new Thread(() -> {
+            try {
+                for (int i = 0; i < rounds; i++) {
+                    Directory sub = (Directory) des.createNewSubFile("sub" + i, true);
+                    sub.createNewSubFile("file", false);
+                    Assert.assertTrue(sub.delete());
+                }
+            } catch (Throwable e) {
+                errors.add(e);
+            }
+        });
+        copier.start();
+        deleter.start();
+        for (Thread thread : new Thread[] {copier, deleter}) {
+            // a deadlock would leave workers running
+            thread.join(60_000);
+            Assert.assertFalse(thread.isAlive(), "workers should not deadlock");
+        }
+        Assert.assertTrue(errors.isEmpty(), "workers should not fail: " + errors);
+        Assert.assertEquals(des.getSubFile("copy3").getFileContent(), "content");
+        Assert.assertEquals(((Directory) des.getSubFile("dirCopy3")).getSubFile("file").getFileContent(), "content");
+    }
+    @DataProvider
+    public Object[][] sortedIndex() {
+        return new Object[][] {{false}, {true}};
+    }
+
+    @Test(dataProvider = "sortedIndex")
+    public void testListPages(boolean sortedIndex) {
+        Directory dir = (Directory) new Directory().createNewSubFile("listed", true);
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            names.add(String.format("f%03d", (i * 37) % 100));
+        }
+        for (String name : names.subList(0, 50)) {
+            dir.createNewSubFile(name, false);
+        }
+        if (sortedIndex) {
+            // existing files are indexed, later ones by their change
+            dir.enableSortedIndex();
+        }
+        for (String name : names.subList(50, 100)) {
+            dir.createNewSubFile(name, false);
+        }
+        dir.deleteSubFile("f050", false);
+        dir.getSubFile("f051").setName("f999");
+        Assert.assertEquals(dir.hasSortedIndex(), sortedIndex);
+
+        List<String> listed = new ArrayList<>();
+        String cursor = null;
+        for (SortedMap<String, File> page = dir.list(null, 7); !page.isEmpty(); page = dir.list(cursor, 7)) {
+            Assert.assertTrue(page.size() <= 7);
+            for (File file : page.values()) {
+                listed.add(file.getName());
+            }
+            cursor = page.lastKey();
+        }
+        List<String> expected = new ArrayList<>(names);
+        expected.remove("f050");
+        expected.remove("f051");
+        expected.add("f999");
+        expected.sort(null);
+        Assert.assertEquals(listed, expected);
+    }
+
+    @Test
+    public void testListResumesAfterRenamedFile() {
+        Directory dir = (Directory) new Directory().createNewSubFile("renamed", true);
+        for (String name : new String[] {"a", "b", "c", "d"}) {
+            dir.createNewSubFile(name, false);
+        }
+        SortedMap<String, File> page = dir.list(null, 2);
+        Assert.assertEquals(new ArrayList<>(page.keySet()), List.of("a", "b"));
+        // renamed after being listed, its name no longer tells where the page stopped
+        page.get("b").setName("z");
+        Assert.assertEquals(new ArrayList<>(dir.list(page.lastKey(), 2).keySet()), List.of("c", "d"));
+    }
+
+    @Test
+    public void testSmallDirectoryGrows() {
+        Directory dir = new Directory("growing", new Directory());
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            files.add(dir.createNewSubFile("f" + i, false));
+        }
+        // small directories keep their sub files inline
+        Assert.assertFalse(dir.getNameToSubFile() instanceof ConcurrentHashMap);
+        dir.getSubFile("f0").setName("renamed");
+        dir.deleteSubFile("f1", false);
+        Map<String, File> beforeGrowing = new HashMap<>(dir.getNameToSubFile());
+        Assert.assertEquals(beforeGrowing.size(), 7);
+
+        try (TreeSnapshot snapshot = TreeVersions.getInstance().openSnapshot()) {
+            for (int i = 8; i < 20; i++) {
+                files.add(dir.createNewSubFile("f" + i, false));
+            }
+            Assert.assertTrue(dir.getNameToSubFile() instanceof ConcurrentHashMap);
+            Assert.assertEquals(dir.getNameToSubFile().size(), 19);
+            Assert.assertSame(dir.getSubFile("renamed"), files.get(0));
+            Assert.assertNull(dir.getSubFile("f1"));
+            for (int i = 2; i < 20; i++) {
+                Assert.assertSame(dir.getSubFile("f" + i), files.get(i));
+            }
+            // changes made after growing are undone for a snapshot taken before
+            Assert.assertEquals(snapshot.listSubFiles(dir), beforeGrowing);
+        }
+    }
     //TODO: add find test cases
 }
@@ -0,0 +1,54 @@
+package filesystem;
+
+import imfs.api.File;
+import imfs.filesystem.Directory;
+import imfs.filesystem.FileFinder;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import static utils.Fixtures.buildTree;
+
+public class TestFileFinder {
+
+    @DataProvider
+    public Object[][] treeShapes() {
+        //fan out per level, depth
+        return new Object[][] {
+                new Object[] {200, 2},
+                new Object[] {2, 10},
+                new Object[] {1, 300},
+        };
+    }
+
+    @Test(dataProvider = "treeShapes")
+    public void testParallelFindMatchesSequentialFind(int fanOut, int depth) {
+        Directory root = buildTree(fanOut, depth);
+        List<File> expected = new ArrayList<>();
+        root.findExactMath("target", expected, true);
+
+        FileFinder finder = new FileFinder(new ForkJoinPool(4), 2);
+        List<File> found = finder.findExactMatch(root, "target", true);
+        Assert.assertEquals(found.size(), expected.size());
+        Assert.assertEquals(new HashSet<>(found), new HashSet<>(expected));
+
+        Set<File> streamed = ConcurrentHashMap.newKeySet();
+        finder.findExactMatch(root, "target", true, streamed::add);
+        Assert.assertEquals(streamed, new HashSet<>(expected));
+    }
+
+    @Test
+    public void testNonRecursiveFind() {
+        Directory root = buildTree(3, 3);
+        List<File> found = FileFinder.getInstance().findExactMatch(root, "target", false);
+        Assert.assertEquals(found.size(), 1);
+        Assert.assertEquals(found.get(0).getFullPath(), "/target");
+    }
+}
@@ -8,6 +8,12 @@ import org.testng.annotations.BeforeTest;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 public class TestIMFS {
     private IMFS _imfs;
     private Directory _root;
@@ -136,5 +142,96 @@ public class TestIMFS {
         findPrevious = _imfs.traverseTo("/a/b/dd/newFileRename", false);
         Assert.assertNull(findPrevious);
     }
+
+    @Test
+    public void testConcurrentSessionsTraversal() throws Exception {
+        int sessionCount = 8;
+        IMFS[] sessions = new IMFS[sessionCount];
+        for (int i = 0; i < sessionCount; i++) {
+            sessions[i] = _imfs.newSession();
+            sessions[i].changeCwd("/sessions/s" + i + "/leaf", true);
+            sessions[i].changeCwd("..", false);
+        }
+
+        int threadCount = 32;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            int idx = t % sessionCount;
+            IMFS session = sessions[idx];
+            results.add(executor.submit(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    File leaf = session.traverseTo("leaf", false);
+                    File sibling = session.traverseTo("../s" + ((idx + 1) % sessionCount) + "/leaf", false);
+                    if (leaf == null || sibling == null
+                            || !leaf.getFullPath().equals("/sessions/s" + idx + "/leaf/")
+                            || !sibling.getFullPath().equals("/sessions/s" + ((idx + 1) % sessionCount) + "/leaf/")
+                            || session.getCwd() != leaf.getParent()) {
+                        return false;
+                    }
+                }
+                return true;
+            }));
+        }
+        for (Future<Boolean> result : results) {
+            Assert.assertTrue(result.get(), "traversal should resolve against the session's own cwd");
+        }
+        executor.shutdown();
+
+        // sessions don't share their working directory
+        Assert.assertEquals(sessions[0].getCwd().getFullPath(), "/sessions/s0/");
+        Assert.assertEquals(sessions[1].getCwd().getFullPath(), "/sessions/s1/");
+    }
     //TODO: add IMFS level tests
+
+    @Test
+    public void testPagedLs() {
+        IMFS imfs = _imfs.newSession();
+        imfs.changeCwd("/paged", true);
+        imfs.createNewFile("c", false);
+        imfs.createNewFile("a", false);
+        imfs.createNewFile("b", true);
+
+        String cursor = imfs.ls(FilePrintOptions.NameOnly, null, 2);
+        Assert.assertEquals(cursor, "b");
+        Assert.assertNull(imfs.ls(FilePrintOptions.NameOnly, cursor, 2));
+    }
+
+    @Test
+    public void testLoadNodeArena() {
+        IMFS imfs = new IMFS(new Directory());
+        imfs.changeCwd("/arena/docs", true);
+        imfs.createNewFile("a", false);
+        ((ConcreteFile) imfs.traverseTo("a", false)).writeFileContent("hello");
+
+        NodeArena arena = imfs.loadNodeArena();
+        Assert.assertEquals(arena.getContent(arena.resolve("/arena/docs/a")).toString(), "hello");
+        Assert.assertEquals(arena.findExactMatch("a", NodeArena.ROOT, true).length, 1);
+        // later changes of the tree don't reach the arena
+        imfs.createNewFile("b", false);
+        Assert.assertEquals(arena.resolve("/arena/docs/b"), NodeArena.NO_NODE);
+    }
+
+    @Test
+    public void testServeFromNodeArena() {
+        IMFS imfs = new IMFS(new Directory());
+        imfs.changeCwd("/arena/docs", true);
+        imfs.createNewFile("a", false);
+        imfs.changeCwd("/arena", false);
+        imfs.createNewFile("a", false);
+
+        imfs.useNodeArena(imfs.loadNodeArena());
+        imfs.createNewFile("b", false);
+        Assert.assertEquals(imfs.lookup("docs/a"), "/arena/docs/a");
+        Assert.assertEquals(imfs.lookup("/arena/docs/../a"), "/arena/a");
+        // changes after the arena was loaded are not served
+        Assert.assertNull(imfs.lookup("b"));
+        Assert.assertEquals(imfs.findExactMatchPaths("a", true).size(), 2);
+        Assert.assertEquals(imfs.findExactMatchPaths("a", false), List.of("/arena/a"));
+        imfs.changeCwd("docs", false);
+        Assert.assertEquals(imfs.newSession().findExactMatchPaths("a", true), List.of("/arena/docs/a"));
+
+        imfs.useNodeArena(null);
+        Assert.assertEquals(imfs.lookup("/arena/b"), "/arena/b");
+    }
 }
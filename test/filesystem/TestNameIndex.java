@@ -0,0 +1,114 @@
+package filesystem;
+
+import imfs.api.File;
+import imfs.filesystem.ConcreteFile;
+import imfs.filesystem.Directory;
+import imfs.filesystem.NameIndex;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static imfs.filesystem.FileModifyOptions.Abort;
+import static imfs.filesystem.FileModifyOptions.Replace;
+
+public class TestNameIndex {
+    private Directory _root = new Directory();
+    private Directory _dirA;
+    private Directory _dirB;
+
+    @BeforeClass
+    public void setUp() {
+        _dirA = (Directory) _root.createNewSubFile("a", true);
+        _dirB = (Directory) _root.createNewSubFile("b", true);
+        _dirA.createNewSubFile("existing", false);
+        // files existing before the index is enabled are indexed too
+        NameIndex.getInstance().enable(_root);
+    }
+
+    @AfterClass
+    public void tearDown() {
+        NameIndex.getInstance().disable();
+    }
+
+    private List<File> find(String name, Directory dir, boolean recursive) {
+        List<File> found = NameIndex.getInstance().findExactMatch(name, dir, recursive);
+        List<File> expected = new ArrayList<>();
+        dir.findExactMath(name, expected, recursive);
+        Assert.assertEquals(new HashSet<>(found), new HashSet<>(expected), "index should agree with a tree walk");
+        return found;
+    }
+
+    @Test
+    public void testIndexFollowsChanges() {
+        Assert.assertEquals(find("existing", _root, true).size(), 1);
+        Assert.assertTrue(find("existing", _root, false).isEmpty());
+
+        File created = _dirA.createNewSubFile("indexed", false);
+        Assert.assertEquals(find("indexed", _root, true), List.of(created));
+        Assert.assertEquals(find("indexed", _dirA, false), List.of(created));
+
+        created.move("/b/moved", false, Abort);
+        Assert.assertTrue(find("indexed", _root, true).isEmpty());
+        Assert.assertEquals(find("moved", _dirB, false), List.of(created));
+
+        Assert.assertTrue(created.setName("renamed"));
+        Assert.assertTrue(find("moved", _root, true).isEmpty());
+        Assert.assertEquals(find("renamed", _root, true), List.of(created));
+        Assert.assertSame(_dirB.getSubFile("renamed"), created);
+
+        created.delete();
+        Assert.assertTrue(find("renamed", _root, true).isEmpty());
+    }
+
+    @Test
+    public void testReplacedAndDeletedDirectories() {
+        Directory nested = (Directory) _dirB.createNewSubFile("nested", true);
+        File inNested = nested.createNewSubFile("deep", false);
+        File replaced = _dirA.createNewSubFile("deep", false);
+        Set<File> expected = Set.of(inNested, replaced);
+        Assert.assertEquals(new HashSet<>(find("deep", _root, true)), expected);
+
+        // replacing the file in a drops it from the index
+        ConcreteFile replacing = new ConcreteFile("replacing", _dirB);
+        replacing.move("/a/deep", false, Replace);
+        Assert.assertEquals(new HashSet<>(find("deep", _root, true)), Set.of(inNested, replacing));
+
+        nested.delete();
+        Assert.assertEquals(find("deep", _root, true), List.of(replacing));
+    }
+
+    @Test
+    public void testRejectedCopiesAreNotIndexed() {
+        Directory source = (Directory) _dirA.createNewSubFile("copySource", true);
+        ((Directory) source.createNewSubFile("copyNested", true)).createNewSubFile("copyLeaf", false);
+        _dirB.createNewSubFile("copyTaken", true);
+        int size = NameIndex.getInstance().size();
+
+        Assert.assertNull(source.copy("/b/copyTaken", false, Abort));
+        Assert.assertEquals(NameIndex.getInstance().size(), size);
+        Assert.assertEquals(find("copyLeaf", _root, true).size(), 1);
+
+        // a replaced directory leaves the index with its files
+        Directory copy = (Directory) source.copy("/b/copyTaken", false, Replace);
+        source.createNewSubFile("onlyInSource", false);
+        size = NameIndex.getInstance().size();
+        Assert.assertNotNull(copy.copy("/a/copySource", false, Replace));
+        Assert.assertEquals(NameIndex.getInstance().size(), size - 1);
+        Assert.assertEquals(find("copyLeaf", _root, true).size(), 2);
+    }
+
+    @Test
+    public void testRenameToTakenName() {
+        File first = _dirA.createNewSubFile("first", false);
+        File second = _dirA.createNewSubFile("second", false);
+        Assert.assertFalse(second.setName("first"));
+        Assert.assertEquals(second.getName(), "second");
+        Assert.assertEquals(find("first", _dirA, false), List.of(first));
+    }
+}
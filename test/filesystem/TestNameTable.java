@@ -0,0 +1,48 @@
+package filesystem;
+
+import imfs.api.File;
+import imfs.filesystem.Directory;
+import imfs.filesystem.NameTable;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static imfs.filesystem.FileModifyOptions.Abort;
+
+public class TestNameTable {
+    private Directory _root = new Directory();
+
+    @BeforeClass
+    public void setUp() {
+        NameTable.getInstance().enable();
+    }
+
+    @AfterClass
+    public void tearDown() {
+        NameTable.getInstance().disable();
+    }
+
+    @Test
+    public void testRepeatedNamesAreShared() {
+        Directory dirA = (Directory) _root.createNewSubFile(new String("a"), true);
+        Directory dirB = (Directory) _root.createNewSubFile(new String("b"), true);
+        File fileA = dirA.createNewSubFile(new String("README"), false);
+        File fileB = dirB.createNewSubFile(new String("README"), false);
+        File subDirA = dirA.createNewSubFile(new String("docs"), true);
+        File subDirB = dirB.createNewSubFile(new String("docs"), true);
+
+        Assert.assertSame(fileA.getName(), fileB.getName());
+        Assert.assertSame(subDirA.getName(), subDirB.getName());
+        // the directories map the shared name too
+        Assert.assertSame(dirA.getNameToSubFile().keySet().stream().filter("README"::equals).findFirst().get(),
+                fileA.getName());
+
+        // renamed and moved files take the shared name as well
+        File other = dirA.createNewSubFile("other", false);
+        other.setName(new String("index.html"));
+        File moved = dirB.createNewSubFile("moved", false);
+        moved.move(new String("index.html"), false, Abort);
+        Assert.assertSame(other.getName(), moved.getName());
+    }
+}
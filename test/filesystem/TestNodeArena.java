@@ -0,0 +1,150 @@
+package filesystem;
+
+import imfs.filesystem.ConcreteFile;
+import imfs.filesystem.Directory;
+import imfs.filesystem.NodeArena;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+public class TestNodeArena {
+
+    @Test
+    public void testCreateLookupAndResolve() {
+        NodeArena arena = new NodeArena();
+        int docs = arena.create(NodeArena.ROOT, "docs", true);
+        int drafts = arena.create(docs, "drafts", true);
+        int file = arena.create(drafts, "a.txt", false);
+
+        Assert.assertEquals(arena.lookup(docs, "drafts"), drafts);
+        Assert.assertEquals(arena.lookup(docs, "missing"), NodeArena.NO_NODE);
+        Assert.assertEquals(arena.resolve("/docs/drafts/a.txt"), file);
+        Assert.assertEquals(arena.resolve("/docs/./drafts/../drafts/a.txt"), file);
+        Assert.assertEquals(arena.resolve("/docs/drafts/a.txt/x"), NodeArena.NO_NODE);
+        Assert.assertEquals(arena.getFullPath(drafts), "/docs/drafts/");
+        Assert.assertEquals(arena.getFullPath(file), "/docs/drafts/a.txt");
+        Assert.assertEquals(arena.getParent(file), drafts);
+        Assert.assertFalse(arena.isDirectory(file));
+    }
+
+    @Test
+    public void testResolveMultiByteNames() {
+        NodeArena arena = new NodeArena();
+        int dir = arena.create(NodeArena.ROOT, "données", true);
+        int chinese = arena.create(dir, "中文", false);
+        int emoji = arena.create(dir, "a\uD83D\uDE00b", false);
+
+        Assert.assertEquals(arena.resolve("//données///中文"), chinese);
+        Assert.assertEquals(arena.resolve("/données/a\uD83D\uDE00b"), emoji);
+        Assert.assertEquals(arena.resolve("/données/中"), NodeArena.NO_NODE);
+        Assert.assertEquals(arena.resolve("/données/中文文"), NodeArena.NO_NODE);
+        Assert.assertEquals(arena.resolve("/donnees"), NodeArena.NO_NODE);
+    }
+
+    @Test (expectedExceptions = { IllegalStateException.class },
+            expectedExceptionsMessageRegExp = "A subdirectory or file a.txt already exists.")
+    public void testCreateExistingName() {
+        NodeArena arena = new NodeArena();
+        arena.create(NodeArena.ROOT, "a.txt", false);
+        arena.create(NodeArena.ROOT, "a.txt", true);
+    }
+
+    @Test
+    public void testRenameMoveAndDelete() {
+        NodeArena arena = new NodeArena();
+        int a = arena.create(NodeArena.ROOT, "a", true);
+        int b = arena.create(NodeArena.ROOT, "b", true);
+        int sub = arena.create(a, "sub", true);
+        int file = arena.create(sub, "file", false);
+        arena.create(b, "taken", false);
+
+        Assert.assertTrue(arena.rename(file, "renamed"));
+        Assert.assertEquals(arena.lookup(sub, "renamed"), file);
+        Assert.assertEquals(arena.lookup(sub, "file"), NodeArena.NO_NODE);
+        Assert.assertFalse(arena.move(file, b, "taken"));
+        Assert.assertFalse(arena.move(a, sub, "loop"));
+
+        Assert.assertTrue(arena.move(sub, b, "moved"));
+        Assert.assertEquals(arena.resolve("/b/moved/renamed"), file);
+        Assert.assertEquals(arena.list(a).length, 0);
+        Assert.assertEquals(arena.list(b).length, 2);
+
+        int size = arena.size();
+        Assert.assertTrue(arena.delete(sub));
+        Assert.assertFalse(arena.delete(sub));
+        Assert.assertEquals(arena.size(), size - 2);
+        Assert.assertFalse(arena.exists(file));
+        Assert.assertEquals(arena.resolve("/b/moved"), NodeArena.NO_NODE);
+        // ids of deleted nodes are reused
+        int reused = arena.create(a, "moved", false);
+        Assert.assertTrue(reused == sub || reused == file);
+        Assert.assertEquals(arena.getFullPath(reused), "/a/moved");
+    }
+
+    @Test
+    public void testArenasGrow() {
+        NodeArena arena = new NodeArena(4);
+        int[] dirs = new int[100];
+        for (int d = 0; d < dirs.length; d++) {
+            dirs[d] = arena.create(NodeArena.ROOT, "dir" + d, true);
+            for (int f = 0; f < 100; f++) {
+                arena.create(dirs[d], f % 10 == 0 ? "match" + f : "file" + f, false);
+            }
+        }
+        for (int d = 0; d < dirs.length; d += 2) {
+            arena.delete(dirs[d]);
+        }
+        Assert.assertEquals(arena.size(), 1 + 50 * 101);
+        Assert.assertEquals(arena.resolve("/dir99/file99"), arena.lookup(dirs[99], "file99"));
+        Assert.assertEquals(arena.findExactMatch("match10", NodeArena.ROOT, true).length, 50);
+        Assert.assertEquals(arena.findExactMatch("match10", dirs[1], true).length, 1);
+        Assert.assertEquals(arena.findExactMatch("match10", NodeArena.ROOT, false).length, 0);
+        Assert.assertTrue(arena.getOffHeapBytes() > 0);
+    }
+
+    @Test
+    public void testNamesSpanChunks() {
+        NodeArena arena = new NodeArena();
+        String prefix = "n".repeat(1000);
+        int[] ids = new int[200];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = arena.create(NodeArena.ROOT, prefix + i, false);
+        }
+        for (int i = 0; i < ids.length; i++) {
+            Assert.assertEquals(arena.getName(ids[i]), prefix + i);
+            Assert.assertEquals(arena.lookup(NodeArena.ROOT, prefix + i), ids[i]);
+        }
+        Assert.assertTrue(arena.getOffHeapBytes() > 200 * 1000);
+    }
+
+    @Test (expectedExceptions = { IllegalArgumentException.class })
+    public void testNameLongerThanChunk() {
+        new NodeArena().create(NodeArena.ROOT, "n".repeat(1 << 17), false);
+    }
+
+    @Test
+    public void testLoadSharesContent() {
+        Directory root = new Directory();
+        Directory docs = (Directory) root.createNewSubFile("docs", true);
+        ConcreteFile file = (ConcreteFile) docs.createNewSubFile("a", false);
+        file.writeFileContent("hello");
+        docs.createNewSubFile("empty", false);
+        root.createNewSubFile("other", true);
+
+        NodeArena arena = NodeArena.load(root);
+        Assert.assertEquals(arena.size(), 5);
+        int loaded = arena.resolve("/docs/a");
+        Assert.assertEquals(arena.getContent(loaded).toString(), "hello");
+        Assert.assertEquals(arena.getContent(arena.resolve("/docs/empty")).size(), 0);
+        int[] subs = arena.list(arena.resolve("/docs"));
+        Arrays.sort(subs);
+        Assert.assertEquals(subs.length, 2);
+
+        // the arena's content is written independently of the tree
+        arena.getContent(loaded).append(" arena");
+        file.writeFileContent(" tree");
+        Assert.assertEquals(arena.getContent(loaded).toString(), "hello arena");
+        Assert.assertEquals(file.getFileContent(), "hello tree");
+    }
+}
@@ -3,6 +3,7 @@ package filesystem;
 import imfs.api.File;
 import imfs.filesystem.Directory;
 import imfs.filesystem.IMFS;
+import imfs.filesystem.PathCache;
 import imfs.filesystem.PathTraverser;
 import org.testng.Assert;
 import org.testng.annotations.BeforeTest;
@@ -53,6 +54,8 @@ public class TestPathTraverser {
                 new String[] {"/aFolder/./subLevel1/subLevel2/../subLevel2", "/aFolder/subLevel1/subLevel2/", "/aFolder/subLevel1/subLevel2/"},
                 new String[] {"/../aFolder/subLevel1/subLevel2/../subLevel2", "/aFolder/subLevel1/subLevel2/", "/aFolder/subLevel1/subLevel2/"},
                 new String[] {"aFolder/../../..", "/", "/"},
+                new String[] {"//aFolder///subLevel1//./subLevel2//", "/aFolder/subLevel1/subLevel2/", "/aFolder/subLevel1/subLevel2/"},
+                new String[] {"aFolder//..//aFile", "/aFile", "/"},
         };
     }
 
@@ -143,4 +146,55 @@ public class TestPathTraverser {
         Assert.assertEquals(file.getFullPath(), "/create/a/random/folder/to/traverse/to/traverse/");
         Assert.assertEquals(_pathTraverser.getCwd().getFullPath(), "/create/a/random/folder/to/traverse/to/traverse/");
     }
+
+    @Test
+    public void testCachedTraversalInvalidation() {
+        PathCache pathCache = new PathCache(PathCache.DEFAULT_MAX_ENTRIES);
+        _pathTraverser = new PathTraverser(_root, _root, pathCache);
+        File file = _pathTraverser.traverseToAnyLevel("/cache/a/b", true);
+        Assert.assertEquals(pathCache.getMissCount(), 1);
+
+        _pathTraverser = new PathTraverser(_root, _root, pathCache);
+        Assert.assertSame(_pathTraverser.traverseToAnyLevel("/cache/a/b", false), file);
+        Assert.assertEquals(_pathTraverser.getCwd().getFullPath(), "/cache/a/b/");
+        Assert.assertEquals(pathCache.getHitCount(), 1);
+
+        // deleting an ancestor must not leave the cached path resolvable
+        _pathTraverser.traverseToAnyLevel("/cache", false).delete();
+        _pathTraverser = new PathTraverser(_root, _root, pathCache);
+        Assert.assertNull(_pathTraverser.traverseToAnyLevel("/cache/a/b", false));
+        Assert.assertEquals(pathCache.getHitCount(), 1);
+    }
+
+    @Test
+    public void testCachedTraversalInvalidatedPerDirectory() {
+        PathCache pathCache = new PathCache(PathCache.DEFAULT_MAX_ENTRIES);
+        Directory root = new Directory();
+        File file = new PathTraverser(root, root, pathCache).traverseToAnyLevel("/kept/a/b", true);
+        Directory other = (Directory) new PathTraverser(root, root, pathCache).traverseToAnyLevel("/other/c", true);
+
+        // changes outside of the resolved path keep the entry
+        other.delete();
+        Assert.assertSame(new PathTraverser(root, root, pathCache).traverseToAnyLevel("/kept/a/b", false), file);
+        Assert.assertEquals(pathCache.getHitCount(), 1);
+
+        // renaming a directory on the path invalidates it
+        ((Directory) root.getSubFile("kept")).getSubFile("a").setName("renamed");
+        Assert.assertNull(new PathTraverser(root, root, pathCache).traverseToAnyLevel("/kept/a/b", false));
+        Assert.assertSame(new PathTraverser(root, root, pathCache).traverseToAnyLevel("/kept/renamed/b", false), file);
+        Assert.assertEquals(pathCache.getHitCount(), 1);
+
+        // paths going up from a deleted directory aren't served anymore
+        Directory b = (Directory) file;
+        Assert.assertNotNull(new PathTraverser(root, b, pathCache).traverseToAnyLevel("../../renamed", false));
+        ((Directory) root.getSubFile("kept")).delete();
+        Assert.assertNull(new PathTraverser(root, b, pathCache).traverseToAnyLevel("../../renamed", false));
+    }
+
+    @Test (expectedExceptions = { IllegalStateException.class },
+            expectedExceptionsMessageRegExp = "File with same name aFile already exists but not a directory!")
+    public void testTraversalThroughConcreteFile() {
+        _pathTraverser = new PathTraverser(_root, _root);
+        _pathTraverser.traverseToAnyLevel("/aFile/subLevel1", false);
+    }
 }
@@ -0,0 +1,146 @@
+package filesystem;
+
+import imfs.api.File;
+import imfs.filesystem.ConcreteFile;
+import imfs.filesystem.Directory;
+import imfs.filesystem.TreeSnapshot;
+import imfs.filesystem.TreeVersions;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static imfs.filesystem.FileModifyOptions.Abort;
+import static imfs.filesystem.FileModifyOptions.Replace;
+
+public class TestTreeSnapshot {
+
+    @Test
+    public void testSnapshotIgnoresLaterChanges() {
+        Directory root = new Directory();
+        Directory dirA = (Directory) root.createNewSubFile("a", true);
+        Directory dirB = (Directory) root.createNewSubFile("b", true);
+        File moved = dirA.createNewSubFile("moved", false);
+        File deleted = dirA.createNewSubFile("deleted", false);
+
+        try (TreeSnapshot snapshot = TreeVersions.getInstance().openSnapshot()) {
+            dirB.createNewSubFile("created", false);
+            moved.move("/b/renamed", false, Abort);
+            deleted.delete();
+            dirB.delete();
+
+            Map<String, File> subFilesOfA = snapshot.listSubFiles(dirA);
+            Assert.assertEquals(subFilesOfA.size(), 2);
+            Assert.assertSame(subFilesOfA.get("moved"), moved);
+            Assert.assertSame(subFilesOfA.get("deleted"), deleted);
+            Assert.assertTrue(snapshot.listSubFiles(dirB).isEmpty());
+            Assert.assertSame(snapshot.getSubFile(root, "b"), dirB);
+            Assert.assertNull(snapshot.getSubFile(dirB, "renamed"));
+
+            Assert.assertEquals(snapshot.findExactMatch(root, "moved", true).size(), 1);
+            Assert.assertTrue(snapshot.findExactMatch(root, "created", true).isEmpty());
+        }
+
+        try (TreeSnapshot snapshot = TreeVersions.getInstance().openSnapshot()) {
+            Assert.assertTrue(snapshot.listSubFiles(dirA).isEmpty());
+            Assert.assertNull(snapshot.getSubFile(root, "b"));
+        }
+    }
+
+    @Test(expectedExceptions = { IllegalStateException.class })
+    public void testClosedSnapshot() {
+        TreeSnapshot snapshot = TreeVersions.getInstance().openSnapshot();
+        snapshot.close();
+        snapshot.listSubFiles(new Directory());
+    }
+
+    @Test
+    public void testMovesAreAtomicInSnapshots() throws InterruptedException {
+        Directory root = new Directory();
+        Directory[] dirs = new Directory[] {
+                (Directory) root.createNewSubFile("a", true),
+                (Directory) root.createNewSubFile("b", true)
+        };
+        int fileCount = 32;
+        List<ConcreteFile> files = new ArrayList<>();
+        for (int i = 0; i < fileCount; i++) {
+            files.add((ConcreteFile) dirs[0].createNewSubFile("file" + i, false));
+        }
+
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread[] movers = new Thread[4];
+        for (int t = 0; t < movers.length; t++) {
+            int mover = t;
+            movers[t] = new Thread(() -> {
+                for (int i = 0; !stop.get(); i++) {
+                    ConcreteFile file = files.get((i * movers.length + mover) % fileCount);
+                    String target = file.getParent() == dirs[0] ? "/b/" : "/a/";
+                    file.move(target + file.getName(), false, Abort);
+                }
+            });
+            movers[t].start();
+        }
+
+        // live listings may catch a file in both directories or in neither, snapshots never do
+        for (int i = 0; i < 2000; i++) {
+            try (TreeSnapshot snapshot = TreeVersions.getInstance().openSnapshot()) {
+                Map<String, File> subFilesOfA = snapshot.listSubFiles(dirs[0]);
+                Map<String, File> subFilesOfB = snapshot.listSubFiles(dirs[1]);
+                Assert.assertEquals(subFilesOfA.size() + subFilesOfB.size(), fileCount);
+                for (String name : subFilesOfA.keySet()) {
+                    Assert.assertFalse(subFilesOfB.containsKey(name), name + " should be in one directory only");
+                }
+            }
+        }
+        stop.set(true);
+        for (Thread mover : movers) {
+            mover.join();
+        }
+    }
+
+    /**
+     * Replace a file by moving another one over it, the replaced file is only referenced by undo records.
+     */
+    private static WeakReference<File> replaceFile(Directory root) {
+        Directory dirA = (Directory) root.createNewSubFile("a", true);
+        Directory dirB = (Directory) root.createNewSubFile("b", true);
+        File replaced = dirA.createNewSubFile("file", false);
+        ((ConcreteFile) replaced).writeFileContent("replaced");
+        Assert.assertTrue(dirB.createNewSubFile("file", false).move("/a/file", false, Replace));
+        return new WeakReference<>(replaced);
+    }
+
+    private static boolean isCollected(WeakReference<?> reference) throws InterruptedException {
+        for (int i = 0; i < 50 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        return reference.get() == null;
+    }
+
+    @Test
+    public void testReplacedFilesAreNotRetainedWithoutSnapshots() throws InterruptedException {
+        Directory root = new Directory();
+        WeakReference<File> replaced = replaceFile(root);
+        Assert.assertTrue(isCollected(replaced));
+    }
+
+    @Test
+    public void testReplacedFilesAreReleasedWithSnapshots() throws InterruptedException {
+        Directory root = new Directory();
+        Directory dirA = (Directory) root.createNewSubFile("a", true);
+        Directory dirB = (Directory) root.createNewSubFile("b", true);
+        File replaced = dirA.createNewSubFile("file", false);
+        WeakReference<File> reference = new WeakReference<>(replaced);
+        try (TreeSnapshot snapshot = TreeVersions.getInstance().openSnapshot()) {
+            Assert.assertTrue(dirB.createNewSubFile("file", false).move("/a/file", false, Replace));
+            Assert.assertSame(snapshot.getSubFile(dirA, "file"), replaced);
+        }
+        replaced = null;
+        Assert.assertTrue(isCollected(reference));
+    }
+}
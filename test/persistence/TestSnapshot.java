@@ -0,0 +1,86 @@
+package persistence;
+
+import imfs.api.File;
+import imfs.factories.SnapshotRootDirectoryFactory;
+import imfs.filesystem.ConcreteFile;
+import imfs.filesystem.Directory;
+import imfs.persistence.SnapshotReader;
+import imfs.persistence.SnapshotWriter;
+import imfs.storage.SegmentedContent;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static utils.Fixtures.genContent;
+
+public class TestSnapshot {
+
+    private static Directory buildTree() {
+        Directory root = new Directory();
+        Directory docs = (Directory) root.createNewSubFile("docs", true);
+        Directory nested = (Directory) docs.createNewSubFile("文档", true);
+        ((ConcreteFile) docs.createNewSubFile("readme", false)).writeFileContent("hello snapshot");
+        ((ConcreteFile) nested.createNewSubFile("readme", false)).writeFileContent("内容");
+        ((ConcreteFile) nested.createNewSubFile("large", false)).writeFileContent(genContent(3 * SegmentedContent.SEGMENT_SIZE + 5));
+        nested.createNewSubFile("empty", false);
+        root.createNewSubFile("emptyDir", true);
+        return root;
+    }
+
+    static void assertSameTree(Directory expected, Directory actual) {
+        Map<String, File> expectedSubFiles = expected.getNameToSubFile();
+        Assert.assertEquals(actual.getNameToSubFile().keySet(), expectedSubFiles.keySet());
+        for (Map.Entry<String, File> sub : expectedSubFiles.entrySet()) {
+            File actualSub = actual.getSubFile(sub.getKey());
+            Assert.assertEquals(actualSub.isDirectory(), sub.getValue().isDirectory());
+            Assert.assertEquals(actualSub.getFullPath(), sub.getValue().getFullPath());
+            if (actualSub.isDirectory()) {
+                assertSameTree((Directory) sub.getValue(), (Directory) actualSub);
+            } else {
+                Assert.assertEquals(actualSub.getFileContent(), sub.getValue().getFileContent());
+            }
+        }
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        Directory root = buildTree();
+        Path image = Files.createTempDirectory("imfs").resolve("snapshot.imfs");
+        SnapshotWriter.write(root, image);
+
+        assertSameTree(root, SnapshotReader.read(image));
+
+        // rewriting replaces the image
+        root.createNewSubFile("later", false);
+        SnapshotWriter.write(root, image);
+        Directory loaded = new SnapshotRootDirectoryFactory(image).getRoot();
+        assertSameTree(root, loaded);
+
+        // loaded content is read from the replaced image until it's changed
+        Directory loadedDocs = (Directory) loaded.getSubFile("docs");
+        ((ConcreteFile) loadedDocs.getSubFile("readme")).writeFileContent(" again");
+        SnapshotWriter.write(loaded, image);
+        Directory reloaded = SnapshotReader.read(image);
+        assertSameTree(loaded, reloaded);
+        Assert.assertEquals(((Directory) reloaded.getSubFile("docs")).getSubFile("readme").getFileContent(), "hello snapshot again");
+    }
+
+    @Test
+    public void testMissingImageBootsEmptyRoot() throws IOException {
+        Path image = Files.createTempDirectory("imfs").resolve("missing.imfs");
+        Directory root = new SnapshotRootDirectoryFactory(image).getRoot();
+        Assert.assertTrue(root.isRoot());
+        Assert.assertTrue(root.getNameToSubFile().isEmpty());
+    }
+
+    @Test(expectedExceptions = { IOException.class })
+    public void testReadInvalidImage() throws IOException {
+        Path image = Files.createTempFile("imfs", ".imfs");
+        Files.write(image, genContent(100).getBytes());
+        SnapshotReader.read(image);
+    }
+}
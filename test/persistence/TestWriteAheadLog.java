@@ -0,0 +1,202 @@
+package persistence;
+
+import imfs.factories.SnapshotRootDirectoryFactory;
+import imfs.filesystem.BatchOperation;
+import imfs.filesystem.ConcreteFile;
+import imfs.filesystem.Directory;
+import imfs.filesystem.IMFS;
+import imfs.filesystem.MutationLog;
+import imfs.persistence.WriteAheadLog;
+import imfs.storage.ContentChannel;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static imfs.filesystem.FileModifyOptions.Replace;
+
+public class TestWriteAheadLog {
+
+    private static SnapshotRootDirectoryFactory newFactory(Path dir) {
+        return new SnapshotRootDirectoryFactory(dir.resolve("snapshot.imfs"), dir.resolve("wal"), 1, 0, TimeUnit.NANOSECONDS);
+    }
+
+    private static List<Path> listLogs(Path dir) throws IOException {
+        try (Stream<Path> logs = Files.list(dir.resolve("wal"))) {
+            List<Path> sorted = new ArrayList<>();
+            logs.sorted().forEach(sorted::add);
+            return sorted;
+        }
+    }
+
+    @Test
+    public void testReplayOnTopOfSnapshot() throws IOException {
+        Path dir = Files.createTempDirectory("imfs");
+        SnapshotRootDirectoryFactory factory = newFactory(dir);
+        Directory root = factory.getRoot();
+        IMFS imfs = new IMFS(root);
+        imfs.changeCwd("/docs/drafts", true);
+        imfs.createNewFile("a", false);
+        imfs.writeFileContent("a", "hello");
+        imfs.createNewFile("b", false);
+        imfs.saveSnapshot(factory.getSnapshotFile());
+        // the generations the image covers are dropped
+        Assert.assertEquals(listLogs(dir).size(), 1);
+
+        imfs.writeFileContent("a", " world");
+        imfs.writeFileContent("b", "bee");
+        ((ConcreteFile) imfs.traverseTo("b", false)).write(1, ByteBuffer.wrap("EE".getBytes(StandardCharsets.UTF_8)));
+        imfs.moveFile("a", "/docs/moved", false, Replace);
+        imfs.copyFile("/docs/drafts", "/docs/copied", false, Replace);
+        imfs.writeFileContent("/docs/copied/b", "!");
+        imfs.applyBatch(Arrays.asList(
+                BatchOperation.createFile("/docs/batched"),
+                BatchOperation.createFile("/docs/scratch"),
+                BatchOperation.write("/docs/batched", "batch"),
+                BatchOperation.delete("/docs/scratch")));
+        imfs.createNewFile("gone", false);
+        imfs.delete("gone");
+        root.getSubFile("docs").setName("documents");
+        Directory tmp = (Directory) root.createNewSubFile("tmp", true);
+        tmp.createNewSubFile("scratch", false);
+        root.deleteSubFile("tmp", false);
+        factory.close();
+
+        try (SnapshotRootDirectoryFactory recovered = newFactory(dir)) {
+            Directory recoveredRoot = recovered.getRoot();
+            TestSnapshot.assertSameTree(root, recoveredRoot);
+            Assert.assertEquals(new IMFS(recoveredRoot).traverseTo("/documents/moved", false).getFileContent(), "hello world");
+            Assert.assertEquals(new IMFS(recoveredRoot).traverseTo("/documents/drafts/b", false).getFileContent(), "bEE");
+            Assert.assertEquals(new IMFS(recoveredRoot).traverseTo("/documents/copied/b", false).getFileContent(), "bEE!");
+            Assert.assertNull(new IMFS(recoveredRoot).traverseTo("/documents/scratch", false));
+            Assert.assertEquals(new IMFS(recoveredRoot).traverseTo("/documents/batched", false).getFileContent(), "batch");
+        }
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws IOException {
+        Path dir = Files.createTempDirectory("imfs");
+        Directory root;
+        try (SnapshotRootDirectoryFactory factory = newFactory(dir)) {
+            root = factory.getRoot();
+            ((ConcreteFile) root.createNewSubFile("file", false)).writeFileContent("content");
+        }
+        Path log = listLogs(dir).get(0);
+        long size = Files.size(log);
+        // a crash in the middle of writing a record
+        Files.write(log, new byte[] {0, 0, 1, 0, 7}, StandardOpenOption.APPEND);
+
+        try (SnapshotRootDirectoryFactory recovered = newFactory(dir)) {
+            TestSnapshot.assertSameTree(root, recovered.getRoot());
+        }
+        Assert.assertEquals(Files.size(log), size);
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        int writers = 8;
+        int recordsPerWriter = 20;
+        Path dir = Files.createTempDirectory("imfs");
+        try (WriteAheadLog log = WriteAheadLog.recover(dir, 0, new Directory(), writers, 100, TimeUnit.MILLISECONDS)) {
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < writers; i++) {
+                String name = "/file" + i;
+                threads.add(new Thread(() -> {
+                    for (int j = 0; j < recordsPerWriter; j++) {
+                        try {
+                            log.sync(log.appendCreate(name + "_" + j, false));
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }));
+            }
+            threads.forEach(Thread::start);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Assert.assertEquals(log.getRecordCount(), writers * recordsPerWriter);
+            Assert.assertTrue(log.getSyncCount() < log.getRecordCount(), "fsyncs should be shared by writers");
+        }
+        Directory replayed = new Directory();
+        WriteAheadLog.recover(dir, 0, replayed, 1, 0, TimeUnit.NANOSECONDS).close();
+        Assert.assertEquals(replayed.getNameToSubFile().size(), writers * recordsPerWriter);
+    }
+
+    @Test
+    public void testOtherTreesAreNotBlockedByTheLoggedTree() throws Exception {
+        Path dir = Files.createTempDirectory("imfs");
+        try (SnapshotRootDirectoryFactory factory = newFactory(dir)) {
+            Directory logged = factory.getRoot();
+            Directory other = new Directory();
+            ConcreteFile file = (ConcreteFile) other.createNewSubFile("file", false);
+            MutationLog mutationLog = MutationLog.getInstance();
+            // blocks the changes of the logged tree
+            mutationLog.beginCheckpoint(logged);
+            try {
+                Thread writer = new Thread(() -> {
+                    file.writeFileContent("not logged");
+                    other.createNewSubFile("dir", true).delete();
+                });
+                writer.start();
+                writer.join(10_000);
+                Assert.assertFalse(writer.isAlive(), "changes of another tree should not wait for the logged tree");
+            } finally {
+                mutationLog.endCheckpoint();
+            }
+            Assert.assertEquals(file.getFileContent(), "not logged");
+        }
+    }
+
+    @Test
+    public void testChannelChangesAreReplayed() throws Exception {
+        Path dir = Files.createTempDirectory("imfs");
+        SnapshotRootDirectoryFactory factory = newFactory(dir);
+        IMFS imfs = new IMFS(factory.getRoot());
+        imfs.createNewFile("source", false);
+        imfs.createNewFile("target", false);
+        imfs.writeFileContent("source", "shared");
+        ConcreteFile target = (ConcreteFile) imfs.traverseTo("target", false);
+        try (ContentChannel channel = target.newByteChannel();
+             ContentChannel source = ((ConcreteFile) imfs.traverseTo("source", false)).newReadChannel()) {
+            channel.write(ByteBuffer.wrap("written ".getBytes(StandardCharsets.UTF_8)));
+            channel.transferFrom(source, channel.size(), source.size());
+        }
+        Assert.assertEquals(target.getFileContent(), "written shared");
+        factory.close();
+
+        try (SnapshotRootDirectoryFactory recovered = newFactory(dir)) {
+            Assert.assertEquals(new IMFS(recovered.getRoot()).traverseTo("/target", false).getFileContent(), "written shared");
+        }
+    }
+
+    @Test
+    public void testTruncateIsReplayed() throws Exception {
+        Path dir = Files.createTempDirectory("imfs");
+        SnapshotRootDirectoryFactory factory = newFactory(dir);
+        IMFS imfs = new IMFS(factory.getRoot());
+        imfs.createNewFile("file", false);
+        imfs.writeFileContent("file", "truncated content");
+        ConcreteFile file = (ConcreteFile) imfs.traverseTo("file", false);
+        try (ContentChannel channel = file.newByteChannel()) {
+            channel.truncate(13);
+        }
+        file.truncate(9);
+        Assert.assertEquals(file.getFileContent(), "truncated");
+        factory.close();
+
+        try (SnapshotRootDirectoryFactory recovered = newFactory(dir)) {
+            Assert.assertEquals(new IMFS(recovered.getRoot()).traverseTo("/file", false).getFileContent(), "truncated");
+        }
+    }
+}
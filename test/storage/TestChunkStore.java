@@ -0,0 +1,76 @@
+package storage;
+
+import imfs.storage.ChunkStore;
+import imfs.storage.SegmentedContent;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class TestChunkStore {
+    // all head segments and two full size ones, plus a tail that stays private
+    private static final int FULL_SEGMENTS_SIZE = 3 * SegmentedContent.SEGMENT_SIZE;
+
+    @BeforeClass
+    public void enableStore() {
+        ChunkStore.getInstance().enable();
+    }
+
+    @AfterClass
+    public void disableStore() {
+        ChunkStore.getInstance().disable();
+    }
+
+    private static byte[] genBytes(long seed, int size) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] readAll(SegmentedContent content) {
+        ByteBuffer dst = ByteBuffer.allocate((int) content.size());
+        content.read(0, dst);
+        return dst.array();
+    }
+
+    @Test
+    public void testIdenticalContentIsShared() {
+        ChunkStore store = ChunkStore.getInstance();
+        byte[] bytes = genBytes(1, FULL_SEGMENTS_SIZE + 100);
+        SegmentedContent first = new SegmentedContent();
+        // appends completing segments piece by piece
+        for (int off = 0; off < bytes.length; off += 1000) {
+            first.append(bytes, off, Math.min(1000, bytes.length - off));
+        }
+        long deduped = store.getDedupedBytes();
+        SegmentedContent second = new SegmentedContent();
+        second.append(bytes, 0, bytes.length);
+
+        Assert.assertEquals(store.getDedupedBytes() - deduped, FULL_SEGMENTS_SIZE);
+        Assert.assertTrue(store.getDedupRatio() > 1);
+        Assert.assertEquals(readAll(second), bytes);
+    }
+
+    @Test
+    public void testSharedContentIsCopiedOnWrite() {
+        byte[] bytes = genBytes(2, FULL_SEGMENTS_SIZE);
+        SegmentedContent first = new SegmentedContent();
+        first.append(bytes, 0, bytes.length);
+        SegmentedContent second = new SegmentedContent();
+        second.append(bytes, 0, bytes.length);
+
+        second.write(10, ByteBuffer.wrap(new byte[] {1, 2, 3}));
+        second.append(new byte[] {4}, 0, 1);
+        Assert.assertEquals(readAll(first), bytes);
+        byte[] expected = new byte[bytes.length + 1];
+        System.arraycopy(bytes, 0, expected, 0, bytes.length);
+        expected[10] = 1;
+        expected[11] = 2;
+        expected[12] = 3;
+        expected[bytes.length] = 4;
+        Assert.assertEquals(readAll(second), expected);
+    }
+}
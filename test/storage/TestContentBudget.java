@@ -0,0 +1,101 @@
+package storage;
+
+import imfs.storage.ContentBudget;
+import imfs.storage.SegmentedContent;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static utils.Fixtures.genContent;
+
+public class TestContentBudget {
+    private static final int CONTENT_SIZE = 3 * SegmentedContent.SEGMENT_SIZE;
+
+    @AfterClass
+    public void disableBudget() {
+        ContentBudget.getInstance().disable();
+    }
+
+    @Test
+    public void testColdContentsSpillAndFaultIn() throws IOException {
+        ContentBudget budget = ContentBudget.getInstance();
+        long maxResidentBytes = 4L * CONTENT_SIZE;
+        budget.enable(maxResidentBytes, Files.createTempDirectory("imfs"));
+        long faults = budget.getFaultCount();
+
+        List<SegmentedContent> contents = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            SegmentedContent content = new SegmentedContent();
+            content.append(genContent(CONTENT_SIZE, i));
+            contents.add(content);
+            Assert.assertTrue(budget.getResidentBytes() <= maxResidentBytes, "resident bytes stay within the budget");
+        }
+        Assert.assertTrue(contents.get(0).isSpilled());
+        Assert.assertTrue(budget.getSpilledBytes() > 0);
+        Assert.assertEquals(contents.get(0).size(), CONTENT_SIZE);
+
+        for (int i = 0; i < contents.size(); i++) {
+            Assert.assertEquals(contents.get(i).toString(), genContent(CONTENT_SIZE, i));
+            Assert.assertTrue(budget.getResidentBytes() <= maxResidentBytes, "faulted in content stays within the budget");
+        }
+        Assert.assertTrue(budget.getFaultCount() > faults);
+        Assert.assertTrue(budget.getMaxFaultNanos() > 0);
+    }
+
+    @Test
+    public void testSharedSegmentsAreChargedOnce() throws IOException {
+        ContentBudget budget = ContentBudget.getInstance();
+        long maxResidentBytes = 4L * CONTENT_SIZE;
+        budget.enable(maxResidentBytes, Files.createTempDirectory("imfs"));
+        SegmentedContent original = new SegmentedContent();
+        original.append(genContent(CONTENT_SIZE, 0));
+        long resident = budget.getResidentBytes();
+        // a copy shares every segment, it's tracked without being charged
+        SegmentedContent copy = original.copy();
+        Assert.assertTrue(budget.getResidentBytes() <= resident);
+
+        List<SegmentedContent> others = new ArrayList<>();
+        for (int i = 1; i < 16; i++) {
+            SegmentedContent other = new SegmentedContent();
+            other.append(genContent(CONTENT_SIZE, i));
+            others.add(other);
+            Assert.assertTrue(budget.getResidentBytes() <= maxResidentBytes, "resident bytes stay within the budget");
+        }
+        // segments still held by the copy weren't given back when the original spilled, so the copy spills too
+        Assert.assertTrue(original.isSpilled());
+        Assert.assertTrue(copy.isSpilled());
+        Assert.assertTrue(budget.getResidentBytes() >= 0);
+
+        copy.append("!");
+        Assert.assertEquals(copy.toString(), genContent(CONTENT_SIZE, 0) + "!");
+        Assert.assertEquals(original.toString(), genContent(CONTENT_SIZE, 0));
+        Assert.assertTrue(budget.getResidentBytes() <= maxResidentBytes, "faulted in content stays within the budget");
+    }
+
+    @Test
+    public void testChangeOfSpilledContent() throws IOException {
+        ContentBudget budget = ContentBudget.getInstance();
+        budget.enable(CONTENT_SIZE, Files.createTempDirectory("imfs"));
+        SegmentedContent content = new SegmentedContent();
+        content.append(genContent(CONTENT_SIZE, 0));
+        // the content whose change takes the budget over is not the one spilled
+        SegmentedContent other = new SegmentedContent();
+        other.append(genContent(CONTENT_SIZE, 1));
+        other.append("!");
+        Assert.assertTrue(content.isSpilled());
+        Assert.assertFalse(other.isSpilled());
+
+        content.write(1, ByteBuffer.wrap("XY".getBytes(StandardCharsets.UTF_8)));
+        content.append("tail");
+        String expected = genContent(CONTENT_SIZE, 0);
+        Assert.assertEquals(content.toString(), expected.charAt(0) + "XY" + expected.substring(3) + "tail");
+        Assert.assertEquals(other.toString(), genContent(CONTENT_SIZE, 1) + "!");
+    }
+}
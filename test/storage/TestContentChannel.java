@@ -0,0 +1,118 @@
+package storage;
+
+import imfs.storage.ContentChannel;
+import imfs.storage.SegmentedContent;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import static utils.Fixtures.genContent;
+
+public class TestContentChannel {
+
+    @Test
+    public void testSeekReadWrite() throws IOException {
+        SegmentedContent content = new SegmentedContent();
+        content.append("hello world");
+        ContentChannel channel = new ContentChannel(content);
+
+        ByteBuffer dst = ByteBuffer.allocate(5);
+        Assert.assertEquals(channel.read(dst), 5);
+        Assert.assertEquals(new String(dst.array(), StandardCharsets.UTF_8), "hello");
+        Assert.assertEquals(channel.position(), 5);
+
+        channel.position(6).write(ByteBuffer.wrap("there".getBytes(StandardCharsets.UTF_8)));
+        channel.write(ByteBuffer.wrap("!".getBytes(StandardCharsets.UTF_8)));
+        Assert.assertEquals(channel.size(), 12);
+        Assert.assertEquals(content.toString(), "hello there!");
+        Assert.assertEquals(channel.read(ByteBuffer.allocate(1)), -1);
+
+        channel.close();
+        Assert.assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void testTruncate() throws IOException {
+        String original = genContent(2 * SegmentedContent.SEGMENT_SIZE + 10);
+        SegmentedContent content = new SegmentedContent();
+        content.append(original);
+        ContentChannel channel = new ContentChannel(content);
+        channel.position(original.length());
+
+        Assert.assertSame(channel.truncate(100), channel);
+        Assert.assertEquals(channel.size(), 100);
+        Assert.assertEquals(channel.position(), 100);
+        channel.write(ByteBuffer.wrap("!".getBytes(StandardCharsets.UTF_8)));
+        Assert.assertEquals(content.toString(), original.substring(0, 100) + "!");
+
+        // truncating past the end only moves the position back
+        channel.position(50).truncate(1000);
+        Assert.assertEquals(channel.size(), 101);
+        Assert.assertEquals(channel.position(), 50);
+    }
+
+    @Test
+    public void testTransferBetweenContentsIsCopyOnWrite() throws IOException {
+        int size = 4 * SegmentedContent.SEGMENT_SIZE + 100;
+        String original = genContent(size);
+        SegmentedContent source = new SegmentedContent();
+        source.append(original);
+        SegmentedContent target = new SegmentedContent();
+
+        ContentChannel sourceChannel = new ContentChannel(source);
+        ContentChannel targetChannel = new ContentChannel(target);
+        Assert.assertEquals(sourceChannel.transferTo(0, Long.MAX_VALUE, targetChannel), size);
+        Assert.assertEquals(targetChannel.position(), size);
+        Assert.assertEquals(target.toString(), original);
+
+        // writes on either side after the transfer stay private
+        target.write(SegmentedContent.SEGMENT_SIZE, ByteBuffer.wrap("TARGET".getBytes(StandardCharsets.UTF_8)));
+        source.write(2 * SegmentedContent.SEGMENT_SIZE, ByteBuffer.wrap("SOURCE".getBytes(StandardCharsets.UTF_8)));
+        target.append("tail");
+        Assert.assertEquals(source.toString().indexOf("TARGET"), -1);
+        Assert.assertEquals(target.toString().indexOf("SOURCE"), -1);
+        Assert.assertEquals(target.toString().indexOf("TARGET"), SegmentedContent.SEGMENT_SIZE);
+        Assert.assertEquals(source.size(), size);
+        Assert.assertEquals(target.size(), size + 4);
+    }
+
+    @Test
+    public void testUnalignedTransferFrom() throws IOException {
+        String original = genContent(3 * SegmentedContent.SEGMENT_SIZE);
+        SegmentedContent source = new SegmentedContent();
+        source.append(original);
+        SegmentedContent target = new SegmentedContent();
+        target.append("prefix");
+
+        ContentChannel sourceChannel = new ContentChannel(source);
+        sourceChannel.position(10);
+        long transferred = new ContentChannel(target).transferFrom(sourceChannel, target.size(), 20000);
+        Assert.assertEquals(transferred, 20000);
+        Assert.assertEquals(sourceChannel.position(), 20010);
+        Assert.assertEquals(target.toString(), "prefix" + original.substring(10, 20010));
+    }
+
+    @Test
+    public void testTransferWithForeignChannels() throws IOException {
+        String original = genContent(SegmentedContent.SEGMENT_SIZE + 10);
+        SegmentedContent content = new SegmentedContent();
+        content.append(original);
+        ContentChannel channel = new ContentChannel(content);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(channel.transferTo(5, 100, Channels.newChannel(out)), 100);
+        Assert.assertEquals(out.toString(StandardCharsets.UTF_8), original.substring(5, 105));
+
+        byte[] bytes = "from stream".getBytes(StandardCharsets.UTF_8);
+        long transferred = channel.transferFrom(Channels.newChannel(new ByteArrayInputStream(bytes)),
+                content.size(), Long.MAX_VALUE);
+        Assert.assertEquals(transferred, bytes.length);
+        Assert.assertEquals(content.toString(), original + "from stream");
+    }
+}
@@ -0,0 +1,68 @@
+package storage;
+
+import imfs.storage.ContentCodec;
+import imfs.storage.ContentCompressor;
+import imfs.storage.SegmentedContent;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+public class TestContentCompressor {
+
+    @AfterClass
+    public void disableCompressor() {
+        ContentCompressor.getInstance().disable();
+    }
+
+    private static String genText(int size) {
+        StringBuilder sb = new StringBuilder(size);
+        for (int line = 0; sb.length() < size; line++) {
+            sb.append("line ").append(line).append(": the quick brown fox jumps over the lazy dog\n");
+        }
+        return sb.substring(0, size);
+    }
+
+    private static void awaitIncrease(LongSupplier counter, long from) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (counter.getAsLong() <= from && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(counter.getAsLong() > from, "counter should have increased");
+    }
+
+    @Test
+    public void testCompletedChunksAreCompressed() throws InterruptedException {
+        ContentCompressor compressor = ContentCompressor.getInstance();
+        compressor.enable(ContentCodec.deflate(6), 1, TimeUnit.HOURS, SegmentedContent.SEGMENT_SIZE);
+        long compressed = compressor.getCompressedChunks();
+        long decompressed = compressor.getDecompressedChunks();
+        String text = genText(5 * SegmentedContent.SEGMENT_SIZE + 100);
+        SegmentedContent content = new SegmentedContent();
+        content.append(text);
+
+        awaitIncrease(compressor::getCompressedChunks, compressed);
+        Assert.assertTrue(compressor.getSavedBytes() > 0);
+        Assert.assertEquals(content.toString(), text);
+        Assert.assertTrue(compressor.getDecompressedChunks() > decompressed);
+        content.append("tail");
+        Assert.assertEquals(content.toString(), text + "tail");
+    }
+
+    @Test
+    public void testIdleContentIsCompressed() throws InterruptedException {
+        ContentCompressor compressor = ContentCompressor.getInstance();
+        // only idle files are compressed
+        compressor.enable(ContentCodec.deflate(1), 20, TimeUnit.MILLISECONDS, Integer.MAX_VALUE);
+        long compressed = compressor.getCompressedChunks();
+        String text = genText(3000);
+        SegmentedContent content = new SegmentedContent();
+        content.append(text);
+
+        awaitIncrease(compressor::getCompressedChunks, compressed);
+        Assert.assertTrue(compressor.getCompressNanos() >= 0);
+        Assert.assertEquals(content.toString(), text);
+    }
+}
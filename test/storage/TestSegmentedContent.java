@@ -0,0 +1,208 @@
+package storage;
+
+import imfs.storage.MappedRegion;
+import imfs.storage.SegmentedContent;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static utils.Fixtures.genContent;
+
+public class TestSegmentedContent {
+
+    @DataProvider
+    public Object[][] contentSizes() {
+        // sizes around small head segments and full size segments boundaries
+        return new Object[][] {
+                new Object[] {0},
+                new Object[] {1},
+                new Object[] {64},
+                new Object[] {65},
+                new Object[] {4095},
+                new Object[] {SegmentedContent.SEGMENT_SIZE},
+                new Object[] {SegmentedContent.SEGMENT_SIZE + 1},
+                new Object[] {5 * SegmentedContent.SEGMENT_SIZE + 17},
+        };
+    }
+
+    @Test(dataProvider = "contentSizes")
+    public void testAppendInSmallPieces(int size) {
+        String expected = genContent(size);
+        SegmentedContent content = new SegmentedContent();
+        for (int i = 0; i < size; i += 7) {
+            content.append(expected.substring(i, Math.min(size, i + 7)));
+        }
+        Assert.assertEquals(content.size(), size);
+        Assert.assertEquals(content.toString(), expected);
+    }
+
+    @Test(dataProvider = "contentSizes")
+    public void testStreamMatchesContent(int size) throws IOException {
+        String expected = genContent(size);
+        SegmentedContent content = new SegmentedContent();
+        content.append(expected);
+
+        InputStream in = content.openStream();
+        // appends after opening are not visible to the stream
+        content.append("tail");
+        Assert.assertEquals(new String(in.readAllBytes(), StandardCharsets.UTF_8), expected);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        content.writeTo(out);
+        Assert.assertEquals(out.toString(StandardCharsets.UTF_8), expected + "tail");
+    }
+
+    @Test(dataProvider = "contentSizes")
+    public void testCopyIsIndependent(int size) {
+        String expected = genContent(size);
+        SegmentedContent content = new SegmentedContent();
+        content.append(expected);
+        SegmentedContent copy = content.copy();
+        Assert.assertEquals(copy.toString(), expected);
+
+        // writes to either side, including the shared tail, stay private
+        copy.append("copy");
+        content.append("ori");
+        if (size > 0) {
+            copy.write(0, ByteBuffer.wrap(new byte[] {'#'}));
+        }
+        Assert.assertEquals(content.toString(), expected + "ori");
+        Assert.assertEquals(copy.toString(), (size > 0 ? "#" + expected.substring(1) : "") + "copy");
+    }
+
+    @Test
+    public void testMultiByteCharsAcrossSegments() {
+        SegmentedContent content = new SegmentedContent();
+        // 63 ascii bytes followed by 3-byte chars, the first one spans the first two segments
+        String expected = genContent(63) + "中文内容";
+        content.append(expected.substring(0, 64));
+        content.append(expected.substring(64));
+        Assert.assertEquals(content.toString(), expected);
+    }
+
+    @Test(dataProvider = "contentSizes")
+    public void testPositionalReadAcrossSegments(int size) {
+        String expected = genContent(size);
+        SegmentedContent content = new SegmentedContent();
+        content.append(expected);
+
+        ByteBuffer dst = ByteBuffer.allocate(size + 10);
+        int read = content.read(0, dst);
+        Assert.assertEquals(read, size == 0 ? -1 : size);
+        dst.flip();
+        Assert.assertEquals(StandardCharsets.UTF_8.decode(dst).toString(), expected);
+
+        if (size > 3) {
+            dst = ByteBuffer.allocate(3);
+            Assert.assertEquals(content.read(size - 2, dst), 2);
+            Assert.assertEquals(new String(dst.array(), 0, 2, StandardCharsets.UTF_8), expected.substring(size - 2));
+        }
+        Assert.assertEquals(content.read(size, ByteBuffer.allocate(1)), -1);
+    }
+
+    @Test
+    public void testPositionalOverwrite() {
+        int size = 3 * SegmentedContent.SEGMENT_SIZE;
+        String original = genContent(size);
+        SegmentedContent content = new SegmentedContent();
+        content.append(original);
+
+        // overwrite spanning a segment boundary
+        long offset = SegmentedContent.SEGMENT_SIZE - 2;
+        int written = content.write(offset, ByteBuffer.wrap("ABCD".getBytes(StandardCharsets.UTF_8)));
+        Assert.assertEquals(written, 4);
+        Assert.assertEquals(content.size(), size);
+        String expected = original.substring(0, (int) offset) + "ABCD" + original.substring((int) offset + 4);
+        Assert.assertEquals(content.toString(), expected);
+    }
+
+    @Test(dataProvider = "contentSizes")
+    public void testTruncateAndRegrow(int size) {
+        String original = genContent(size + 100);
+        SegmentedContent content = new SegmentedContent();
+        content.append(original);
+        SegmentedContent copy = content.copy();
+
+        content.truncate(size);
+        Assert.assertEquals(content.size(), size);
+        Assert.assertEquals(content.toString(), original.substring(0, size));
+        // a copy sharing the segments keeps its bytes
+        Assert.assertEquals(copy.toString(), original);
+
+        content.append("tail");
+        content.write(size + 8, ByteBuffer.wrap(new byte[] {'x'}));
+        byte[] bytes = new byte[9];
+        content.read(size, ByteBuffer.wrap(bytes));
+        Assert.assertEquals(bytes, new byte[] {'t', 'a', 'i', 'l', 0, 0, 0, 0, 'x'});
+        Assert.assertEquals(copy.toString(), original);
+    }
+
+    @Test
+    public void testTruncatePastEndLeavesContent() {
+        SegmentedContent content = new SegmentedContent();
+        content.append("abc");
+        content.truncate(3);
+        content.truncate(10);
+        Assert.assertEquals(content.toString(), "abc");
+        content.truncate(0);
+        Assert.assertEquals(content.size(), 0);
+        content.append("d");
+        Assert.assertEquals(content.toString(), "d");
+    }
+
+    @Test
+    public void testPositionalWriteExtendsWithZeroGap() {
+        SegmentedContent content = new SegmentedContent();
+        content.append("abc");
+        content.write(5, ByteBuffer.wrap(new byte[] {'x', 'y'}));
+        Assert.assertEquals(content.size(), 7);
+        byte[] bytes = new byte[7];
+        content.read(0, ByteBuffer.wrap(bytes));
+        Assert.assertEquals(bytes, new byte[] {'a', 'b', 'c', 0, 0, 'x', 'y'});
+
+        // appends continue after the extended end
+        content.append("z");
+        Assert.assertEquals(content.size(), 8);
+    }
+
+    @Test
+    public void testMappedContentLoadsOnChange() throws IOException {
+        String image = genContent(300);
+        Path file = Files.createTempFile("imfs", ".bin");
+        Files.write(file, image.getBytes(StandardCharsets.UTF_8));
+        int windowSize = 128;
+        ByteBuffer[] windows = new ByteBuffer[3];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (int w = 0; w < windows.length; w++) {
+                windows[w] = channel.map(FileChannel.MapMode.READ_ONLY, w * windowSize, Math.min(windowSize, 300 - w * windowSize));
+            }
+        }
+        // spans all three windows
+        String expected = image.substring(100, 290);
+        SegmentedContent content = SegmentedContent.mapped(new MappedRegion(windows, windowSize, 100, 190));
+
+        Assert.assertEquals(content.size(), 190);
+        Assert.assertEquals(content.toString(), expected);
+        Assert.assertEquals(new String(content.openStream().readAllBytes(), StandardCharsets.UTF_8), expected);
+        ByteBuffer dst = ByteBuffer.allocate(50);
+        Assert.assertEquals(content.read(20, dst), 50);
+        Assert.assertEquals(new String(dst.array(), StandardCharsets.UTF_8), expected.substring(20, 70));
+        Assert.assertFalse(content.isLoaded());
+
+        content.append("tail");
+        Assert.assertTrue(content.isLoaded());
+        Assert.assertEquals(content.toString(), expected + "tail");
+        content.write(0, ByteBuffer.wrap("X".getBytes(StandardCharsets.UTF_8)));
+        Assert.assertEquals(content.toString(), "X" + expected.substring(1) + "tail");
+    }
+}
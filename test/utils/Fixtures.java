@@ -0,0 +1,54 @@
+package utils;
+
+import imfs.filesystem.Directory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Synthetic content and trees shared by tests and benchmarks.
+ */
+public final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /**
+     * @return ASCII content of the given size cycling through the alphabet
+     */
+    public static String genContent(int size) {
+        return genContent(size, 0);
+    }
+
+    /**
+     * @param seed letter to start the alphabet cycle from, contents of different seeds differ at every byte
+     * @return ASCII content of the given size cycling through the alphabet
+     */
+    public static String genContent(int size, int seed) {
+        StringBuilder sb = new StringBuilder(size);
+        for (int i = 0; i < size; i++) {
+            sb.append((char) ('a' + (i + seed) % 26));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Build a synthetic tree, every directory but the leaves holds a "target" file and fanOut sub directories.
+     */
+    public static Directory buildTree(int fanOut, int depth) {
+        Directory root = new Directory();
+        List<Directory> level = List.of(root);
+        for (int d = 0; d < depth; d++) {
+            List<Directory> next = new ArrayList<>();
+            for (Directory dir : level) {
+                dir.createNewSubFile("target", false);
+                for (int i = 0; i < fanOut; i++) {
+                    next.add((Directory) dir.createNewSubFile(i == 0 ? "targetDir" : "dir" + i, true));
+                }
+            }
+            level = next;
+        }
+        return root;
+    }
+}
@@ -0,0 +1,98 @@
+package utils;
+
+import imfs.api.File;
+import imfs.filesystem.Directory;
+import imfs.utils.FilePattern;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+public class TestFilePattern {
+
+    @DataProvider
+    public Object[][] namePatterns() {
+        //pattern, name, expectedMatch
+        return new Object[][] {
+                new Object[] {"*.log", "app.log", true},
+                new Object[] {"*.log", "app.log.1", false},
+                new Object[] {"data-?.[ct]sv", "data-1.csv", true},
+                new Object[] {"data-?.[ct]sv", "data-12.tsv", false},
+                new Object[] {"[!a]*", "abc", false},
+                new Object[] {"[!a]*", "bcd", true},
+                new Object[] {"{foo,bar}.txt", "bar.txt", true},
+                new Object[] {"{foo,bar}.txt", "baz.txt", false},
+                new Object[] {"a+b(1).txt", "a+b(1).txt", true},
+                new Object[] {"glob:\\*", "*", true},
+                new Object[] {"glob:\\*", "a", false},
+                new Object[] {"regex:.*\\.log", "app.log", true},
+                new Object[] {"regex:[0-9]+", "12a", false},
+        };
+    }
+
+    @Test(dataProvider = "namePatterns")
+    public void testNameMatch(String pattern, String name, boolean expectedMatch) {
+        FilePattern filePattern = FilePattern.compile(pattern, false);
+        long state = filePattern.next(filePattern.initialState(), name);
+        Assert.assertEquals(filePattern.isMatch(state), expectedMatch);
+        Assert.assertFalse(filePattern.canMatchBelow(state));
+    }
+
+    @Test
+    public void testLiteralElementsAreLookedUp() {
+        FilePattern filePattern = FilePattern.compile("/var/**/tmp", false);
+        Assert.assertTrue(filePattern.isAbsolute());
+        Assert.assertEquals(filePattern.literalNames(filePattern.initialState()), List.of("var"));
+        // any directory can follow "var/"
+        long state = filePattern.next(filePattern.initialState(), "var");
+        Assert.assertNull(filePattern.literalNames(state));
+        Assert.assertTrue(filePattern.isMatch(filePattern.next(state, "tmp")));
+
+        FilePattern glob = FilePattern.compile("*.log", false);
+        Assert.assertNull(glob.literalNames(glob.initialState()));
+    }
+
+    @Test(expectedExceptions = { IllegalArgumentException.class })
+    public void testInvalidPattern() {
+        FilePattern.compile("/var/../tmp", false);
+    }
+
+    private static Directory buildTree() {
+        Directory root = new Directory();
+        for (String path : new String[] {"var/a/tmp", "var/tmp", "var/a/b/tmp", "other/tmp"}) {
+            Directory dir = root;
+            for (String name : path.split("/")) {
+                File sub = dir.getSubFile(name);
+                dir = (Directory) (sub == null ? dir.createNewSubFile(name, true) : sub);
+            }
+            dir.createNewSubFile(path.replace('/', '-') + ".log", false);
+            dir.createNewSubFile(path.replace('/', '-') + ".txt", false);
+        }
+        return root;
+    }
+
+    private static Set<String> find(Directory dir, String pattern, boolean recursive) {
+        List<File> found = new ArrayList<>();
+        dir.find(FilePattern.compile(pattern, recursive), found::add);
+        return found.stream().map(File::getFullPath).collect(Collectors.toSet());
+    }
+
+    @Test
+    public void testFindInTree() {
+        Directory root = buildTree();
+        Assert.assertEquals(find(root, "/var/**/tmp/*.log", false),
+                Set.of("/var/a/tmp/var-a-tmp.log", "/var/tmp/var-tmp.log", "/var/a/b/tmp/var-a-b-tmp.log"));
+        Assert.assertEquals(find(root, "var/*/tmp/*", false),
+                Set.of("/var/a/tmp/var-a-tmp.log", "/var/a/tmp/var-a-tmp.txt"));
+        Assert.assertEquals(find(root, "*/tmp", false), Set.of("/var/tmp/", "/other/tmp/"));
+        Assert.assertEquals(find(root, "**/b", false), Set.of("/var/a/b/"));
+
+        Assert.assertEquals(find(root, "*.log", true).size(), 4);
+        Assert.assertTrue(find(root, "*.log", false).isEmpty());
+        Assert.assertEquals(find(root, "regex:other-.*", true), Set.of("/other/tmp/other-tmp.log", "/other/tmp/other-tmp.txt"));
+    }
+}